@@ -0,0 +1,62 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.MessageCodec.Format;
+import edu.jeznach.po2.common.communication.Messages.CreateFile;
+import edu.jeznach.po2.common.communication.Messages.FileChunk;
+import edu.jeznach.po2.common.communication.Messages.Msg;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of messages, which are sent most often during synchronization.
+ * <br><br>
+ * Run with {@code gradle jmh}; text format is measured alongside binary one for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({ "binary", "text" })
+    public Format format;
+
+    @Param({ "CreateFile", "FileChunk" })
+    public String message;
+
+    private MessageCodec codec;
+    private Msg msg;
+    private ByteBuffer out;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() {
+        codec = new MessageCodec(format);
+        String checksum = "2d44a2f0b3c1e9f8d7a6b5c4d3e2f1a0b9c8d740";
+        msg = message.equals("CreateFile")
+              ? new CreateFile("user", "documents/reports/2018/summary.txt", 1L << 20, checksum)
+              : new FileChunk("user", "documents/reports/2018/summary.txt", 1L << 22, 1L << 16, checksum);
+        out = ByteBuffer.allocate(4096);
+        frame = ByteBuffer.allocate(4096);
+        codec.encode(msg, frame);
+        frame.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        out.clear();
+        codec.encode(msg, out);
+        return out;
+    }
+
+    @Benchmark
+    public Msg decode() throws ProtocolException {
+        frame.rewind();
+        return codec.decode(frame);
+    }
+}
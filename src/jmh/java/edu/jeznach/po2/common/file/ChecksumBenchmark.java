@@ -0,0 +1,60 @@
+package edu.jeznach.po2.common.file;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures calculating checksum of file with {@link FileManager#getChecksum(File, String)}, that
+ * is not cached. Files smaller than 16 MB are read through direct buffer, while larger ones are
+ * memory-mapped, so sizes cover both ways of reading.
+ * <br><br>
+ * Run with {@code gradle jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({ "MD5", "SHA-1", "SHA-256" })
+    public String algorithm;
+
+    /**
+     * Size of file, in bytes: small and large read through buffer, and memory-mapped one.
+     */
+    @Param({ "16384", "4194304", "67108864" })
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("checksum", ".bin");
+        byte[] block = new byte[1 << 16];
+        Random random = new Random(42);
+        try (OutputStream stream = Files.newOutputStream(file.toPath())) {
+            for (int written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                stream.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public String checksum() throws Exception {
+        return FileManager.getChecksum(file, algorithm);
+    }
+}
@@ -0,0 +1,89 @@
+package edu.jeznach.po2.server.file;
+
+import edu.jeznach.po2.common.file.FileManager;
+import edu.jeznach.po2.common.file.MappingCodec;
+import edu.jeznach.po2.common.file.MappingCodec.Format;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and reading of drive mapping with 100k files (10 users with 10k files each,
+ * SHA-1 checksums), in every {@link Format}. Size of written mapping is printed during setup.
+ * <br><br>
+ * Run with {@code gradle jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingCodecBenchmark {
+
+    private static final int USERS = 10;
+    private static final int FILES_PER_USER = 10_000;
+
+    @Param({ "yaml", "binary" })
+    public Format format;
+
+    private MappingCodec<DriveMapping> codec;
+    private DriveMapping mapping;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = DriveFileMapper.provider.getCodec(format);
+        mapping = mapping();
+        encoded = encode();
+        System.out.printf("%s mapping of %d files: %.1f MB%n", format, USERS * FILES_PER_USER, encoded.length / 1e6);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(encoded != null ? encoded.length : 1 << 20);
+        codec.encode(mapping, stream);
+        return stream.toByteArray();
+    }
+
+    @Benchmark
+    public DriveMapping decode() throws IOException {
+        return codec.decode(new ByteArrayInputStream(encoded));
+    }
+
+    private static DriveMapping mapping() {
+        Random random = new Random(42);
+        DriveMapping mapping = new DriveMapping(new DriveMapping.InitParams(new File("drive"), "drive.log"));
+        List<DriveMapping.User> users = new ArrayList<>();
+        for (int u = 0; u < USERS; u++) {
+            DriveMapping.User user = new DriveMapping.User("user" + u);
+            List<FileMapping> files = new ArrayList<>();
+            long used = 0;
+            for (int f = 0; f < FILES_PER_USER; f++) {
+                long size = (long) (Math.exp(random.nextGaussian() * 2 + 10));
+                String pathname = "documents/project" + f % 37 + "/part " + f / 37 + "/file" + f + ".txt";
+                files.add(new FileMapping(pathname, size, checksum(random),
+                                          1_500_000_000_000L + random.nextInt(Integer.MAX_VALUE)));
+                used += size;
+            }
+            user.setFiles(files);
+            user.setUsed_space_bytes(used);
+            users.add(user);
+        }
+        mapping.setUsers(users);
+        return mapping;
+    }
+
+    private static String checksum(Random random) {
+        byte[] digest = new byte[20];
+        random.nextBytes(digest);
+        return FileManager.toHex(digest);
+    }
+}
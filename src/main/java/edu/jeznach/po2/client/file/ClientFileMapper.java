@@ -3,21 +3,25 @@ package edu.jeznach.po2.client.file;
 import edu.jeznach.po2.client.file.ClientMapping.Directories;
 import edu.jeznach.po2.client.gui.NotificationSender;
 import edu.jeznach.po2.common.file.FileMapper;
+import edu.jeznach.po2.common.file.FileObserver;
+import edu.jeznach.po2.common.file.FileScanner;
+import edu.jeznach.po2.common.file.MappingCodec;
+import edu.jeznach.po2.common.file.MappingJournal;
+import edu.jeznach.po2.common.file.YamlMappingCodec;
 import edu.jeznach.po2.common.log.Log;
 import edu.jeznach.po2.common.util.Pair;
 import edu.jeznach.po2.common.util.Throwables;
 import edu.jeznach.po2.server.file.DriveFileMapper;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.error.YAMLException;
 
 import java.io.*;
 import java.nio.file.NotDirectoryException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -48,9 +52,122 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
     @Override
     public boolean attachFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
         checkNode(node);
-        String relativeFilePath = getRelativePath(file,
-                                                  new File(getMapping().getClient_location()
-                                                           + File.separator + node));
+        MappingJournal.Record record = MappingJournal.Record.attach(node, getRelativePath(file, node),
+                                                                    file.length(), checksum, file.lastModified());
+        return perform(record);
+    }
+
+    @Override
+    public boolean detachFile(@NotNull File file, @NotNull String node) {
+        checkNode(node);
+        MappingJournal.Record record = MappingJournal.Record.detach(node, getRelativePath(file, node));
+        return perform(record);
+    }
+
+    @Override
+    public boolean updateFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
+        checkNode(node);
+        MappingJournal.Record record = MappingJournal.Record.update(node, getRelativePath(file, node),
+                                                                    file.length(), checksum, file.lastModified());
+        return perform(record);
+    }
+
+    @Override
+    public @Nullable Boolean shareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
+        checkNode(node);
+        if (!node.equals(Directories.files.toString())) return null;
+        MappingJournal.Record record = MappingJournal.Record.share(node, getRelativePath(file, node), receiver);
+        return perform(record);
+    }
+
+    @Override
+    public @Nullable Boolean unshareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
+        checkNode(node);
+        if (!node.equals(Directories.files.toString())) return null;
+        MappingJournal.Record record = MappingJournal.Record.unshare(node, getRelativePath(file, node), receiver);
+        return perform(record);
+    }
+
+    /**
+     * Creates snapshot of mapped files, i.e. to compare it with current state of client directory.
+     * @return copies of mappings of all files, by their path relative to client directory
+     *         (including node directory)
+     * @see FileObserver#FileObserver(Path, Log, Supplier)
+     */
+    public synchronized @NotNull Map<@NotNull Path, edu.jeznach.po2.common.file.@NotNull FileMapping> getKnownFiles() {
+        Map<Path, edu.jeznach.po2.common.file.FileMapping> ret = new HashMap<>();
+        if (getMapping().getFiles() != null) {
+            for (ClientFileMapping f : getMapping().getFiles()) {
+                ret.put(Paths.get(Directories.files.toString(), f.getPathname()), new FileMapping(f));
+            }
+        }
+        if (getMapping().getCancelled_files() != null) {
+            for (FileMapping f : getMapping().getCancelled_files()) {
+                ret.put(Paths.get(Directories.cancel.toString(), f.getPathname()), new FileMapping(f));
+            }
+        }
+        if (getMapping().getShared_files() != null) {
+            for (SharedFileMapping f : getMapping().getShared_files()) {
+                ret.put(Paths.get(Directories.shared.toString(), f.getOwner(), f.getPathname()), new FileMapping(f));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected synchronized boolean apply(@NotNull MappingJournal.Record record) {
+        switch (record.operation) {
+            case attach:
+                return attach(record.node, record.pathname, record.size,
+                              record.checksum, record.modificationTimestamp);
+            case detach:
+                return detach(record.node, record.pathname);
+            case update:
+                return update(record.node, record.pathname, record.size,
+                              record.checksum, record.modificationTimestamp);
+            case share:
+                return share(record.pathname, record.receiver);
+            case unshare:
+                return unshare(record.pathname, record.receiver);
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    protected @NotNull MappingCodec<ClientMapping> codec() {
+        return provider.getCodec();
+    }
+
+    @Override
+    protected void error(@NotNull Exception e) {
+        NotificationSender sender =
+                new NotificationSender(getMapping().getName(),
+                                       new Log(new File(getMapping().getClient_location() +
+                                                        File.separator +
+                                                        getMapping().getLog_name())));
+        sender.error(e.getMessage(), Throwables.getStackTrace(e));
+        sender.close();
+    }
+
+    /**
+     * Applies and journals operation while holding lock on this mapper, so records are journaled
+     * in same order as operations were performed. Mapping is marked dirty after lock is released,
+     * as in synchronous mode it is written during that call, which locks this mapper again
+     * on thread of {@link #flush()}.
+     */
+    private boolean perform(@NotNull MappingJournal.Record record) {
+        boolean changed;
+        synchronized (this) {
+            changed = apply(record);
+            if (changed) journal(record);
+        }
+        if (changed) markDirty();
+        return changed;
+    }
+
+    private boolean attach(@NotNull String node, @NotNull String relativeFilePath,
+                           long size, @NotNull String checksum, long modificationTimestamp) {
         if (Directories.files.toString().equals(node)) {
             if (getMapping().getFiles() == null) getMapping().setFiles(new ArrayList<>());
             Optional<ClientFileMapping> fileOptional = getMapping().getFiles()
@@ -60,9 +177,8 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
             if (!fileOptional.isPresent()) {
                 getMapping().getFiles()
                             .add(new ClientFileMapping(
-                                    relativeFilePath, file.length(), checksum, file.lastModified()
+                                    relativeFilePath, size, checksum, modificationTimestamp
                             ));
-                mappingFile.ifPresent(this::dumpToFile);
                 return true;
             }
         } else if (Directories.cancel.toString().equals(node)) {
@@ -74,14 +190,12 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
             if (!fileOptional.isPresent()) {
                 getMapping().getCancelled_files()
                             .add(new FileMapping(
-                                    relativeFilePath, file.length(), checksum, file.lastModified()
+                                    relativeFilePath, size, checksum, modificationTimestamp
                             ));
-                mappingFile.ifPresent(this::dumpToFile);
                 return true;
             }
         } else if (Directories.shared.toString().equals(node)) {
-            String[] path = relativeFilePath.split(Pattern.quote(File.separator), 2);
-            if (path.length != 2) throw new IllegalArgumentException("Path " + relativeFilePath + " is not a shared file path.");
+            String[] path = sharedPath(relativeFilePath);
             if (getMapping().getShared_files() == null) getMapping().setShared_files(new ArrayList<>());
             Optional<SharedFileMapping> fileOptional = getMapping().getShared_files()
                                                                    .stream()
@@ -91,21 +205,15 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
             if (!fileOptional.isPresent()) {
                 getMapping().getShared_files()
                             .add(new SharedFileMapping(
-                                    path[1], file.length(), checksum, file.lastModified(), path[0]
+                                    path[1], size, checksum, modificationTimestamp, path[0]
                             ));
-                mappingFile.ifPresent(this::dumpToFile);
                 return true;
             }
         }
         return false;
     }
 
-    @Override
-    public boolean detachFile(@NotNull File file, @NotNull String node) {
-        checkNode(node);
-        String relativeFilePath = getRelativePath(file,
-                                                  new File(getMapping().getClient_location()
-                                                           + File.separator + node));
+    private boolean detach(@NotNull String node, @NotNull String relativeFilePath) {
         if (Directories.files.toString().equals(node)) {
             if (getMapping().getFiles() != null) {
                 Optional<ClientFileMapping> fileOptional = getMapping().getFiles()
@@ -114,7 +222,6 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
                                                                        .findFirst();
                 if (fileOptional.isPresent()) {
                     getMapping().getFiles().remove(fileOptional.get());
-                    mappingFile.ifPresent(this::dumpToFile);
                     return true;
                 }
             }
@@ -126,15 +233,12 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
                                                                  .findFirst();
                 if (fileOptional.isPresent()) {
                     getMapping().getCancelled_files().remove(fileOptional.get());
-                    mappingFile.ifPresent(this::dumpToFile);
                     return true;
                 }
             }
         } else if (Directories.shared.toString().equals(node)) {
             if (getMapping().getShared_files() != null) {
-                String[] path = relativeFilePath.split(Pattern.quote(File.separator), 2);
-                if (path.length != 2)
-                    throw new IllegalArgumentException("Path " + relativeFilePath + " is not a shared file path.");
+                String[] path = sharedPath(relativeFilePath);
                 Optional<SharedFileMapping> fileOptional = getMapping().getShared_files()
                                                                        .stream()
                                                                        .filter(f -> f.getPathname().equals(path[1]))
@@ -142,7 +246,6 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
                                                                        .findFirst();
                 if (fileOptional.isPresent()) {
                     getMapping().getShared_files().remove(fileOptional.get());
-                    mappingFile.ifPresent(this::dumpToFile);
                     return true;
                 }
             }
@@ -150,85 +253,51 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
         return false;
     }
 
-    @Override
-    public boolean updateFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
-        checkNode(node);
-        String relativeFilePath = getRelativePath(file,
-                                                  new File(getMapping().getClient_location()
-                                                           + File.separator + node));
+    private boolean update(@NotNull String node, @NotNull String relativeFilePath,
+                           long size, @NotNull String checksum, long modificationTimestamp) {
+        edu.jeznach.po2.common.file.FileMapping fileMapping = null;
         if (Directories.files.toString().equals(node)) {
             if (getMapping().getFiles() != null) {
-                Optional<ClientFileMapping> fileOptional = getMapping().getFiles()
-                                                                       .stream()
-                                                                       .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                                       .findFirst();
-                if (fileOptional.isPresent()) {
-                    ClientFileMapping fileMapping = fileOptional.get();
-                    long oldSize = fileMapping.getSize_bytes();
-                    fileMapping.setChecksum(checksum);
-                    fileMapping.setModification_timestamp(file.lastModified());
-                    fileMapping.setSize_bytes(file.length());
-                    getMapping().setUsed_space_bytes(
-                            getMapping().getUsed_space_bytes() - oldSize + file.length()
-                    );
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
-                }
+                fileMapping = getMapping().getFiles()
+                                          .stream()
+                                          .filter(f -> f.getPathname().equals(relativeFilePath))
+                                          .findFirst()
+                                          .orElse(null);
             }
         } else if (Directories.cancel.toString().equals(node)) {
             if (getMapping().getCancelled_files() != null) {
-                Optional<FileMapping> fileOptional = getMapping().getCancelled_files()
-                                                                 .stream()
-                                                                 .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                                 .findFirst();
-                if (fileOptional.isPresent()) {
-                    FileMapping fileMapping = fileOptional.get();
-                    long oldSize = fileMapping.getSize_bytes();
-                    fileMapping.setChecksum(checksum);
-                    fileMapping.setModification_timestamp(file.lastModified());
-                    fileMapping.setSize_bytes(file.length());
-                    getMapping().setUsed_space_bytes(
-                            getMapping().getUsed_space_bytes() - oldSize + file.length()
-                    );
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
-                }
+                fileMapping = getMapping().getCancelled_files()
+                                          .stream()
+                                          .filter(f -> f.getPathname().equals(relativeFilePath))
+                                          .findFirst()
+                                          .orElse(null);
             }
         } else if (Directories.shared.toString().equals(node)) {
             if (getMapping().getShared_files() != null) {
-                String[] path = relativeFilePath.split(Pattern.quote(File.separator), 2);
-                if (path.length != 2)
-                    throw new IllegalArgumentException("Path " + relativeFilePath + " is not a shared file path.");
-                Optional<SharedFileMapping> fileOptional = getMapping().getShared_files()
-                                                                       .stream()
-                                                                       .filter(f -> f.getPathname().equals(path[1]))
-                                                                       .filter(f -> f.getOwner().equals(path[0]))
-                                                                       .findFirst();
-                if (fileOptional.isPresent()) {
-                    SharedFileMapping fileMapping = fileOptional.get();
-                    long oldSize = fileMapping.getSize_bytes();
-                    fileMapping.setChecksum(checksum);
-                    fileMapping.setModification_timestamp(file.lastModified());
-                    fileMapping.setSize_bytes(file.length());
-                    getMapping().setUsed_space_bytes(
-                            getMapping().getUsed_space_bytes() - oldSize + file.length()
-                    );
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
-                }
+                String[] path = sharedPath(relativeFilePath);
+                fileMapping = getMapping().getShared_files()
+                                          .stream()
+                                          .filter(f -> f.getPathname().equals(path[1]))
+                                          .filter(f -> f.getOwner().equals(path[0]))
+                                          .findFirst()
+                                          .orElse(null);
             }
         }
+        if (fileMapping != null) {
+            long oldSize = fileMapping.getSize_bytes();
+            fileMapping.setChecksum(checksum);
+            fileMapping.setModification_timestamp(modificationTimestamp);
+            fileMapping.setSize_bytes(size);
+            getMapping().setUsed_space_bytes(
+                    getMapping().getUsed_space_bytes() - oldSize + size
+            );
+            return true;
+        }
         return false;
     }
 
-    @Override
-    public @Nullable Boolean shareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
-        checkNode(node);
-        if (!node.equals(Directories.files.toString())) return null;
+    private boolean share(@NotNull String relativeFilePath, @NotNull String receiver) {
         if (getMapping().getFiles() != null) {
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getClient_location()
-                                                      + File.separator + node));
             Optional<ClientFileMapping> fileOptional = getMapping().getFiles()
                                                                    .stream()
                                                                    .filter(f -> f.getPathname().equals(relativeFilePath))
@@ -251,14 +320,8 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
         return false;
     }
 
-    @Override
-    public @Nullable Boolean unshareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
-        checkNode(node);
-        if (!node.equals(Directories.files.toString())) return null;
+    private boolean unshare(@NotNull String relativeFilePath, @NotNull String receiver) {
         if (getMapping().getFiles() != null) {
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getClient_location()
-                                                               + File.separator + node));
             Optional<ClientFileMapping> fileOptional = getMapping().getFiles()
                                                                    .stream()
                                                                    .filter(f -> f.getPathname().equals(relativeFilePath))
@@ -279,24 +342,14 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
         return false;
     }
 
-    private void error(Exception e) {
-        NotificationSender sender =
-                new NotificationSender(getMapping().getName(),
-                                       new Log(new File(getMapping().getClient_location() +
-                                                        File.separator +
-                                                        getMapping().getLog_name())));
-        sender.error(e.getMessage(), Throwables.getStackTrace(e));
-        sender.close();
+    private @NotNull String getRelativePath(@NotNull File file, @NotNull String node) {
+        return getRelativePath(file, new File(getMapping().getClient_location() + File.separator + node));
     }
 
-    private void dumpToFile(File file) {
-        try {
-            Writer writer = new FileWriter(file);
-            writer.write(new Yaml().dump(getMapping()));
-            writer.close();
-        } catch (IOException e) {
-            error(e);
-        }
+    private static @NotNull String[] sharedPath(@NotNull String relativeFilePath) {
+        String[] path = relativeFilePath.split(Pattern.quote(File.separator), 2);
+        if (path.length != 2) throw new IllegalArgumentException("Path " + relativeFilePath + " is not a shared file path.");
+        return path;
     }
 
     private void checkNode(@NotNull String node) {
@@ -314,14 +367,17 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
     public static class ClientMappingProvider
             extends FileMappingProvider<ClientMapping, ClientMapping.InitParams> {
 
+        private final @NotNull MappingCodec<ClientMapping> yamlCodec = new YamlMappingCodec<>(ClientMapping.class);
+        private final @NotNull MappingCodec<ClientMapping> binaryCodec = new ClientMappingCodec();
+
         private ClientMappingProvider() {  }
 
         @SuppressWarnings("DuplicateThrows")
         @Override
         public @NotNull Pair<ClientMapping, Boolean> createStructure(@Nullable File file,
-                                                                     ClientMapping.@NotNull InitParams parameters)
+                                                                     ClientMapping.@NotNull InitParams parameters,
+                                                                     @Nullable ClientMapping previous)
                 throws FileNotFoundException, NotDirectoryException, IOException {
-            Yaml yaml = new Yaml();
             ClientMapping mapping = new ClientMapping(parameters);
             Boolean fileCreated;
             File client = parameters.clientLocation;
@@ -335,30 +391,35 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
                         if (!listFile.isDirectory())
                             throw new NotDirectoryException("Node: " + name + " is not a directory." +
                                                             " Cannot create mapping");
-                        mapping.setFiles(listFiles(listFile, listFile).stream()
-                                                                      .map(ClientFileMapping::new)
-                                                                      .collect(Collectors.toList()));
+                        mapping.setFiles(listFiles(listFile, listFile,
+                                                   previous != null
+                                                   ? FileScanner.index(previous.getFiles())
+                                                   : null).stream()
+                                                          .map(ClientFileMapping::new)
+                                                          .collect(Collectors.toList()));
                     } else if (Directories.cancel.toString().equals(name)) {
                         if (!listFile.isDirectory())
                             throw new NotDirectoryException("Node: " + name + " is not a directory." +
                                                             " Cannot create mapping");
-                        mapping.setCancelled_files(listFiles(listFile, listFile).stream()
-                                                                                .map(FileMapping::new)
-                                                                                .collect(Collectors.toList()));
+                        mapping.setCancelled_files(listFiles(listFile, listFile,
+                                                             previous != null
+                                                             ? FileScanner.index(previous.getCancelled_files())
+                                                             : null).stream()
+                                                                    .map(FileMapping::new)
+                                                                    .collect(Collectors.toList()));
                     } else if (Directories.shared.toString().equals(name)) {
                         if (!listFile.isDirectory())
                             throw new NotDirectoryException("Node: " + name + " is not a directory." +
                                                             " Cannot create mapping");
-                        mapping.setShared_files(listUsers(listFile.listFiles()));
+                        mapping.setShared_files(listUsers(listFile.listFiles(), previous));
                     }
                 }
             }
             if (file != null) {
                 File fileToCreate = new File(client.getAbsolutePath() + "/" + file.getPath());
                 fileCreated = fileToCreate.createNewFile();
-                Writer writer = new OutputStreamWriter(new FileOutputStream(fileToCreate));
-                yaml.dump(mapping, writer);
-                writer.close();
+                MappingJournal.delete(fileToCreate);
+                write(mapping, fileToCreate);
             } else fileCreated = null;
             return Pair.of(mapping, fileCreated);
         }
@@ -367,26 +428,56 @@ public class ClientFileMapper extends FileMapper<ClientMapping> {
         @Override
         public @Nullable ClientMapping loadStructure(@NotNull File file)
                 throws FileNotFoundException, YAMLException, IOException {
-            Yaml yaml = new Yaml();
-            try (Reader reader = new InputStreamReader(new FileInputStream(file))) {
-                return yaml.load(reader);
+            ClientMapping mapping;
+            try {
+                mapping = read(file);
             } catch (YAMLException e) {
                 throw new YAMLException("Exception thrown while parsing file mapping," +
                                         " try to manually repair file, or delete it to " +
                                         "create it from files (will remove all sharing links)", e);
             }
+            if (mapping != null) MappingJournal.replay(file, new ClientFileMapper(mapping, null)::apply);
+            return mapping;
+        }
+
+        @Override
+        public @NotNull MappingCodec<ClientMapping> getCodec(@NotNull MappingCodec.Format format) {
+            switch (format) {
+                case binary:
+                    return binaryCodec;
+                case yaml:
+                default:
+                    return yamlCodec;
+            }
         }
 
-        private static List<SharedFileMapping> listUsers(File[] directories) {
+        /**
+         * Creates mappings of shared files, scanning directories of their owners in parallel.
+         * @param directories the directories of owners of shared files
+         * @param previous the previous mapping of client, used to skip calculating checksums
+         *                 of unmodified files, can be {@code null}
+         * @return list of shared files mappings
+         */
+        private static List<SharedFileMapping> listUsers(File[] directories, @Nullable ClientMapping previous) {
             if (directories != null) {
-                return Arrays.stream(directories)
-                             .filter(File::isDirectory)
-                             .map(f -> Pair.of(listFiles(f, f), f.getName()))
-                             .map(fl -> fl.key.stream()
-                                              .map(f -> new SharedFileMapping(f, fl.value))
-                                              .collect(Collectors.toList()))
-                             .flatMap(List::stream)
-                             .collect(Collectors.toList());
+                Map<String, Map<String, edu.jeznach.po2.common.file.FileMapping>> previousFiles = new HashMap<>();
+                if (previous != null && previous.getShared_files() != null) {
+                    previous.getShared_files().forEach(f -> previousFiles.computeIfAbsent(f.getOwner(),
+                                                                                          o -> new HashMap<>())
+                                                                         .put(f.getPathname(), f));
+                }
+                List<File> ownerDirectories = Arrays.stream(directories)
+                                                    .filter(File::isDirectory)
+                                                    .collect(Collectors.toList());
+                Map<File, List<edu.jeznach.po2.common.file.FileMapping>> files =
+                        FileScanner.scanAll(ownerDirectories, d -> previousFiles.get(d.getName()));
+                return ownerDirectories.stream()
+                                       .map(f -> Pair.of(files.get(f), f.getName()))
+                                       .map(fl -> fl.key.stream()
+                                                        .map(f -> new SharedFileMapping(f, fl.value))
+                                                        .collect(Collectors.toList()))
+                                       .flatMap(List::stream)
+                                       .collect(Collectors.toList());
             } else return new ArrayList<>();
         }
     }
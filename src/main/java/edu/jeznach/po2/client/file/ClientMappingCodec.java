@@ -0,0 +1,61 @@
+package edu.jeznach.po2.client.file;
+
+import edu.jeznach.po2.common.file.BinaryMappingCodec;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Persists {@link ClientMapping} as compact binary document.
+ * <blockquote><code>
+ *     $NAME$ $LOG_NAME$ $CLIENT_LOCATION$ $USED_SPACE$
+ *     [$FILE$ [$RECEIVER$...]...] [$CANCELLED_FILE$...] [$SHARED_FILE$...]
+ * </code></blockquote>
+ * @see BinaryMappingCodec
+ */
+public class ClientMappingCodec extends BinaryMappingCodec<ClientMapping> {
+
+    ClientMappingCodec() {
+        super((byte) 'C');
+    }
+
+    @Override
+    protected void write(@NotNull ClientMapping mapping, @NotNull DataOutputStream stream) throws IOException {
+        writeString(stream, mapping.getName());
+        writeString(stream, mapping.getLog_name());
+        writeString(stream, mapping.getClient_location());
+        writeVarLong(stream, mapping.getUsed_space_bytes());
+        writeList(stream, mapping.getFiles(), (s, file) -> {
+            writeFileMapping(s, file);
+            writeList(s, file.getReceivers(), BinaryMappingCodec::writeString);
+        });
+        writeList(stream, mapping.getCancelled_files(), BinaryMappingCodec::writeFileMapping);
+        writeList(stream, mapping.getShared_files(), (s, file) -> {
+            writeFileMapping(s, file);
+            writeString(s, file.getOwner());
+        });
+    }
+
+    @Override
+    protected @NotNull ClientMapping read(@NotNull DataInputStream stream) throws IOException {
+        ClientMapping mapping = new ClientMapping();
+        mapping.setName(readString(stream));
+        mapping.setLog_name(readString(stream));
+        mapping.setClient_location(readString(stream));
+        mapping.setUsed_space_bytes(readVarLong(stream));
+        mapping.setFiles(readList(stream, s -> {
+            ClientFileMapping file = readFileMapping(s, new ClientFileMapping());
+            file.setReceivers(readList(s, BinaryMappingCodec::readString));
+            return file;
+        }));
+        mapping.setCancelled_files(readList(stream, s -> readFileMapping(s, new FileMapping())));
+        mapping.setShared_files(readList(stream, s -> {
+            SharedFileMapping file = readFileMapping(s, new SharedFileMapping());
+            file.setOwner(readString(s));
+            return file;
+        }));
+        return mapping;
+    }
+}
@@ -0,0 +1,76 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.Messages.*;
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Sends contents of files in chunks, so interrupted transfer can be resumed from last verified chunk.
+ * <p>Transfer of file proceeds as follows:
+ * <p>- sender announces file with {@link CreateFile} or {@link UpdateFile},
+ * <p>- receiver opens {@link PartialTransfer} and replies with {@link ResumeFile}, containing offset
+ *      of first byte it has not received yet ({@code 0}, unless transfer of same contents was interrupted),
+ * <p>- sender sends every chunk starting from that offset as {@link FileChunk} message, followed by
+ *      chunk contents on data channel,
+ * <p>- receiver verifies checksum of every chunk, and replies with {@link ResumeFile} if chunk
+ *      has to be sent again,
+ * <p>- once last chunk is received, receiver verifies checksum of whole file and moves it in place.
+ * <p>Receiving end persists state of transfer, so it is resumed even after either end restarts - it is
+ * server for uploaded files and client for downloaded ones.
+ * @see FileTransfer
+ */
+public final class ChunkedTransfer {
+
+    private ChunkedTransfer() {  }
+
+    /**
+     * @return the size of chunks, in bytes
+     * @see Configuration#TRANSFER_CHUNK_SIZE$KB
+     */
+    public static long getChunkSize() {
+        return Math.max(Configuration.TRANSFER_CHUNK_SIZE$KB, 1) * 1024L;
+    }
+
+    /**
+     * Creates message announcing chunk of file, that starts at {@code offset}.
+     * @param user the username of user issuing command
+     * @param file the path to file, relative to mapping node (user)
+     * @param source the channel of file
+     * @param offset the position in file of first byte of chunk
+     * @param chunkSize the maximal number of bytes in chunk
+     * @return the message containing length and checksum of chunk
+     * @throws IOException if an I/O error occurs while reading file
+     */
+    public static @NotNull FileChunk chunk(@NotNull String user,
+                                           @NotNull String file,
+                                           @NotNull FileChannel source,
+                                           long offset,
+                                           long chunkSize) throws IOException {
+        long length = Math.min(chunkSize, source.size() - offset);
+        if (length <= 0) throw new IllegalArgumentException("Offset " + offset + " is past end of file");
+        MessageDigest digest = FileTransfer.digest();
+        for (long region = offset; region < offset + length; region += FileTransfer.REGION) {
+            FileTransfer.digest(source, region, Math.min(FileTransfer.REGION, offset + length - region), digest);
+        }
+        return new FileChunk(user, file, offset, length, FileManager.toHex(digest.digest()));
+    }
+
+    /**
+     * Sends contents of chunk announced by {@code chunk} to {@code target}.
+     * @param source the channel of file
+     * @param chunk the message announcing chunk
+     * @param target the channel to send contents to
+     * @throws IOException if an I/O error occurs while reading file or writing to {@code target}
+     */
+    public static void send(@NotNull FileChannel source,
+                            @NotNull FileChunk chunk,
+                            @NotNull WritableByteChannel target) throws IOException {
+        FileTransfer.send(source, chunk.offset(), chunk.length(), target, null);
+    }
+}
@@ -0,0 +1,607 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.Messages.*;
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sends updated files as delta against copy of file, that receiver already has, so only changed
+ * parts of file are transferred (i.e. appended lines of logs, or modified pages of databases).
+ * <p>Update of file proceeds as follows:
+ * <p>- sender announces file with {@link UpdateFile},
+ * <p>- receiver splits its copy into blocks, and replies with {@link FileSignature}, followed by
+ *      {@link Signature} on data channel, containing weak (rolling) and strong checksum of every block,
+ * <p>- sender slides window of block size over file, byte by byte, looking up weak checksum of window
+ *      in signature, and confirming match with strong checksum; it replies with {@link FileDelta},
+ *      followed by delta on data channel, consisting of references to receiver's blocks and literal
+ *      data, that did not match any block,
+ * <p>- receiver rebuilds file from its copy and delta, and verifies it against
+ *      {@link UpdateFile#checksum() checksum of update}; if it does not match, file has to be
+ *      sent whole, with {@link ChunkedTransfer}.
+ * <p>Delta has format:
+ * <blockquote><code>
+ *     ($COPY$ $FIRST_BLOCK$ $BLOCK_COUNT$ | $DATA$ $LENGTH$ $BYTES$)... $END$ $SIZE$
+ * </code></blockquote>
+ * where adjacent matched blocks are sent as single reference.
+ * <br><br>
+ * <p>Weak checksum is Adler-32 like sum, that can be rolled over by one byte in constant time:
+ * <blockquote><code>
+ *     a = &Sigma; x<sub>i</sub>, b = &Sigma; (L - i) x<sub>i</sub>, weak = (a mod 2<sup>16</sup>) + 2<sup>16</sup> (b mod 2<sup>16</sup>)
+ * </code></blockquote>
+ * Strong checksum is prefix of {@link Configuration#CHECKSUM_ALGORITHM configured digest}.
+ * @see Configuration#DELTA_SYNC
+ */
+public final class DeltaTransfer {
+
+    /**
+     * Suffix of file that updated file is rebuilt into.
+     */
+    public static final @NotNull String PATCH_SUFFIX = ".po2patch";
+
+    private static final int MIN_BLOCK_SIZE = 1 << 10;
+    private static final int MAX_BLOCK_SIZE = 1 << 17;
+    private static final int MAX_BLOCK_COUNT = 1 << 24;
+    private static final int STRONG_LENGTH = 16;
+    /**
+     * Number of bytes of file, that are buffered while delta is generated.
+     */
+    private static final int WINDOW = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte END = 0;
+    private static final byte COPY = 1;
+    private static final byte DATA = 2;
+
+    private DeltaTransfer() {  }
+
+    /**
+     * @param size the size of receiver's copy of file, in bytes
+     * @return {@code true} if update of file should be sent as delta against copy of specified size
+     * @see Configuration#DELTA_SYNC
+     */
+    public static boolean isApplicable(long size) {
+        return Configuration.DELTA_SYNC && size >= MIN_BLOCK_SIZE;
+    }
+
+    /**
+     * Chooses size of blocks as square root of file size (rounded down to power of two), so
+     * both number of blocks in signature and number of bytes of each unmatched block are small.
+     * @param size the size of file, in bytes
+     * @return the number of bytes in every block of file, except last one
+     */
+    public static int blockSize(long size) {
+        long root = (long) Math.sqrt((double) size);
+        return Integer.highestOneBit((int) Math.min(Math.max(root, MIN_BLOCK_SIZE), MAX_BLOCK_SIZE));
+    }
+
+    /**
+     * Calculates signature of {@code file}, that is receiver's current copy of updated file.
+     * @param file the file to sign
+     * @return the signature of file
+     * @throws IOException if an I/O error occurs while reading file
+     */
+    public static @NotNull Signature signature(@NotNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            long size = channel.size();
+            int blockSize = blockSize(size);
+            long blockCount = (size + blockSize - 1) / blockSize;
+            if (blockCount > MAX_BLOCK_COUNT) throw new IOException("File " + file + " is too large to be signed");
+            MessageDigest digest = FileTransfer.digest();
+            int strongLength = Math.min(STRONG_LENGTH, digest.digest().length);
+            int[] weak = new int[(int) blockCount];
+            byte[] strong = new byte[(int) blockCount * strongLength];
+            byte[] buffer = new byte[Math.max(WINDOW, blockSize)];
+            int block = 0;
+            for (long position = 0; position < size; ) {
+                int read = read(channel, buffer, 0, position);
+                if (read == 0) throw new EOFException("File " + file + " ended before it was signed");
+                for (int offset = 0; offset < read; offset += blockSize, block++) {
+                    int length = Math.min(blockSize, read - offset);
+                    weak[block] = weak(buffer, offset, length);
+                    digest.update(buffer, offset, length);
+                    System.arraycopy(digest.digest(), 0, strong, block * strongLength, strongLength);
+                }
+                position += read;
+            }
+            return new Signature(size, blockSize, strongLength, weak, strong);
+        }
+    }
+
+    /**
+     * Sends delta of {@code file} against signed copy of receiver to {@code target}.
+     * @param file the updated file
+     * @param basis the signature of receiver's copy
+     * @param target the channel to send delta to
+     * @return the number of bytes of file, that were sent as literal data
+     * @throws IOException if an I/O error occurs while reading file or writing to {@code target}
+     */
+    public static long delta(@NotNull File file,
+                             @NotNull Signature basis,
+                             @NotNull WritableByteChannel target) throws IOException {
+        int blockSize = basis.blockSize;
+        Index index = new Index(basis);
+        Output output = new Output(target);
+        MessageDigest digest = FileTransfer.digest();
+        byte[] strong = new byte[basis.strongLength];
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            byte[] buffer = new byte[Math.max(WINDOW, blockSize * 4)];
+            long position = 0;
+            int start = 0, window = 0, limit = 0;
+            int a = 0, b = 0;
+            boolean eof = false, rolling = false;
+            int expected = -1;
+            while (true) {
+                if (limit - window < blockSize && !eof) {
+                    output.data(buffer, start, window - start);
+                    System.arraycopy(buffer, window, buffer, 0, limit - window);
+                    limit -= window;
+                    start = window = 0;
+                    int read = read(channel, buffer, limit, position);
+                    position += read;
+                    limit += read;
+                    eof = limit < buffer.length;
+                    continue;
+                }
+                if (limit - window < blockSize) break;
+                if (index.isEmpty()) {
+                    window = limit;
+                    continue;
+                }
+                if (!rolling) {
+                    a = b = 0;
+                    for (int i = window; i < window + blockSize; i++) {
+                        a += buffer[i] & 0xff;
+                        b += a;
+                    }
+                    rolling = true;
+                }
+                int weak = (a & 0xffff) | (b << 16);
+                int block = index.find(weak, expected, buffer, window, digest, strong);
+                if (block >= 0) {
+                    output.data(buffer, start, window - start);
+                    output.copy(block);
+                    expected = block + 1;
+                    window += blockSize;
+                    start = window;
+                    rolling = false;
+                    continue;
+                }
+                if (window + blockSize < limit) {
+                    int out = buffer[window] & 0xff;
+                    a += (buffer[window + blockSize] & 0xff) - out;
+                    b += a - blockSize * out;
+                } else {
+                    rolling = false;
+                }
+                window++;
+                if (window - start >= BUFFER_SIZE) {
+                    output.data(buffer, start, window - start);
+                    start = window;
+                }
+            }
+            output.data(buffer, start, limit - start);
+            output.end(position);
+        }
+        return output.literal;
+    }
+
+    /**
+     * Rebuilds updated file from its current copy and delta received from {@code source}, and
+     * replaces {@code file} with it, if it matches {@code update}. Checksum of rebuilt file is
+     * {@link FileManager#getChecksumCache() cached}, so it is not calculated again.
+     * @param file the receiver's copy of file, that was signed
+     * @param basis the signature of {@code file}, that was sent to sender
+     * @param source the channel to receive delta from
+     * @param update the message announcing update of file
+     * @return the checksum of rebuilt file
+     * @throws ProtocolException if delta is malformed
+     * @throws IOException if rebuilt file does not match {@code update} (it has to be sent whole then),
+     *                     or an I/O error occurs while reading from {@code source} or writing file
+     */
+    public static @NotNull String patch(@NotNull File file,
+                                        @NotNull Signature basis,
+                                        @NotNull ReadableByteChannel source,
+                                        @NotNull ModFileMsg update) throws IOException {
+        File patch = new File(file.getPath() + PATCH_SUFFIX);
+        Input input = new Input(source);
+        String checksum;
+        try (FileChannel current = FileChannel.open(file.toPath(), READ);
+             FileChannel target = FileChannel.open(patch.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            if (current.size() != basis.size) throw new IOException("File " + file + " changed since it was signed");
+            long written = 0;
+            read: while (true) {
+                byte op = input.get(1).get();
+                switch (op) {
+                    case COPY: {
+                        ByteBuffer fields = input.get(8);
+                        int first = fields.getInt();
+                        int count = fields.getInt();
+                        if (first < 0 || count <= 0 || (long) first + count > basis.getBlockCount())
+                            throw new ProtocolException("Delta references blocks " + first + "+" + count +
+                                                        " out of " + basis.getBlockCount());
+                        long from = (long) first * basis.blockSize;
+                        long length = Math.min((long) count * basis.blockSize, basis.size - from);
+                        for (long copied = 0; copied < length; ) {
+                            long transferred = current.transferTo(from + copied, length - copied, target);
+                            if (transferred <= 0) throw new IOException("File " + file + " changed since it was signed");
+                            copied += transferred;
+                        }
+                        written += length;
+                        break;
+                    }
+                    case DATA: {
+                        int length = input.get(4).getInt();
+                        if (length < 0) throw new ProtocolException("Malformed length of delta data: " + length);
+                        input.expect(length);
+                        input.copy(length, target);
+                        written += length;
+                        break;
+                    }
+                    case END: {
+                        long size = input.get(8).getLong();
+                        if (size != written) throw new ProtocolException("Delta declared " + size + " bytes, " +
+                                                                         "contained: " + written);
+                        break read;
+                    }
+                    default:
+                        throw new ProtocolException("Unsupported delta operation: " + op);
+                }
+                if (written > update.size())
+                    throw new ProtocolException("Delta exceeds size of update: " + update.size());
+            }
+            checksum = written == update.size() ? checksum(target, written) : null;
+        } catch (IOException e) {
+            Files.deleteIfExists(patch.toPath());
+            throw e;
+        }
+        if (checksum == null || !checksum.equals(update.checksum())) {
+            Files.deleteIfExists(patch.toPath());
+            throw new IOException("File " + file + " rebuilt from delta does not match update, " +
+                                  "it has to be sent whole");
+        }
+        try {
+            Files.move(patch.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(patch.toPath(), file.toPath(), REPLACE_EXISTING);
+        }
+        FileManager.getChecksumCache().put(file, checksum);
+        return checksum;
+    }
+
+    /**
+     * @return weak checksum of {@code length} bytes of {@code buffer}, starting at {@code offset}
+     */
+    static int weak(byte[] buffer, int offset, int length) {
+        int a = 0, b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += buffer[i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static @NotNull String checksum(@NotNull FileChannel channel, long size) throws IOException {
+        MessageDigest digest = FileTransfer.digest();
+        for (long region = 0; region < size; region += FileTransfer.REGION) {
+            FileTransfer.digest(channel, region, Math.min(FileTransfer.REGION, size - region), digest);
+        }
+        return FileManager.toHex(digest.digest());
+    }
+
+    /**
+     * Reads file into {@code buffer}, starting at {@code offset}, until buffer is full or file ends.
+     * @return the number of read bytes
+     */
+    private static int read(@NotNull FileChannel channel, byte[] buffer, int offset, long position) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer, offset, buffer.length - offset);
+        while (wrapped.hasRemaining()) {
+            int read = channel.read(wrapped, position + wrapped.position() - offset);
+            if (read < 0) break;
+        }
+        return wrapped.position() - offset;
+    }
+
+    /**
+     * Checksums of blocks of receiver's copy of file.
+     * <p>Signature has format:
+     * <blockquote><code>
+     *     $SIZE$ $BLOCK_SIZE$ $BLOCK_COUNT$ $STRONG_LENGTH$ ($WEAK$ $STRONG$)...
+     * </code></blockquote>
+     */
+    public static final class Signature {
+
+        private final long size;
+        private final int blockSize;
+        private final int strongLength;
+        private final int[] weak;
+        private final byte[] strong;
+
+        private Signature(long size, int blockSize, int strongLength, int[] weak, byte[] strong) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.strongLength = strongLength;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Reads signature announced by {@code message} from {@code source}.
+         * @param source the channel to receive signature from
+         * @param message the message announcing signature
+         * @return the received signature
+         * @throws ProtocolException if signature is malformed, or does not match {@code message}
+         * @throws IOException if an I/O error occurs while reading from {@code source}
+         */
+        public static @NotNull Signature read(@NotNull ReadableByteChannel source,
+                                              @NotNull FileSignature message) throws IOException {
+            Input input = new Input(source);
+            ByteBuffer header = input.get(17);
+            long size = header.getLong();
+            int blockSize = header.getInt();
+            int blockCount = header.getInt();
+            int strongLength = header.get();
+            if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE || blockCount < 0 || blockCount > MAX_BLOCK_COUNT ||
+                size < 0 || (size + blockSize - 1) / blockSize != blockCount ||
+                strongLength < 1 || strongLength > STRONG_LENGTH)
+                throw new ProtocolException("Malformed signature: " + size + " bytes, " + blockCount + " blocks of " +
+                                            blockSize + " bytes");
+            if (blockSize != message.blockSize() || blockCount != message.blockCount())
+                throw new ProtocolException("Signature does not match " + message);
+            int[] weak = new int[blockCount];
+            byte[] strong = new byte[blockCount * strongLength];
+            input.expect((long) blockCount * (4 + strongLength));
+            for (int block = 0; block < blockCount; block++) {
+                ByteBuffer entry = input.get(4 + strongLength);
+                weak[block] = entry.getInt();
+                entry.get(strong, block * strongLength, strongLength);
+            }
+            return new Signature(size, blockSize, strongLength, weak, strong);
+        }
+
+        /**
+         * Sends signature to {@code target}.
+         * @param target the channel to send signature to
+         * @throws IOException if an I/O error occurs while writing to {@code target}
+         */
+        public void write(@NotNull WritableByteChannel target) throws IOException {
+            Output output = new Output(target);
+            ByteBuffer buffer = output.reserve(17);
+            buffer.putLong(size).putInt(blockSize).putInt(weak.length).put((byte) strongLength);
+            for (int block = 0; block < weak.length; block++) {
+                output.reserve(4 + strongLength).putInt(weak[block]).put(strong, block * strongLength, strongLength);
+            }
+            output.flush();
+        }
+
+        /**
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         * @return the message announcing this signature
+         */
+        public @NotNull FileSignature message(@NotNull String user, @NotNull String file) {
+            return new FileSignature(user, file, (long) blockSize, (long) weak.length);
+        }
+
+        /** @return the size of signed file, in bytes */
+        public long getSize() { return this.size; }
+
+        /** @return the number of bytes in every block, except last one */
+        public int getBlockSize() { return this.blockSize; }
+
+        /** @return the number of signed blocks */
+        public int getBlockCount() { return this.weak.length; }
+    }
+
+    /**
+     * Hash table of full blocks of signature, by their weak checksum.
+     */
+    private static final class Index {
+
+        private final @NotNull Signature signature;
+        private final int[] heads;
+        private final int[] next;
+        private final int shift;
+
+        private Index(@NotNull Signature signature) {
+            this.signature = signature;
+            int blocks = (int) (signature.size / signature.blockSize);
+            int capacity = Math.max(Integer.highestOneBit(Math.max(blocks, 1)) << 1, 2);
+            this.heads = new int[capacity];
+            this.next = new int[blocks];
+            this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+            for (int block = blocks - 1; block >= 0; block--) {
+                int bucket = bucket(signature.weak[block]);
+                next[block] = heads[bucket];
+                heads[bucket] = block + 1;
+            }
+        }
+
+        private boolean isEmpty() {
+            return next.length == 0;
+        }
+
+        /**
+         * Finds block, that has same weak and strong checksum as window of {@code buffer}, preferring
+         * {@code expected} block, so adjacent blocks are sent as single reference.
+         * @return the index of matching block, {@code -1} if no block matches
+         */
+        private int find(int weak, int expected, byte[] buffer, int window,
+                         @NotNull MessageDigest digest, byte[] strong) {
+            int candidate = heads[bucket(weak)];
+            if (candidate == 0) return -1;
+            boolean digested = false;
+            if (expected >= 0 && expected < next.length && signature.weak[expected] == weak) {
+                digest(buffer, window, digest, strong);
+                digested = true;
+                if (matches(expected, strong)) return expected;
+            }
+            for (; candidate != 0; candidate = next[candidate - 1]) {
+                int block = candidate - 1;
+                if (signature.weak[block] != weak) continue;
+                if (!digested) {
+                    digest(buffer, window, digest, strong);
+                    digested = true;
+                }
+                if (matches(block, strong)) return block;
+            }
+            return -1;
+        }
+
+        private void digest(byte[] buffer, int window, @NotNull MessageDigest digest, byte[] strong) {
+            digest.update(buffer, window, signature.blockSize);
+            System.arraycopy(digest.digest(), 0, strong, 0, strong.length);
+        }
+
+        private boolean matches(int block, byte[] strong) {
+            int offset = block * signature.strongLength;
+            for (int i = 0; i < strong.length; i++) {
+                if (signature.strong[offset + i] != strong[i]) return false;
+            }
+            return true;
+        }
+
+        private int bucket(int weak) {
+            return (weak * 0x9E3779B1) >>> shift;
+        }
+    }
+
+    /**
+     * Buffered writer of signature and delta, that merges references to adjacent blocks.
+     */
+    private static final class Output {
+
+        private final @NotNull WritableByteChannel target;
+        private final @NotNull ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private int first = -1;
+        private int count;
+        private long literal;
+
+        private Output(@NotNull WritableByteChannel target) {
+            this.target = target;
+        }
+
+        private void copy(int block) throws IOException {
+            if (first >= 0 && first + count == block) {
+                count++;
+                return;
+            }
+            flushCopy();
+            first = block;
+            count = 1;
+        }
+
+        private void data(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return;
+            flushCopy();
+            reserve(5).put(DATA).putInt(length);
+            literal += length;
+            if (length <= buffer.remaining()) {
+                buffer.put(bytes, offset, length);
+                return;
+            }
+            flush();
+            write(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        private void end(long size) throws IOException {
+            flushCopy();
+            reserve(9).put(END).putLong(size);
+            flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (first < 0) return;
+            reserve(9).put(COPY).putInt(first).putInt(count);
+            first = -1;
+        }
+
+        private @NotNull ByteBuffer reserve(int length) throws IOException {
+            if (buffer.remaining() < length) flush();
+            return buffer;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(@NotNull ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) target.write(bytes);
+        }
+    }
+
+    /**
+     * Buffered reader of signature and delta.
+     * <p>Data channel is shared with following transfers, so bytes are read ahead only if they are
+     * {@link #expect(long) known} to belong to signature or delta; otherwise only requested bytes are read.
+     */
+    private static final class Input {
+
+        private final @NotNull ReadableByteChannel source;
+        private final @NotNull ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        /**
+         * Number of bytes, that belong to signature or delta, and were not read from source yet.
+         */
+        private long unread;
+
+        private Input(@NotNull ReadableByteChannel source) {
+            this.source = source;
+            buffer.limit(0);
+        }
+
+        /**
+         * Declares that next {@code length} bytes, counting from position of buffer, belong to
+         * signature or delta, so they can be read ahead.
+         */
+        private void expect(long length) {
+            unread = Math.max(unread, length - buffer.remaining());
+        }
+
+        /**
+         * @return the buffer containing at least {@code length} bytes at its position
+         */
+        private @NotNull ByteBuffer get(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                buffer.compact();
+                unread = Math.max(unread, length - buffer.position());
+                buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + unread));
+                while (buffer.position() < length) {
+                    int read = source.read(buffer);
+                    if (read < 0) throw new EOFException("Channel ended before delta was received");
+                    unread -= read;
+                }
+                buffer.flip();
+            }
+            return buffer;
+        }
+
+        private void copy(long length, @NotNull WritableByteChannel target) throws IOException {
+            while (length > 0) {
+                ByteBuffer bytes = get(1).duplicate();
+                int count = (int) Math.min(bytes.remaining(), length);
+                bytes.limit(bytes.position() + count);
+                while (bytes.hasRemaining()) target.write(bytes);
+                buffer.position(buffer.position() + count);
+                length -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Transfers contents of files through binary data channel (i.e. socket), separate from channel
+ * used to exchange {@link Messages}, so file bytes are not sent as tagged text parts.
+ * <p>Files are sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)} and received
+ * with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, so (on platforms that
+ * support it) bytes are moved between file and socket by operating system, without being copied
+ * into Java heap. Checksum is calculated in same pass - region of file is memory-mapped and digested
+ * right before it is sent, or right after it is received, while it is still in page cache.
+ * Small regions are digested through direct buffer instead, as mapping them costs more than reading.
+ * <br><br>
+ * <p>Channels are expected to be in blocking mode.
+ */
+public final class FileTransfer {
+
+    /**
+     * Suffix of file, that contents are received into, before it replaces received file.
+     */
+    public static final @NotNull String RECEIVE_SUFFIX = ".po2recv";
+    /**
+     * Size of region of file, that is transferred and digested at once.
+     */
+    static final long REGION = 1L << 26;
+    /**
+     * Size of region, starting from which region is memory-mapped to be digested.
+     */
+    private static final long MAP_THRESHOLD = 1L << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private FileTransfer() {  }
+
+    /**
+     * Sends whole contents of {@code file} to {@code target}.
+     * @param file the file to send
+     * @param target the channel to send contents to
+     * @return the checksum of sent contents, in hex format
+     * @throws IOException if an I/O error occurs while reading file or writing to {@code target}
+     * @see Configuration#CHECKSUM_ALGORITHM
+     */
+    public static @NotNull String send(@NotNull File file, @NotNull WritableByteChannel target) throws IOException {
+        MessageDigest digest = digest();
+        try (FileChannel source = FileChannel.open(file.toPath(), READ)) {
+            send(source, 0, source.size(), target, digest);
+        }
+        return FileManager.toHex(digest.digest());
+    }
+
+    /**
+     * Sends {@code count} bytes of {@code source}, starting at {@code position}, to {@code target}.
+     * @param source the channel of file to send
+     * @param position the position in file of first sent byte
+     * @param count the number of bytes to send
+     * @param target the channel to send contents to
+     * @param digest the digest to update with sent bytes, if {@code null} then sent bytes are not digested
+     * @throws IOException if an I/O error occurs while reading file or writing to {@code target}
+     * @throws EOFException if file ends before {@code count} bytes are sent
+     */
+    public static void send(@NotNull FileChannel source,
+                            long position,
+                            long count,
+                            @NotNull WritableByteChannel target,
+                            @Nullable MessageDigest digest) throws IOException {
+        long end = position + count;
+        for (long region = position; region < end; region += REGION) {
+            long length = Math.min(REGION, end - region);
+            if (digest != null) digest(source, region, length, digest);
+            long sent = 0;
+            while (sent < length) {
+                long transferred = source.transferTo(region + sent, length - sent, target);
+                if (transferred <= 0) {
+                    if (region + sent >= source.size()) throw new EOFException("File ended before it was sent");
+                    continue;
+                }
+                sent += transferred;
+            }
+        }
+    }
+
+    /**
+     * Receives {@code size} bytes from {@code source}, replacing contents of {@code file}. Checksum
+     * of received file is {@link FileManager#getChecksumCache() cached}, so it is not calculated again.
+     * <p>Contents are received into sibling file, that atomically replaces {@code file} once all bytes
+     * are received, so {@code file} is never written in place - it may be hard link shared with other
+     * files (i.e. by content store of server), and is never observed partially written.
+     * @param source the channel to receive contents from
+     * @param file the file to write contents into, it is created if it does not exist
+     * @param size the number of bytes to receive
+     * @return the checksum of received contents, in hex format
+     * @throws IOException if an I/O error occurs while reading from {@code source} or writing file
+     * @throws EOFException if {@code source} ends before {@code size} bytes are received
+     * @see Configuration#CHECKSUM_ALGORITHM
+     */
+    public static @NotNull String receive(@NotNull ReadableByteChannel source,
+                                          @NotNull File file,
+                                          long size) throws IOException {
+        MessageDigest digest = digest();
+        Path received = file.toPath().resolveSibling(file.getName() + RECEIVE_SUFFIX);
+        try {
+            try (FileChannel target = FileChannel.open(received, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+                receive(source, target, 0, size, digest);
+            }
+            try {
+                Files.move(received, file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(received, file.toPath(), REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(received);
+        }
+        String checksum = FileManager.toHex(digest.digest());
+        FileManager.getChecksumCache().put(file, checksum);
+        return checksum;
+    }
+
+    /**
+     * Receives {@code count} bytes from {@code source}, writing them into {@code target} starting
+     * at {@code position}.
+     * @param source the channel to receive contents from
+     * @param target the channel of file to write contents into, opened for reading and writing
+     * @param position the position in file of first received byte
+     * @param count the number of bytes to receive
+     * @param digest the digest to update with received bytes
+     * @throws IOException if an I/O error occurs while reading from {@code source} or writing file
+     * @throws EOFException if {@code source} ends before {@code count} bytes are received
+     */
+    public static void receive(@NotNull ReadableByteChannel source,
+                               @NotNull FileChannel target,
+                               long position,
+                               long count,
+                               @NotNull MessageDigest digest) throws IOException {
+        long end = position + count;
+        for (long region = position; region < end; region += REGION) {
+            long length = Math.min(REGION, end - region);
+            long received = 0;
+            while (received < length) {
+                long transferred = target.transferFrom(source, region + received, length - received);
+                if (transferred <= 0) throw new EOFException("Channel ended before file was received");
+                received += transferred;
+            }
+            digest(target, region, length, digest);
+        }
+    }
+
+    /**
+     * Updates {@code digest} with {@code length} bytes of file, starting at {@code position}.
+     * Length should not exceed {@link #REGION}.
+     */
+    static void digest(@NotNull FileChannel channel,
+                       long position,
+                       long length,
+                       @NotNull MessageDigest digest) throws IOException {
+        if (length >= MAP_THRESHOLD) {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            digest.update(region);
+            return;
+        }
+        ByteBuffer buffer = buffers.get();
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("File ended before it was digested");
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * @return digest of {@link Configuration#CHECKSUM_ALGORITHM configured algorithm}, owned by current thread
+     */
+    static @NotNull MessageDigest digest() throws IOException {
+        try {
+            return FileManager.getDigest(Configuration.CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
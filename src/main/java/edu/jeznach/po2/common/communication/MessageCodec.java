@@ -0,0 +1,361 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.Messages.*;
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes {@link Msg messages} into length-prefixed frames and decodes them back, directly
+ * from/to {@link ByteBuffer ByteBuffers}.
+ * <p>Every frame has format:
+ * <blockquote><code>
+ *     $LENGTH$ $TYPE$ $FIELDS$...
+ * </code></blockquote>
+ * where:
+ * <p>- $LENGTH$ is 4-byte big-endian number of bytes that follow it,
+ * <p>- $TYPE$ is single byte identifying message type ({@code 0} for text frame),
+ * <p>- strings (users and paths) are written as 2-byte length followed by UTF-8 bytes, so they
+ *      can contain spaces,
+ * <p>- sizes and offsets are written as 8-byte numbers,
+ * <p>- checksums are written as 1-byte length followed by raw bytes, rather than hex strings
+ *      ({@code 0} length is followed by checksum written as string, if it is not lowercase hex).
+ * <p>Text frame contains {@link Msg#toString() text form} of message, encoded in UTF-8, and is used
+ * for debugging (it cannot contain paths with spaces, as text form is split on spaces).
+ * Frames of both formats are always decoded, regardless of format used to encode.
+ * <br><br>
+ * <p>Instances of this class are immutable and thread-safe.
+ * @see Messages
+ */
+public class MessageCodec {
+
+    /**
+     * Number of bytes that precede frame contents.
+     */
+    public static final int HEADER_SIZE = 4;
+    /**
+     * Maximal length of frame, frames that declare greater length are rejected.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private static final byte TEXT = 0;
+    private static final byte CREATE_FILE = 1;
+    private static final byte UPDATE_FILE = 2;
+    private static final byte DELETE_FILE = 3;
+    private static final byte MOVE_FILE = 4;
+    private static final byte SHARE_FILE = 5;
+    private static final byte UNSHARE_FILE = 6;
+    private static final byte REQUEST_FILE = 7;
+    private static final byte REQUEST_MAPPING = 8;
+    private static final byte FILE_CHUNK = 9;
+    private static final byte RESUME_FILE = 10;
+    private static final byte FILE_SIGNATURE = 11;
+    private static final byte FILE_DELTA = 12;
+
+    private final @NotNull Format format;
+
+    /**
+     * Creates new codec, that encodes messages in {@link Configuration#MESSAGE_FORMAT configured format}.
+     */
+    public MessageCodec() {
+        this(Format.valueOf(Configuration.MESSAGE_FORMAT));
+    }
+
+    /**
+     * Creates new codec, that encodes messages in specified format.
+     * @param format the format of encoded frames
+     */
+    public MessageCodec(@NotNull Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the format of encoded frames
+     */
+    public @NotNull Format getFormat() { return this.format; }
+
+    /**
+     * Writes {@code message} as single frame, starting at current position of {@code buffer}.
+     * If frame does not fit in buffer, position of buffer is not changed.
+     * @param message the message to encode
+     * @param buffer the buffer to write frame into
+     * @throws BufferOverflowException if there is not enough space remaining in {@code buffer}
+     * @throws IllegalArgumentException if {@code message} type is not supported, or its strings are too long
+     */
+    public void encode(@NotNull Msg message, @NotNull ByteBuffer buffer) {
+        if (buffer.remaining() <= HEADER_SIZE) throw new BufferOverflowException();
+        int start = buffer.position();
+        try {
+            buffer.position(start + HEADER_SIZE);
+            if (format == Format.text) {
+                buffer.put(TEXT);
+                putUtf8(buffer, message.toString());
+            } else {
+                putFields(message, buffer);
+            }
+            int length = buffer.position() - start - HEADER_SIZE;
+            if (length > MAX_FRAME_LENGTH) throw new IllegalArgumentException("Frame too long: " + length);
+            buffer.putInt(start, length);
+        } catch (BufferOverflowException | IllegalArgumentException e) {
+            buffer.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads single frame, starting at current position of {@code buffer}. If buffer does not contain
+     * whole frame yet, its position is not changed, so decoding can be retried once more bytes are read.
+     * @param buffer the buffer to read frame from
+     * @return the decoded message, {@code null} if {@code buffer} does not contain whole frame
+     * @throws ProtocolException if frame is malformed or contains unsupported message, frame is skipped
+     *                           (unless its length is malformed)
+     */
+    public @Nullable Msg decode(@NotNull ByteBuffer buffer) throws ProtocolException {
+        int length = frameLength(buffer);
+        if (length < 0) return null;
+        int start = buffer.position() + HEADER_SIZE;
+        int end = start + length;
+        int limit = buffer.limit();
+        buffer.position(start).limit(end);
+        try {
+            byte type = buffer.get();
+            Msg message = type == TEXT ? parseText(buffer) : getFields(type, buffer);
+            if (buffer.hasRemaining()) throw new ProtocolException("Frame contains " + buffer.remaining() +
+                                                                   " unexpected bytes");
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Frame is truncated");
+        } finally {
+            buffer.limit(limit).position(end);
+        }
+    }
+
+    /**
+     * Checks, without consuming, if {@code buffer} contains whole frame at its current position.
+     * @param buffer the buffer to check
+     * @return the length of frame contents, {@code -1} if {@code buffer} does not contain whole frame
+     * @throws ProtocolException if declared length of frame is malformed
+     */
+    public static int frameLength(@NotNull ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < HEADER_SIZE) return -1;
+        int length = buffer.getInt(buffer.position());
+        if (length < 1 || length > MAX_FRAME_LENGTH) throw new ProtocolException("Malformed frame length: " + length);
+        return buffer.remaining() - HEADER_SIZE < length ? -1 : length;
+    }
+
+    private static void putFields(@NotNull Msg message, @NotNull ByteBuffer buffer) {
+        if (message instanceof CreateFile || message instanceof UpdateFile) {
+            ModFileMsg modFileMsg = (ModFileMsg) message;
+            buffer.put(message instanceof CreateFile ? CREATE_FILE : UPDATE_FILE);
+            putString(buffer, modFileMsg.user());
+            putString(buffer, modFileMsg.file());
+            buffer.putLong(modFileMsg.size());
+            putChecksum(buffer, modFileMsg.checksum());
+        } else if (message instanceof DeleteFile || message instanceof RequestFile || message instanceof FileDelta) {
+            FileMsg fileMsg = (FileMsg) message;
+            buffer.put(message instanceof DeleteFile ? DELETE_FILE :
+                       message instanceof RequestFile ? REQUEST_FILE : FILE_DELTA);
+            putString(buffer, fileMsg.user());
+            putString(buffer, fileMsg.file());
+        } else if (message instanceof MoveFile) {
+            MoveFile moveFile = (MoveFile) message;
+            buffer.put(MOVE_FILE);
+            putString(buffer, moveFile.user());
+            putString(buffer, moveFile.file());
+            putString(buffer, moveFile.target());
+        } else if (message instanceof ShareFileMsg) {
+            ShareFileMsg shareFileMsg = (ShareFileMsg) message;
+            buffer.put(message instanceof ShareFile ? SHARE_FILE : UNSHARE_FILE);
+            putString(buffer, shareFileMsg.user());
+            putString(buffer, shareFileMsg.file());
+            putString(buffer, shareFileMsg.receiver());
+        } else if (message instanceof FileChunk) {
+            FileChunk fileChunk = (FileChunk) message;
+            buffer.put(FILE_CHUNK);
+            putString(buffer, fileChunk.user());
+            putString(buffer, fileChunk.file());
+            buffer.putLong(fileChunk.offset());
+            buffer.putLong(fileChunk.length());
+            putChecksum(buffer, fileChunk.checksum());
+        } else if (message instanceof ResumeFile) {
+            ResumeFile resumeFile = (ResumeFile) message;
+            buffer.put(RESUME_FILE);
+            putString(buffer, resumeFile.user());
+            putString(buffer, resumeFile.file());
+            buffer.putLong(resumeFile.offset());
+        } else if (message instanceof FileSignature) {
+            FileSignature fileSignature = (FileSignature) message;
+            buffer.put(FILE_SIGNATURE);
+            putString(buffer, fileSignature.user());
+            putString(buffer, fileSignature.file());
+            buffer.putLong(fileSignature.blockSize());
+            buffer.putLong(fileSignature.blockCount());
+        } else if (message instanceof RequestMapping) {
+            buffer.put(REQUEST_MAPPING);
+            putString(buffer, message.user());
+        } else {
+            throw new IllegalArgumentException("Unsupported message: " + message.getClass().getSimpleName());
+        }
+    }
+
+    private static @NotNull Msg getFields(byte type, @NotNull ByteBuffer buffer) throws ProtocolException {
+        switch (type) {
+            case CREATE_FILE:
+                return new CreateFile(getString(buffer), getString(buffer), buffer.getLong(), getChecksum(buffer));
+            case UPDATE_FILE:
+                return new UpdateFile(getString(buffer), getString(buffer), buffer.getLong(), getChecksum(buffer));
+            case DELETE_FILE:
+                return new DeleteFile(getString(buffer), getString(buffer));
+            case MOVE_FILE:
+                return new MoveFile(getString(buffer), getString(buffer), getString(buffer));
+            case SHARE_FILE:
+                return new ShareFile(getString(buffer), getString(buffer), getString(buffer));
+            case UNSHARE_FILE:
+                return new UnshareFile(getString(buffer), getString(buffer), getString(buffer));
+            case REQUEST_FILE:
+                return new RequestFile(getString(buffer), getString(buffer));
+            case REQUEST_MAPPING:
+                return new RequestMapping(getString(buffer));
+            case FILE_CHUNK:
+                return new FileChunk(getString(buffer), getString(buffer), buffer.getLong(), buffer.getLong(),
+                                     getChecksum(buffer));
+            case RESUME_FILE:
+                return new ResumeFile(getString(buffer), getString(buffer), buffer.getLong());
+            case FILE_SIGNATURE:
+                return new FileSignature(getString(buffer), getString(buffer), buffer.getLong(), buffer.getLong());
+            case FILE_DELTA:
+                return new FileDelta(getString(buffer), getString(buffer));
+            default:
+                throw new ProtocolException("Unsupported message type: " + type);
+        }
+    }
+
+    private static @NotNull Msg parseText(@NotNull ByteBuffer buffer) throws ProtocolException {
+        String text = getUtf8(buffer, buffer.remaining());
+        Msg message;
+        try {
+            message = Messages.parseMessage(text);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+        if (message == null) throw new ProtocolException("Unsupported message: " + text);
+        return message;
+    }
+
+    private static void putString(@NotNull ByteBuffer buffer, @NotNull String value) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) throw new BufferOverflowException();
+        buffer.position(start + 2);
+        putUtf8(buffer, value);
+        int length = buffer.position() - start - 2;
+        if (length > 0xFFFF) throw new IllegalArgumentException("String too long: " + length);
+        buffer.putShort(start, (short) length);
+    }
+
+    private static @NotNull String getString(@NotNull ByteBuffer buffer) {
+        return getUtf8(buffer, buffer.getShort() & 0xFFFF);
+    }
+
+    /**
+     * Writes {@code value} in UTF-8, without encoding it into intermediate array.
+     * Unpaired surrogates are written as {@code '?'}.
+     */
+    private static void putUtf8(@NotNull ByteBuffer buffer, @NotNull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+                    Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer.put((byte) (0xF0 | codePoint >> 18));
+                    buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                    buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                    buffer.put((byte) (0x80 | codePoint & 0x3F));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of UTF-8, decoding them directly from buffer (or from its array,
+     * if buffer is not direct).
+     */
+    private static @NotNull String getUtf8(@NotNull ByteBuffer buffer, int length) {
+        if (buffer.remaining() < length) throw new BufferUnderflowException();
+        int start = buffer.position();
+        if (buffer.hasArray()) {
+            buffer.position(start + length);
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(start + i);
+            if (b < 0) {
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.limit(start + length);
+                buffer.position(start + length);
+                return StandardCharsets.UTF_8.decode(bytes).toString();
+            }
+            chars[i] = (char) b;
+        }
+        buffer.position(start + length);
+        return new String(chars);
+    }
+
+    private static void putChecksum(@NotNull ByteBuffer buffer, @NotNull String checksum) {
+        if (!isLowercaseHex(checksum) || checksum.length() / 2 > 0xFF) {
+            buffer.put((byte) 0);
+            putString(buffer, checksum);
+            return;
+        }
+        buffer.put((byte) (checksum.length() / 2));
+        for (int i = 0; i < checksum.length(); i += 2) {
+            buffer.put((byte) (Character.digit(checksum.charAt(i), 16) << 4 |
+                               Character.digit(checksum.charAt(i + 1), 16)));
+        }
+    }
+
+    private static @NotNull String getChecksum(@NotNull ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        if (length == 0) return getString(buffer);
+        if (buffer.remaining() < length) throw new BufferUnderflowException();
+        byte[] checksum = new byte[length];
+        buffer.get(checksum);
+        return FileManager.toHex(checksum);
+    }
+
+    private static boolean isLowercaseHex(@NotNull String value) {
+        if (value.isEmpty() || value.length() % 2 != 0) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Represents format in which messages are framed.
+     */
+    public enum Format {
+        /** Compact binary fields */ binary,
+        /** Human readable text form of message, for debugging */ text
+    }
+}
@@ -8,6 +8,7 @@ import java.util.function.Function;
 
 /**
  * Contains objects that represents messages used in communication between client and server
+ * @see MessageCodec
  */
 public class Messages {
 
@@ -32,6 +33,21 @@ public class Messages {
             case DeleteFile.cmd:
                 parser = DeleteFile::parse;
                 break;
+            case MoveFile.cmd:
+                parser = MoveFile::parse;
+                break;
+            case FileChunk.cmd:
+                parser = FileChunk::parse;
+                break;
+            case ResumeFile.cmd:
+                parser = ResumeFile::parse;
+                break;
+            case FileSignature.cmd:
+                parser = FileSignature::parse;
+                break;
+            case FileDelta.cmd:
+                parser = FileDelta::parse;
+                break;
             case ShareFile.cmd:
                 parser = ShareFile::parse;
                 break;
@@ -52,6 +68,8 @@ public class Messages {
 
     /**
      * Flag used to indicate that sent bytes are part of file
+     * <p>Contents of files should rather be sent through separate data channel,
+     * with {@link FileTransfer}
      */
     public static final @NotNull String FILE_PART_FLAG = "P=";
 
@@ -287,6 +305,299 @@ public class Messages {
         }
     }
 
+    /**
+     * Command for moving (or renaming) existing file, without transferring its contents
+     * <blockquote><code>
+     *     $CMD$ $USER$ $FILE$ $TARGET$,
+     *     <br>i.e.: {@linkplain MoveFile MoveFile} User docs/sum.txt old/sum.txt
+     * </code></blockquote>
+     */
+    public static class MoveFile extends FileMsg {
+
+        public static final @NotNull String cmd = "MoveFile";
+
+        private @NotNull String user;
+        @Override public @NotNull String user() { return user; }
+
+        private @NotNull String file;
+        @Override public @NotNull String file() { return file; }
+
+        private @NotNull String target;
+        /**
+         * Path that file is moved to
+         * @return the new path to related file, relative to mapping node (user)
+         */
+        public @NotNull String target() { return target; }
+
+        /**
+         * Creates MoveFile command message
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         * @param target the new path to related file, relative to mapping node (user)
+         */
+        public MoveFile(@NotNull String user,
+                        @NotNull String file,
+                        @NotNull String target) {
+            this.user = user;
+            this.file = file;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", cmd, user, file, target);
+        }
+
+        protected static short argCount() { return 4; }
+
+        protected static @NotNull MoveFile parse(String message) {
+            String[] messageSplit = message.split(" ");
+            if (messageSplit.length != argCount())
+                throw wrongArgumentNumber(cmd, messageSplit.length, argCount());
+            return new MoveFile(messageSplit[1], messageSplit[2], messageSplit[3]);
+        }
+    }
+
+    /**
+     * Command announcing chunk of file contents, that follows it on data channel
+     * <blockquote><code>
+     *     $CMD$ $USER$ $FILE$ $OFFSET$ $LENGTH$ $CHECKSUM$,
+     *     <br>i.e.: {@linkplain FileChunk FileChunk} User docs/sum.txt 4194304 4194304 9f1c...0a2b
+     * </code></blockquote>
+     * @see ChunkedTransfer
+     */
+    public static class FileChunk extends FileMsg {
+
+        public static final @NotNull String cmd = "FileChunk";
+
+        private @NotNull String user;
+        @Override public @NotNull String user() { return user; }
+
+        private @NotNull String file;
+        @Override public @NotNull String file() { return file; }
+
+        private @NotNull Long offset;
+        /**
+         * Offset of chunk
+         * @return the position in file of first byte of chunk
+         */
+        public @NotNull Long offset() { return offset; }
+
+        private @NotNull Long length;
+        /**
+         * Length of chunk
+         * @return the number of bytes in chunk
+         */
+        public @NotNull Long length() { return length; }
+
+        private @NotNull String checksum;
+        /**
+         * Checksum of chunk
+         * @return the checksum of chunk contents
+         * @see Configuration#CHECKSUM_ALGORITHM
+         */
+        public @NotNull String checksum() { return checksum; }
+
+        /**
+         * Creates FileChunk command message
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         * @param offset the position in file of first byte of chunk
+         * @param length the number of bytes in chunk
+         * @param checksum the checksum of chunk contents
+         */
+        public FileChunk(@NotNull String user,
+                         @NotNull String file,
+                         @NotNull Long offset,
+                         @NotNull Long length,
+                         @NotNull String checksum) {
+            this.user = user;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", cmd, user, file, offset.toString(), length.toString(), checksum);
+        }
+
+        protected static short argCount() { return 6; }
+
+        protected static @NotNull FileChunk parse(String message) {
+            String[] messageSplit = message.split(" ");
+            if (messageSplit.length != argCount())
+                throw wrongArgumentNumber(cmd, messageSplit.length, argCount());
+            return new FileChunk(messageSplit[1], messageSplit[2], Long.parseLong(messageSplit[3]),
+                                 Long.parseLong(messageSplit[4]), messageSplit[5]);
+        }
+    }
+
+    /**
+     * Command requesting contents of file to be sent starting from offset, i.e. after transfer was
+     * interrupted, or chunk failed verification
+     * <blockquote><code>
+     *     $CMD$ $USER$ $FILE$ $OFFSET$,
+     *     <br>i.e.: {@linkplain ResumeFile ResumeFile} User docs/sum.txt 8388608
+     * </code></blockquote>
+     * @see ChunkedTransfer
+     */
+    public static class ResumeFile extends FileMsg {
+
+        public static final @NotNull String cmd = "ResumeFile";
+
+        private @NotNull String user;
+        @Override public @NotNull String user() { return user; }
+
+        private @NotNull String file;
+        @Override public @NotNull String file() { return file; }
+
+        private @NotNull Long offset;
+        /**
+         * Offset to resume from
+         * @return the position in file of first byte, that was not received yet
+         */
+        public @NotNull Long offset() { return offset; }
+
+        /**
+         * Creates ResumeFile command message
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         * @param offset the position in file of first byte, that was not received yet
+         */
+        public ResumeFile(@NotNull String user,
+                          @NotNull String file,
+                          @NotNull Long offset) {
+            this.user = user;
+            this.file = file;
+            this.offset = offset;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", cmd, user, file, offset.toString());
+        }
+
+        protected static short argCount() { return 4; }
+
+        protected static @NotNull ResumeFile parse(String message) {
+            String[] messageSplit = message.split(" ");
+            if (messageSplit.length != argCount())
+                throw wrongArgumentNumber(cmd, messageSplit.length, argCount());
+            return new ResumeFile(messageSplit[1], messageSplit[2], Long.parseLong(messageSplit[3]));
+        }
+    }
+
+    /**
+     * Command replying to {@link UpdateFile}, with signature of receiver's current copy of file,
+     * that follows on data channel, so only changed parts of file have to be sent
+     * <blockquote><code>
+     *     $CMD$ $USER$ $FILE$ $BLOCK_SIZE$ $BLOCK_COUNT$,
+     *     <br>i.e.: {@linkplain FileSignature FileSignature} User docs/sum.txt 2048 96
+     * </code></blockquote>
+     * @see DeltaTransfer
+     */
+    public static class FileSignature extends FileMsg {
+
+        public static final @NotNull String cmd = "FileSignature";
+
+        private @NotNull String user;
+        @Override public @NotNull String user() { return user; }
+
+        private @NotNull String file;
+        @Override public @NotNull String file() { return file; }
+
+        private @NotNull Long blockSize;
+        /**
+         * Size of signed blocks
+         * @return the number of bytes in every block, except last one
+         */
+        public @NotNull Long blockSize() { return blockSize; }
+
+        private @NotNull Long blockCount;
+        /**
+         * Number of signed blocks
+         * @return the number of blocks, that signature contains checksums of
+         */
+        public @NotNull Long blockCount() { return blockCount; }
+
+        /**
+         * Creates FileSignature command message
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         * @param blockSize the number of bytes in every block, except last one
+         * @param blockCount the number of blocks, that signature contains checksums of
+         */
+        public FileSignature(@NotNull String user,
+                             @NotNull String file,
+                             @NotNull Long blockSize,
+                             @NotNull Long blockCount) {
+            this.user = user;
+            this.file = file;
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", cmd, user, file, blockSize.toString(), blockCount.toString());
+        }
+
+        protected static short argCount() { return 5; }
+
+        protected static @NotNull FileSignature parse(String message) {
+            String[] messageSplit = message.split(" ");
+            if (messageSplit.length != argCount())
+                throw wrongArgumentNumber(cmd, messageSplit.length, argCount());
+            return new FileSignature(messageSplit[1], messageSplit[2], Long.parseLong(messageSplit[3]),
+                                     Long.parseLong(messageSplit[4]));
+        }
+    }
+
+    /**
+     * Command replying to {@link FileSignature}, with delta of file against signed copy, that follows
+     * on data channel; file is then verified against {@link UpdateFile#checksum() checksum} of update
+     * <blockquote><code>
+     *     $CMD$ $USER$ $FILE$,
+     *     <br>i.e.: {@linkplain FileDelta FileDelta} User docs/sum.txt
+     * </code></blockquote>
+     * @see DeltaTransfer
+     */
+    public static class FileDelta extends FileMsg {
+
+        public static final @NotNull String cmd = "FileDelta";
+
+        private @NotNull String user;
+        @Override public @NotNull String user() { return user; }
+
+        private @NotNull String file;
+        @Override public @NotNull String file() { return file; }
+
+        /**
+         * Creates FileDelta command message
+         * @param user the username of user issuing command
+         * @param file the path to related file, relative to mapping node (user)
+         */
+        public FileDelta(@NotNull String user,
+                         @NotNull String file) {
+            this.user = user;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", cmd, user, file);
+        }
+
+        protected static @NotNull FileDelta parse(String message) {
+            String[] messageSplit = message.split(" ");
+            if (messageSplit.length != argCount())
+                throw wrongArgumentNumber(cmd, messageSplit.length, argCount());
+            return new FileDelta(messageSplit[1], messageSplit[2]);
+        }
+    }
+
     /**
      * Command for sharing file with receiver
      */
@@ -0,0 +1,252 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.Messages.FileChunk;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Receiving end of {@link ChunkedTransfer}. Contents of file are received into partial file
+ * ({@code $FILE$}{@value #PART_SUFFIX}), and number of verified bytes is persisted in state file
+ * ({@code $FILE$}{@value #STATE_SUFFIX}), in format:
+ * <blockquote><code>
+ *     'P' 'O' '2' 'T' $VERSION$ $SIZE$ $CHECKSUM$ $CHUNK_SIZE$ $OFFSET$
+ * </code></blockquote>
+ * <p>Transfer of same file contents (same size and checksum) is resumed from persisted offset,
+ * otherwise it starts over. Contents of partial file are forced to storage before offset is persisted,
+ * so state never covers bytes that might be lost.
+ * <br><br>
+ * <p>This class is not thread-safe, chunks of file should be received by single thread.
+ */
+public class PartialTransfer implements Closeable {
+
+    /**
+     * Suffix of file that contents are received into.
+     */
+    public static final @NotNull String PART_SUFFIX = ".po2part";
+    /**
+     * Suffix of file that state of transfer is persisted in.
+     */
+    public static final @NotNull String STATE_SUFFIX = ".po2state";
+    /**
+     * Suffix of hard link, that replaces file linked to object of server content store.
+     */
+    public static final @NotNull String LINK_SUFFIX = ".po2link";
+    /**
+     * Suffix of copy of file, that server already has contents of.
+     */
+    public static final @NotNull String COPY_SUFFIX = ".po2copy";
+
+    private static final byte[] MAGIC = { 'P', 'O', '2', 'T' };
+    private static final byte VERSION = 1;
+
+    private final @NotNull File file;
+    private final @NotNull File partial;
+    private final @NotNull File state;
+    private final long size;
+    private final @NotNull String checksum;
+    private final long chunkSize;
+    private final @NotNull FileChannel channel;
+    private long offset;
+
+    private PartialTransfer(@NotNull File file, long size, @NotNull String checksum, long chunkSize)
+            throws IOException {
+        this.file = file;
+        this.partial = new File(file.getPath() + PART_SUFFIX);
+        this.state = new File(file.getPath() + STATE_SUFFIX);
+        this.size = size;
+        this.checksum = checksum;
+        this.chunkSize = chunkSize;
+        this.offset = load();
+        this.channel = FileChannel.open(partial.toPath(), CREATE, READ, WRITE);
+        if (channel.size() < offset) offset = 0;
+        channel.truncate(offset);
+    }
+
+    /**
+     * Opens transfer of file, resuming it if transfer of same contents was interrupted.
+     * @param file the file that is received
+     * @param size the size of received file, in bytes
+     * @param checksum the checksum of received file
+     * @return the transfer, that expects chunks starting from {@link #getOffset()}
+     * @throws IOException if an I/O error occurs while opening partial file
+     */
+    public static @NotNull PartialTransfer open(@NotNull File file, long size, @NotNull String checksum)
+            throws IOException {
+        return open(file, size, checksum, ChunkedTransfer.getChunkSize());
+    }
+
+    /**
+     * Opens transfer of file, resuming it if transfer of same contents, in chunks of same size,
+     * was interrupted.
+     * @param file the file that is received
+     * @param size the size of received file, in bytes
+     * @param checksum the checksum of received file
+     * @param chunkSize the maximal number of bytes in chunk
+     * @return the transfer, that expects chunks starting from {@link #getOffset()}
+     * @throws IOException if an I/O error occurs while opening partial file
+     */
+    public static @NotNull PartialTransfer open(@NotNull File file, long size, @NotNull String checksum,
+                                                long chunkSize) throws IOException {
+        return new PartialTransfer(file, size, checksum, chunkSize);
+    }
+
+    /**
+     * @param path the path to check
+     * @return {@code true} if {@code path} is partial file or state file of some transfer,
+     *         file received by {@link FileTransfer}, file rebuilt by {@link DeltaTransfer}, or link or copy
+     *         of contents that server already has
+     */
+    public static boolean isPartial(@NotNull Path path) {
+        String name = String.valueOf(path.getFileName());
+        return name.endsWith(PART_SUFFIX) || name.endsWith(STATE_SUFFIX) || name.endsWith(STATE_SUFFIX + ".tmp") ||
+               name.endsWith(DeltaTransfer.PATCH_SUFFIX) || name.endsWith(LINK_SUFFIX) ||
+               name.endsWith(COPY_SUFFIX) || name.endsWith(FileTransfer.RECEIVE_SUFFIX);
+    }
+
+    /** @return the file that is received */
+    public @NotNull File getFile() { return this.file; }
+
+    /** @return the size of received file, in bytes */
+    public long getSize() { return this.size; }
+
+    /** @return the maximal number of bytes in chunk */
+    public long getChunkSize() { return this.chunkSize; }
+
+    /** @return the position of first byte, that was not received and verified yet */
+    public long getOffset() { return this.offset; }
+
+    /** @return {@code true} if all bytes of file were received */
+    public boolean isComplete() { return offset == size; }
+
+    /**
+     * Receives contents of chunk announced by {@code chunk} from {@code source}. If checksum of
+     * received chunk does not match, it is discarded, and has to be sent again.
+     * @param source the channel to receive contents from
+     * @param chunk the message announcing chunk
+     * @return {@code true} if chunk was received and verified
+     * @throws ProtocolException if chunk does not start at {@link #getOffset()}, or does not fit in file,
+     *                           contents of chunk are not read from {@code source} then
+     * @throws IOException if an I/O error occurs while reading from {@code source} or writing file
+     */
+    public boolean receive(@NotNull ReadableByteChannel source, @NotNull FileChunk chunk) throws IOException {
+        long length = chunk.length();
+        if (chunk.offset() != offset || length <= 0 || length > chunkSize || offset + length > size)
+            throw new ProtocolException("Unexpected chunk: " + chunk.offset() + "+" + length + ", expected: " +
+                                        offset + "+" + Math.min(chunkSize, size - offset));
+        MessageDigest digest = FileTransfer.digest();
+        FileTransfer.receive(source, channel, offset, length, digest);
+        if (!FileManager.toHex(digest.digest()).equals(chunk.checksum())) {
+            channel.truncate(offset);
+            return false;
+        }
+        channel.force(false);
+        offset += length;
+        save();
+        return true;
+    }
+
+    /**
+     * Verifies checksum of whole received file, and replaces {@link #getFile() file} with it.
+     * Transfer is closed afterwards.
+     * @return the checksum of received file
+     * @throws IllegalStateException if not all bytes of file were received
+     * @throws IOException if checksum does not match (transfer is discarded then),
+     *                     or an I/O error occurs while moving file
+     */
+    public @NotNull String complete() throws IOException {
+        if (!isComplete()) throw new IllegalStateException("Received " + offset + " of " + size + " bytes");
+        MessageDigest digest = FileTransfer.digest();
+        for (long region = 0; region < size; region += FileTransfer.REGION) {
+            FileTransfer.digest(channel, region, Math.min(FileTransfer.REGION, size - region), digest);
+        }
+        String received = FileManager.toHex(digest.digest());
+        if (!received.equals(checksum)) {
+            discard();
+            throw new IOException("Checksum of received file " + file + " does not match: " + received +
+                                  ", expected: " + checksum);
+        }
+        channel.close();
+        move(partial, file);
+        Files.deleteIfExists(state.toPath());
+        FileManager.getChecksumCache().put(file, checksum);
+        return received;
+    }
+
+    /**
+     * Closes transfer and removes partial and state files, so transfer of file starts over.
+     * @throws IOException if an I/O error occurs while removing files
+     */
+    public void discard() throws IOException {
+        channel.close();
+        Files.deleteIfExists(partial.toPath());
+        Files.deleteIfExists(state.toPath());
+    }
+
+    /**
+     * Closes partial file, keeping state of transfer, so it can be resumed.
+     * @throws IOException if an I/O error occurs while closing
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return persisted offset, if it describes transfer of same contents, {@code 0} otherwise
+     */
+    private long load() {
+        if (!state.exists()) return 0;
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(state)))) {
+            byte[] magic = new byte[MAGIC.length];
+            stream.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) return 0;
+            }
+            if (stream.readByte() != VERSION ||
+                stream.readLong() != size ||
+                !stream.readUTF().equals(checksum) ||
+                stream.readLong() != chunkSize) return 0;
+            long offset = stream.readLong();
+            return offset >= 0 && offset <= size ? offset : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void save() throws IOException {
+        File temporary = new File(state.getPath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temporary)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream));
+            stream.write(MAGIC);
+            stream.writeByte(VERSION);
+            stream.writeLong(size);
+            stream.writeUTF(checksum);
+            stream.writeLong(chunkSize);
+            stream.writeLong(offset);
+            stream.flush();
+            fileStream.getFD().sync();
+        }
+        move(temporary, state);
+    }
+
+    private static void move(@NotNull File source, @NotNull File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), REPLACE_EXISTING);
+        }
+    }
+}
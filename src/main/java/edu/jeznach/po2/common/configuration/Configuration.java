@@ -22,6 +22,20 @@ public final class Configuration {
     public static final @NotNull Integer THREAD_PER_USER;
     private static final Integer DEFAULT_THREAD_PER_USER = 5;
 
+    /**
+     * order in which queued transfers of single user are executed
+     * <p>allowed: fifo, shortest_first (transfer with fewest remaining bytes first, large transfers are preempted after every chunk)
+     */
+    public static final @NotNull String TRANSFER_ORDER;
+    private static final String DEFAULT_TRANSFER_ORDER = "shortest_first";
+
+    /**
+     * by how many megabytes remaining bytes of transfer are reduced, for every second it waits in queue
+     * <p>prevents large transfers from waiting indefinitely when transfers are executed shortest first
+     */
+    public static final @NotNull Integer TRANSFER_AGING$MBps;
+    private static final Integer DEFAULT_TRANSFER_AGING = 8;
+
     /** size limit of storage for each user in megabytes */
     public static final @NotNull Integer SIZE_PER_USER$MB;
     private static final Integer DEFAULT_SIZE_PER_USER = 1024;
@@ -53,10 +67,117 @@ public final class Configuration {
     public static final @NotNull String CLIENT_ICON_PATH;
     private static final String DEFAULT_CLIENT_ICON_PATH = "";
 
+    /**
+     * how often modified mapping is written to its file in milliseconds
+     * <p>if 0, mapping is written synchronously on every modification
+     */
+    public static final @NotNull Integer MAPPING_FLUSH_INTERVAL$MS;
+    private static final Integer DEFAULT_MAPPING_FLUSH_INTERVAL = 1000;
+
+    /** how many modifications of mapping cause it to be written before flush interval elapses */
+    public static final @NotNull Integer MAPPING_FLUSH_THRESHOLD;
+    private static final Integer DEFAULT_MAPPING_FLUSH_THRESHOLD = 1000;
+
+    /** should modifications of mapping be appended to journal, with mapping file written only as its snapshot */
+    public static final @NotNull Boolean MAPPING_JOURNAL;
+    private static final Boolean DEFAULT_MAPPING_JOURNAL = true;
+
+    /**
+     * format in which mapping files are written
+     * <p>allowed: yaml, binary
+     */
+    public static final @NotNull String MAPPING_FORMAT;
+    private static final String DEFAULT_MAPPING_FORMAT = "yaml";
+
+    /** how many checksums of files are cached, if 0 checksums are always calculated */
+    public static final @NotNull Integer CHECKSUM_CACHE_SIZE;
+    private static final Integer DEFAULT_CHECKSUM_CACHE_SIZE = 65536;
+
+    /** which absolute path should be used to persist checksum cache between executions, if null cache is kept in memory only */
+    public static final @Nullable String CHECKSUM_CACHE_PATH;
+    private static final String DEFAULT_CHECKSUM_CACHE_PATH = null;
+
+    /**
+     * how long file has to remain unmodified before its event is delivered, in milliseconds
+     * <p>if 0, events are delivered immediately
+     */
+    public static final @NotNull Integer EVENT_DEBOUNCE$MS;
+    private static final Integer DEFAULT_EVENT_DEBOUNCE = 500;
+
+    /**
+     * how many directories single file observer registers in file system watch service
+     * <p>directories over that limit are polled for changes instead
+     */
+    public static final @NotNull Integer WATCH_LIMIT;
+    private static final Integer DEFAULT_WATCH_LIMIT = 8192;
+
+    /**
+     * how often directories that are not registered in file system watch service are polled for changes, in milliseconds
+     * <p>when changes are detected by polling only, it is the shortest interval between polls
+     */
+    public static final @NotNull Integer POLL_INTERVAL$MS;
+    private static final Integer DEFAULT_POLL_INTERVAL = 2000;
+
+    /**
+     * how changes of observed files are detected
+     * <p>allowed: watch (file system notifications), poll (periodic scans, i.e. for network file systems)
+     */
+    public static final @NotNull String CHANGE_SOURCE;
+    private static final String DEFAULT_CHANGE_SOURCE = "watch";
+
+    /**
+     * format in which messages are framed when exchanged between client and server
+     * <p>allowed: binary, text (human readable, for debugging)
+     */
+    public static final @NotNull String MESSAGE_FORMAT;
+    private static final String DEFAULT_MESSAGE_FORMAT = "binary";
+
+    /**
+     * size of chunks that files are transferred in, in kilobytes
+     * <p>interrupted transfer is resumed from last verified chunk
+     */
+    public static final @NotNull Integer TRANSFER_CHUNK_SIZE$KB;
+    private static final Integer DEFAULT_TRANSFER_CHUNK_SIZE = 4096;
+
+    /** should updated files be sent as delta against receiver's copy, rather than whole */
+    public static final @NotNull Boolean DELTA_SYNC;
+    private static final Boolean DEFAULT_DELTA_SYNC = true;
+
+    /**
+     * should contents of files be stored once per drive by their checksum, with files of users being hard links to them
+     * <p>files which contents are already stored are not transferred again
+     */
+    public static final @NotNull Boolean CONTENT_STORE;
+    private static final Boolean DEFAULT_CONTENT_STORE = false;
+
+    /** how many files are copied to single drive at once */
+    public static final @NotNull Integer DRIVE_THREADS;
+    private static final Integer DEFAULT_DRIVE_THREADS = 2;
+
+    /**
+     * how many files can wait to be copied to single drive
+     * <p>once drive is saturated, files wait in queues of their users, so other drives are not blocked
+     */
+    public static final @NotNull Integer DRIVE_QUEUE_SIZE;
+    private static final Integer DEFAULT_DRIVE_QUEUE_SIZE = 8;
+
+    /** port that server accepts connections of clients on */
+    public static final @NotNull Integer SERVER_PORT;
+    private static final Integer DEFAULT_SERVER_PORT = 8421;
+
+    /**
+     * how many megabytes of transfers of single user can be queued by server
+     * <p>once limit is exceeded, server stops reading messages of user, until half of queued transfers is executed
+     */
+    public static final @NotNull Integer USER_QUEUE_LIMIT$MB;
+    private static final Integer DEFAULT_USER_QUEUE_LIMIT = 64;
+
     private static final String CONF_YML_PATH = "/edu/jeznach/po2/conf.yml";
 
     static {
         @NotNull Integer threadPerUser;
+        @NotNull String transferOrder;
+        @NotNull Integer transferAging;
         @NotNull Integer sizePerUser$Mb;
         @NotNull Boolean printColor;
         @Nullable String path;
@@ -64,11 +185,31 @@ public final class Configuration {
         @NotNull Integer driveCount;
         @NotNull String serverIconPath;
         @NotNull String clientIconPath;
+        @NotNull Integer mappingFlushInterval$Ms;
+        @NotNull Integer mappingFlushThreshold;
+        @NotNull Boolean mappingJournal;
+        @NotNull String mappingFormat;
+        @NotNull Integer checksumCacheSize;
+        @Nullable String checksumCachePath;
+        @NotNull Integer eventDebounce;
+        @NotNull Integer watchLimit;
+        @NotNull Integer pollInterval;
+        @NotNull String changeSource;
+        @NotNull String messageFormat;
+        @NotNull Integer transferChunkSize;
+        @NotNull Boolean deltaSync;
+        @NotNull Boolean contentStore;
+        @NotNull Integer driveThreads;
+        @NotNull Integer driveQueueSize;
+        @NotNull Integer serverPort;
+        @NotNull Integer userQueueLimit;
         try {
             Yaml yaml = new Yaml();
             Reader reader = new InputStreamReader(Configuration.class.getResourceAsStream(CONF_YML_PATH));
             Configuration configuration = yaml.load(reader);
             threadPerUser = configuration.application.getThread_per_user();
+            transferOrder = configuration.application.getTransfer_order();
+            transferAging = configuration.application.getTransfer_aging();
             sizePerUser$Mb = configuration.application.getSize_per_user();
             printColor = configuration.application.getPrint_color();
             checksumAlgorithm = configuration.application.getChecksum_algorithm();
@@ -76,6 +217,24 @@ public final class Configuration {
             driveCount = configuration.server.getDrive_count();
             serverIconPath = configuration.server.getIcon_path();
             clientIconPath = configuration.client.getIcon_path();
+            mappingFlushInterval$Ms = configuration.application.getMapping_flush_interval();
+            mappingFlushThreshold = configuration.application.getMapping_flush_threshold();
+            mappingJournal = configuration.application.getMapping_journal();
+            mappingFormat = configuration.application.getMapping_format();
+            checksumCacheSize = configuration.application.getChecksum_cache_size();
+            checksumCachePath = configuration.application.getChecksum_cache_path();
+            eventDebounce = configuration.application.getEvent_debounce();
+            watchLimit = configuration.application.getWatch_limit();
+            pollInterval = configuration.application.getPoll_interval();
+            changeSource = configuration.application.getChange_source();
+            messageFormat = configuration.application.getMessage_format();
+            transferChunkSize = configuration.application.getTransfer_chunk_size();
+            deltaSync = configuration.application.getDelta_sync();
+            contentStore = configuration.server.getContent_store();
+            driveThreads = configuration.server.getDrive_threads();
+            driveQueueSize = configuration.server.getDrive_queue_size();
+            serverPort = configuration.server.getPort();
+            userQueueLimit = configuration.server.getUser_queue_limit();
             reader.close();
         } catch (Throwable e) {
             {
@@ -98,6 +257,8 @@ public final class Configuration {
                 }.start();
             }
             threadPerUser = DEFAULT_THREAD_PER_USER;
+            transferOrder = DEFAULT_TRANSFER_ORDER;
+            transferAging = DEFAULT_TRANSFER_AGING;
             sizePerUser$Mb = DEFAULT_SIZE_PER_USER;
             printColor = DEFAULT_PRINT_COLOR;
             path = DEFAULT_PATH;
@@ -105,8 +266,54 @@ public final class Configuration {
             driveCount = DEFAULT_DRIVE_COUNT;
             serverIconPath = DEFAULT_SERVER_ICON_PATH;
             clientIconPath = DEFAULT_CLIENT_ICON_PATH;
+            mappingFlushInterval$Ms = DEFAULT_MAPPING_FLUSH_INTERVAL;
+            mappingFlushThreshold = DEFAULT_MAPPING_FLUSH_THRESHOLD;
+            mappingJournal = DEFAULT_MAPPING_JOURNAL;
+            mappingFormat = DEFAULT_MAPPING_FORMAT;
+            checksumCacheSize = DEFAULT_CHECKSUM_CACHE_SIZE;
+            checksumCachePath = DEFAULT_CHECKSUM_CACHE_PATH;
+            eventDebounce = DEFAULT_EVENT_DEBOUNCE;
+            watchLimit = DEFAULT_WATCH_LIMIT;
+            pollInterval = DEFAULT_POLL_INTERVAL;
+            changeSource = DEFAULT_CHANGE_SOURCE;
+            messageFormat = DEFAULT_MESSAGE_FORMAT;
+            transferChunkSize = DEFAULT_TRANSFER_CHUNK_SIZE;
+            deltaSync = DEFAULT_DELTA_SYNC;
+            contentStore = DEFAULT_CONTENT_STORE;
+            driveThreads = DEFAULT_DRIVE_THREADS;
+            driveQueueSize = DEFAULT_DRIVE_QUEUE_SIZE;
+            serverPort = DEFAULT_SERVER_PORT;
+            userQueueLimit = DEFAULT_USER_QUEUE_LIMIT;
         }
         THREAD_PER_USER = threadPerUser;
+        switch (transferOrder) {
+            case "fifo":
+            case "shortest_first":
+                TRANSFER_ORDER = transferOrder;
+                break;
+            default: {
+                NotificationSender sender = new NotificationSender(new ImageIcon("").getImage(),
+                                                                   "edu.jeznach.po2",
+                                                                   null);
+                sender.error("Unknown transfer order: " + transferOrder,
+                             "Using default one: " + DEFAULT_TRANSFER_ORDER);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (this) {
+                            try {
+                                wait(7500);
+                            } catch (InterruptedException ignored) {
+                            } finally {
+                                sender.disposeTrayIcon();
+                            }
+                        }
+                    }
+                }.start();
+                TRANSFER_ORDER = DEFAULT_TRANSFER_ORDER;
+            }
+        }
+        TRANSFER_AGING$MBps = transferAging;
         DRIVE_COUNT = driveCount;
         PATH = path;
         switch (checksumAlgorithm) {
@@ -141,6 +348,102 @@ public final class Configuration {
         SIZE_PER_USER$MB = sizePerUser$Mb;
         SERVER_ICON_PATH = serverIconPath;
         CLIENT_ICON_PATH = clientIconPath;
+        MAPPING_FLUSH_INTERVAL$MS = mappingFlushInterval$Ms;
+        MAPPING_FLUSH_THRESHOLD = mappingFlushThreshold;
+        MAPPING_JOURNAL = mappingJournal;
+        switch (mappingFormat) {
+            case "yaml":
+            case "binary":
+                MAPPING_FORMAT = mappingFormat;
+                break;
+            default: {
+                NotificationSender sender = new NotificationSender(new ImageIcon("").getImage(),
+                                                                   "edu.jeznach.po2",
+                                                                   null);
+                sender.error("Unknown mapping format: " + mappingFormat,
+                             "Using default one: " + DEFAULT_MAPPING_FORMAT);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (this) {
+                            try {
+                                wait(7500);
+                            } catch (InterruptedException ignored) {
+                            } finally {
+                                sender.disposeTrayIcon();
+                            }
+                        }
+                    }
+                }.start();
+                MAPPING_FORMAT = DEFAULT_MAPPING_FORMAT;
+            }
+        }
+        CHECKSUM_CACHE_SIZE = checksumCacheSize;
+        CHECKSUM_CACHE_PATH = checksumCachePath;
+        EVENT_DEBOUNCE$MS = eventDebounce;
+        WATCH_LIMIT = watchLimit;
+        POLL_INTERVAL$MS = pollInterval;
+        switch (changeSource) {
+            case "watch":
+            case "poll":
+                CHANGE_SOURCE = changeSource;
+                break;
+            default: {
+                NotificationSender sender = new NotificationSender(new ImageIcon("").getImage(),
+                                                                   "edu.jeznach.po2",
+                                                                   null);
+                sender.error("Unknown change source: " + changeSource,
+                             "Using default one: " + DEFAULT_CHANGE_SOURCE);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (this) {
+                            try {
+                                wait(7500);
+                            } catch (InterruptedException ignored) {
+                            } finally {
+                                sender.disposeTrayIcon();
+                            }
+                        }
+                    }
+                }.start();
+                CHANGE_SOURCE = DEFAULT_CHANGE_SOURCE;
+            }
+        }
+        switch (messageFormat) {
+            case "binary":
+            case "text":
+                MESSAGE_FORMAT = messageFormat;
+                break;
+            default: {
+                NotificationSender sender = new NotificationSender(new ImageIcon("").getImage(),
+                                                                   "edu.jeznach.po2",
+                                                                   null);
+                sender.error("Unknown message format: " + messageFormat,
+                             "Using default one: " + DEFAULT_MESSAGE_FORMAT);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (this) {
+                            try {
+                                wait(7500);
+                            } catch (InterruptedException ignored) {
+                            } finally {
+                                sender.disposeTrayIcon();
+                            }
+                        }
+                    }
+                }.start();
+                MESSAGE_FORMAT = DEFAULT_MESSAGE_FORMAT;
+            }
+        }
+        TRANSFER_CHUNK_SIZE$KB = transferChunkSize;
+        DELTA_SYNC = deltaSync;
+        CONTENT_STORE = contentStore;
+        DRIVE_THREADS = driveThreads;
+        DRIVE_QUEUE_SIZE = driveQueueSize;
+        SERVER_PORT = serverPort;
+        USER_QUEUE_LIMIT$MB = userQueueLimit;
     }
 
     private @NotNull Application application = new Application();
@@ -167,6 +470,14 @@ public final class Configuration {
         public @NotNull Integer getThread_per_user() { return thread_per_user; }
         public void setThread_per_user(@NotNull Integer thread_per_user) { this.thread_per_user = thread_per_user; }
 
+        private @NotNull String transfer_order = DEFAULT_TRANSFER_ORDER;
+        public @NotNull String getTransfer_order() { return this.transfer_order; }
+        public void setTransfer_order(@NotNull String transfer_order) { this.transfer_order = transfer_order; }
+
+        private @NotNull Integer transfer_aging = DEFAULT_TRANSFER_AGING;
+        public @NotNull Integer getTransfer_aging() { return this.transfer_aging; }
+        public void setTransfer_aging(@NotNull Integer transfer_aging) { this.transfer_aging = transfer_aging; }
+
         private @NotNull Integer size_per_user = DEFAULT_SIZE_PER_USER;
         public @NotNull Integer getSize_per_user() { return size_per_user; }
         public void setSize_per_user(@NotNull Integer size_per_user) { this.size_per_user = size_per_user; }
@@ -179,6 +490,58 @@ public final class Configuration {
         public @NotNull String getChecksum_algorithm() { return this.checksum_algorithm; }
         public void setChecksum_algorithm(@NotNull String checksum_algorithm) { this.checksum_algorithm = checksum_algorithm; }
 
+        private @NotNull Integer mapping_flush_interval = DEFAULT_MAPPING_FLUSH_INTERVAL;
+        public @NotNull Integer getMapping_flush_interval() { return this.mapping_flush_interval; }
+        public void setMapping_flush_interval(@NotNull Integer mapping_flush_interval) { this.mapping_flush_interval = mapping_flush_interval; }
+
+        private @NotNull Integer mapping_flush_threshold = DEFAULT_MAPPING_FLUSH_THRESHOLD;
+        public @NotNull Integer getMapping_flush_threshold() { return this.mapping_flush_threshold; }
+        public void setMapping_flush_threshold(@NotNull Integer mapping_flush_threshold) { this.mapping_flush_threshold = mapping_flush_threshold; }
+
+        private @NotNull Boolean mapping_journal = DEFAULT_MAPPING_JOURNAL;
+        public @NotNull Boolean getMapping_journal() { return this.mapping_journal; }
+        public void setMapping_journal(@NotNull Boolean mapping_journal) { this.mapping_journal = mapping_journal; }
+
+        private @NotNull String mapping_format = DEFAULT_MAPPING_FORMAT;
+        public @NotNull String getMapping_format() { return this.mapping_format; }
+        public void setMapping_format(@NotNull String mapping_format) { this.mapping_format = mapping_format; }
+
+        private @NotNull Integer checksum_cache_size = DEFAULT_CHECKSUM_CACHE_SIZE;
+        public @NotNull Integer getChecksum_cache_size() { return this.checksum_cache_size; }
+        public void setChecksum_cache_size(@NotNull Integer checksum_cache_size) { this.checksum_cache_size = checksum_cache_size; }
+
+        private @Nullable String checksum_cache_path = DEFAULT_CHECKSUM_CACHE_PATH;
+        public @Nullable String getChecksum_cache_path() { return this.checksum_cache_path; }
+        public void setChecksum_cache_path(@Nullable String checksum_cache_path) { this.checksum_cache_path = checksum_cache_path; }
+
+        private @NotNull Integer event_debounce = DEFAULT_EVENT_DEBOUNCE;
+        public @NotNull Integer getEvent_debounce() { return this.event_debounce; }
+        public void setEvent_debounce(@NotNull Integer event_debounce) { this.event_debounce = event_debounce; }
+
+        private @NotNull Integer watch_limit = DEFAULT_WATCH_LIMIT;
+        public @NotNull Integer getWatch_limit() { return this.watch_limit; }
+        public void setWatch_limit(@NotNull Integer watch_limit) { this.watch_limit = watch_limit; }
+
+        private @NotNull Integer poll_interval = DEFAULT_POLL_INTERVAL;
+        public @NotNull Integer getPoll_interval() { return this.poll_interval; }
+        public void setPoll_interval(@NotNull Integer poll_interval) { this.poll_interval = poll_interval; }
+
+        private @NotNull String change_source = DEFAULT_CHANGE_SOURCE;
+        public @NotNull String getChange_source() { return this.change_source; }
+        public void setChange_source(@NotNull String change_source) { this.change_source = change_source; }
+
+        private @NotNull String message_format = DEFAULT_MESSAGE_FORMAT;
+        public @NotNull String getMessage_format() { return this.message_format; }
+        public void setMessage_format(@NotNull String message_format) { this.message_format = message_format; }
+
+        private @NotNull Integer transfer_chunk_size = DEFAULT_TRANSFER_CHUNK_SIZE;
+        public @NotNull Integer getTransfer_chunk_size() { return this.transfer_chunk_size; }
+        public void setTransfer_chunk_size(@NotNull Integer transfer_chunk_size) { this.transfer_chunk_size = transfer_chunk_size; }
+
+        private @NotNull Boolean delta_sync = DEFAULT_DELTA_SYNC;
+        public @NotNull Boolean getDelta_sync() { return this.delta_sync; }
+        public void setDelta_sync(@NotNull Boolean delta_sync) { this.delta_sync = delta_sync; }
+
         Application() { }
     }
 
@@ -200,6 +563,26 @@ public final class Configuration {
         public @NotNull String getIcon_path() { return this.icon_path; }
         public void setIcon_path(@NotNull String icon_path) { this.icon_path = icon_path; }
 
+        private @NotNull Boolean content_store = DEFAULT_CONTENT_STORE;
+        public @NotNull Boolean getContent_store() { return this.content_store; }
+        public void setContent_store(@NotNull Boolean content_store) { this.content_store = content_store; }
+
+        private @NotNull Integer drive_threads = DEFAULT_DRIVE_THREADS;
+        public @NotNull Integer getDrive_threads() { return this.drive_threads; }
+        public void setDrive_threads(@NotNull Integer drive_threads) { this.drive_threads = drive_threads; }
+
+        private @NotNull Integer drive_queue_size = DEFAULT_DRIVE_QUEUE_SIZE;
+        public @NotNull Integer getDrive_queue_size() { return this.drive_queue_size; }
+        public void setDrive_queue_size(@NotNull Integer drive_queue_size) { this.drive_queue_size = drive_queue_size; }
+
+        private @NotNull Integer port = DEFAULT_SERVER_PORT;
+        public @NotNull Integer getPort() { return this.port; }
+        public void setPort(@NotNull Integer port) { this.port = port; }
+
+        private @NotNull Integer user_queue_limit = DEFAULT_USER_QUEUE_LIMIT;
+        public @NotNull Integer getUser_queue_limit() { return this.user_queue_limit; }
+        public void setUser_queue_limit(@NotNull Integer user_queue_limit) { this.user_queue_limit = user_queue_limit; }
+
         Server() { }
     }
 
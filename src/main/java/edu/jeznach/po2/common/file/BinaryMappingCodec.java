@@ -0,0 +1,231 @@
+package edu.jeznach.po2.common.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists mapping as compact binary document.
+ * <p>Document starts with header:
+ * <blockquote><code>
+ *     'P' 'O' '2' 'M' $VERSION$ $KIND$
+ * </code></blockquote>
+ * followed by mapping fields written by implementation, where:
+ * <p>- strings are written as varint length followed by UTF-8 bytes,
+ * <p>- numbers (sizes and timestamps) are written as zigzag varints,
+ * <p>- checksums are written as raw bytes, rather than hex strings,
+ * <p>- lists are written as varint length incremented by one, followed by elements
+ *      ({@code 0} represents {@code null} list).
+ * @param <M> the type holding indexed mapping
+ */
+public abstract class BinaryMappingCodec<M> implements MappingCodec<M> {
+
+    private static final byte[] MAGIC = { 'P', 'O', '2', 'M' };
+    private static final byte VERSION = 1;
+
+    private final byte kind;
+
+    /**
+     * @param kind the byte identifying type of mapping stored in document
+     */
+    protected BinaryMappingCodec(byte kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * Writes mapping fields.
+     * @param mapping the mapping to write
+     * @param stream the stream to write to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    protected abstract void write(@NotNull M mapping, @NotNull DataOutputStream stream) throws IOException;
+
+    /**
+     * Reads mapping fields.
+     * @param stream the stream to read from
+     * @return the read mapping
+     * @throws IOException if an I/O error occurs while reading, or stream is not properly formatted
+     */
+    protected abstract @NotNull M read(@NotNull DataInputStream stream) throws IOException;
+
+    @Override
+    public void encode(@NotNull M mapping, @NotNull OutputStream stream) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        output.write(MAGIC);
+        output.writeByte(VERSION);
+        output.writeByte(kind);
+        write(mapping, output);
+        output.flush();
+    }
+
+    @Override
+    public @Nullable M decode(@NotNull InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        byte[] magic = new byte[MAGIC.length];
+        input.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) throw new IOException("Not a binary mapping document");
+        }
+        byte version = input.readByte();
+        if (version != VERSION) throw new IOException("Unsupported binary mapping version: " + version);
+        byte kind = input.readByte();
+        if (kind != this.kind) throw new IOException("Document contains mapping of kind: " + (char) kind +
+                                                     ", expected: " + (char) this.kind);
+        return read(input);
+    }
+
+    /**
+     * Checks, without consuming, if {@code stream} contains binary mapping document.
+     * @param stream the stream to check, it has to {@link InputStream#markSupported() support marks}
+     * @return {@code true} if stream starts with binary mapping header
+     * @throws IOException if an I/O error occurs while reading
+     */
+    public static boolean isBinary(@NotNull InputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (stream.read() != b) return false;
+            }
+            return true;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    protected static void writeVarLong(@NotNull DataOutputStream stream, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            stream.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        stream.writeByte((int) zigzag);
+    }
+
+    protected static long readVarLong(@NotNull DataInputStream stream) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = stream.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    protected static void writeString(@NotNull DataOutputStream stream, @NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(stream, bytes.length);
+        stream.write(bytes);
+    }
+
+    protected static @NotNull String readString(@NotNull DataInputStream stream) throws IOException {
+        byte[] bytes = new byte[readLength(stream)];
+        stream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes checksum as raw bytes, if it is lowercase hex string, otherwise as string.
+     */
+    protected static void writeChecksum(@NotNull DataOutputStream stream, @NotNull String checksum) throws IOException {
+        if (isLowercaseHex(checksum)) {
+            stream.writeByte(1);
+            writeVarLong(stream, checksum.length() / 2);
+            for (int i = 0; i < checksum.length(); i += 2) {
+                stream.writeByte(Character.digit(checksum.charAt(i), 16) << 4 |
+                                 Character.digit(checksum.charAt(i + 1), 16));
+            }
+        } else {
+            stream.writeByte(0);
+            writeString(stream, checksum);
+        }
+    }
+
+    protected static @NotNull String readChecksum(@NotNull DataInputStream stream) throws IOException {
+        if (stream.readByte() == 0) return readString(stream);
+        byte[] bytes = new byte[readLength(stream)];
+        stream.readFully(bytes);
+        return FileManager.toHex(bytes);
+    }
+
+    protected static void writeFileMapping(@NotNull DataOutputStream stream,
+                                           @NotNull FileMapping mapping) throws IOException {
+        writeString(stream, mapping.getPathname());
+        writeVarLong(stream, mapping.getSize_bytes());
+        writeChecksum(stream, mapping.getChecksum());
+        writeVarLong(stream, mapping.getModification_timestamp());
+    }
+
+    /**
+     * Reads fields written by {@link #writeFileMapping(DataOutputStream, FileMapping)} into {@code mapping}.
+     * @return {@code mapping}
+     */
+    protected static <F extends FileMapping> @NotNull F readFileMapping(@NotNull DataInputStream stream,
+                                                                        @NotNull F mapping) throws IOException {
+        mapping.setPathname(readString(stream));
+        mapping.setSize_bytes(readVarLong(stream));
+        mapping.setChecksum(readChecksum(stream));
+        mapping.setModification_timestamp(readVarLong(stream));
+        return mapping;
+    }
+
+    protected static <E> void writeList(@NotNull DataOutputStream stream,
+                                        @Nullable List<E> list,
+                                        @NotNull ElementWriter<E> writer) throws IOException {
+        if (list == null) {
+            writeVarLong(stream, 0);
+            return;
+        }
+        writeVarLong(stream, list.size() + 1L);
+        for (E element : list) {
+            writer.write(stream, element);
+        }
+    }
+
+    protected static <E> @Nullable List<E> readList(@NotNull DataInputStream stream,
+                                                    @NotNull ElementReader<E> reader) throws IOException {
+        int size = readLength(stream);
+        if (size == 0) return null;
+        List<E> list = new ArrayList<>(size - 1);
+        for (int i = 1; i < size; i++) {
+            list.add(reader.read(stream));
+        }
+        return list;
+    }
+
+    private static int readLength(@NotNull DataInputStream stream) throws IOException {
+        long length = readVarLong(stream);
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Malformed length: " + length);
+        return (int) length;
+    }
+
+    private static boolean isLowercaseHex(@NotNull String value) {
+        if (value.isEmpty() || value.length() % 2 != 0) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes single element of list.
+     * @param <E> the type of element
+     */
+    @FunctionalInterface
+    protected interface ElementWriter<E> {
+        void write(@NotNull DataOutputStream stream, @NotNull E element) throws IOException;
+    }
+
+    /**
+     * Reads single element of list.
+     * @param <E> the type of element
+     */
+    @FunctionalInterface
+    protected interface ElementReader<E> {
+        @NotNull E read(@NotNull DataInputStream stream) throws IOException;
+    }
+}
@@ -0,0 +1,43 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+
+/**
+ * Detects changes of files in observed directory tree, reporting them as {@link FileEvent FileEvents}
+ * to consumer specified by implementation (usually queue of {@link FileObserver}).
+ * <p>Implementations may use any mechanism, but have to report same event types, with paths relative
+ * to observed root directory, so consumers of events do not depend on used mechanism.
+ * @see FileObserver
+ */
+public interface ChangeSource extends Closeable {
+
+    /**
+     * Waits until initial state of observed tree is captured, so later changes are reported.
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    void awaitReady() throws InterruptedException;
+
+    /**
+     * Detects changes in loop, until current thread is interrupted or source is closed. This method
+     * is called on thread dedicated to observation.
+     * @throws InterruptedException if current thread was interrupted
+     */
+    void observe() throws InterruptedException;
+
+    /**
+     * Stops detecting changes and releases resources.
+     */
+    @Override
+    void close();
+
+    /**
+     * Represents mechanism used to detect changes.
+     */
+    enum Type {
+        /** Changes are reported by file system notifications */ watch,
+        /** Changes are detected by periodic scans of metadata */ poll
+    }
+}
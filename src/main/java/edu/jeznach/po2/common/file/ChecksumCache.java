@@ -0,0 +1,201 @@
+package edu.jeznach.po2.common.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Caches checksums of files, so checksum of file, which contents did not change, is not calculated again.
+ * <p>Checksums are identified by {@link BasicFileAttributes#fileKey() file key} (i.e. device and inode),
+ * or absolute path of file, if file system does not provide file keys. Cached checksum is only used
+ * if size and modification timestamp of file are same as when it was calculated.
+ * <br><br>
+ * <p>Cache holds limited number of checksums, evicting least recently used ones. It can be persisted
+ * in file, in format:
+ * <blockquote><code>
+ *     'P' 'O' '2' 'C' $VERSION$ $ALGORITHM$ $COUNT$ ($KEY$ $SIZE$ $TIMESTAMP$ $CHECKSUM$)...
+ * </code></blockquote>
+ * <p>Persisted cache is discarded if it was created using different checksum algorithm.
+ * <p>All public methods of this class are thread-safe.
+ */
+public class ChecksumCache implements Closeable {
+
+    private static final byte[] MAGIC = { 'P', 'O', '2', 'C' };
+    private static final byte VERSION = 1;
+
+    private final int capacity;
+    private final @NotNull String algorithm;
+    private final @Nullable File file;
+    private final @NotNull LinkedHashMap<String, CachedChecksum> entries;
+
+    /**
+     * Creates new cache, loading checksums persisted in {@code file}, if it exists.
+     * @param capacity the maximal number of cached checksums, if not positive checksums are not cached
+     * @param algorithm the name of algorithm used to calculate checksums
+     * @param file the file that is used to persist cache, if {@code null} then cache is kept in memory only
+     * @throws IOException if an I/O error occurs while reading {@code file}
+     */
+    public ChecksumCache(int capacity, @NotNull String algorithm, @Nullable File file) throws IOException {
+        this.capacity = Math.max(capacity, 0);
+        this.algorithm = algorithm;
+        this.file = file;
+        this.entries = new LinkedHashMap<String, CachedChecksum>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedChecksum> eldest) {
+                return size() > ChecksumCache.this.capacity;
+            }
+        };
+        if (file != null && file.exists()) load(file);
+    }
+
+    /**
+     * @return the name of algorithm used to calculate checksums
+     */
+    public @NotNull String getAlgorithm() { return this.algorithm; }
+
+    /**
+     * Returns checksum of {@code file}, calculating it only if it is not cached, or file was
+     * modified since it was cached.
+     * @param file the file that checksum should be calculated of
+     * @return {@link String} containing checksum in hex format
+     * @throws Exception when exception is thrown while calculating checksum
+     */
+    public @NotNull String getChecksum(@NotNull File file) throws Exception {
+        if (capacity == 0) return FileManager.getChecksum(file, algorithm);
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        String key = key(file, attributes);
+        synchronized (entries) {
+            CachedChecksum entry = entries.get(key);
+            if (entry != null && entry.matches(attributes)) return entry.checksum;
+        }
+        String checksum = FileManager.getChecksum(file, algorithm);
+        BasicFileAttributes current = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (new CachedChecksum(attributes, checksum).matches(current)) {
+            synchronized (entries) {
+                entries.put(key, new CachedChecksum(attributes, checksum));
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Caches checksum of {@code file}, that was calculated by caller (i.e. while file was being received).
+     * @param file the file that checksum was calculated of
+     * @param checksum the checksum of current contents of {@code file}
+     * @throws IOException if an I/O error occurs while reading attributes of {@code file}
+     */
+    public void put(@NotNull File file, @NotNull String checksum) throws IOException {
+        if (capacity == 0) return;
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        synchronized (entries) {
+            entries.put(key(file, attributes), new CachedChecksum(attributes, checksum));
+        }
+    }
+
+    /**
+     * @return the number of cached checksums
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Writes cached checksums to file, if cache is persisted.
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public void save() throws IOException {
+        if (file == null) return;
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(temporary)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+            stream.write(MAGIC);
+            stream.writeByte(VERSION);
+            stream.writeUTF(algorithm);
+            synchronized (entries) {
+                stream.writeInt(entries.size());
+                for (Map.Entry<String, CachedChecksum> entry : entries.entrySet()) {
+                    stream.writeUTF(entry.getKey());
+                    stream.writeLong(entry.getValue().size);
+                    stream.writeLong(entry.getValue().modificationTimestamp);
+                    stream.writeUTF(entry.getValue().checksum);
+                }
+            }
+            stream.flush();
+            fileStream.getFD().sync();
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes cached checksums to file, if cache is persisted.
+     * @throws IOException if an I/O error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    private void load(@NotNull File file) throws IOException {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                                                                                  1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            stream.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) throw new IOException("Not a checksum cache: " + file);
+            }
+            if (stream.readByte() != VERSION || !algorithm.equals(stream.readUTF())) return;
+            int count = stream.readInt();
+            synchronized (entries) {
+                for (int i = 0; i < count; i++) {
+                    String key = stream.readUTF();
+                    entries.put(key, new CachedChecksum(stream.readLong(), stream.readLong(), stream.readUTF()));
+                }
+            }
+        }
+    }
+
+    private static @NotNull String key(@NotNull File file, @NotNull BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        return fileKey != null ? fileKey.toString() : file.getAbsolutePath();
+    }
+
+    private static final class CachedChecksum {
+
+        private final long size;
+        private final long modificationTimestamp;
+        private final @NotNull String checksum;
+
+        private CachedChecksum(long size, long modificationTimestamp, @NotNull String checksum) {
+            this.size = size;
+            this.modificationTimestamp = modificationTimestamp;
+            this.checksum = checksum;
+        }
+
+        private CachedChecksum(@NotNull BasicFileAttributes attributes, @NotNull String checksum) {
+            this(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), checksum);
+        }
+
+        private boolean matches(@NotNull BasicFileAttributes attributes) {
+            return size == attributes.size() &&
+                   modificationTimestamp == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * Detects changes of files in directory subtrees by periodically comparing snapshots of their
+ * metadata (size and modification timestamp), rather than relying on file system notifications.
+ * <p>Differences between consecutive snapshots are reported as {@link FileEvent FileEvents}:
+ * <p>- files that were not present in previous snapshot are reported as created,
+ * <p>- files which size or modification timestamp changed are reported as updated,
+ * <p>- files that are no longer present are reported as deleted.
+ * <p>Deletions are reported before creations, so moved files can be detected.
+ * <p>Snapshots are taken incrementally - listing of directory is reused, if its modification timestamp
+ * did not change since it was listed, so only metadata of its files is read again. Listings taken
+ * shortly after directory was modified are not reused, as later modifications might have same timestamp
+ * on file systems with coarse timestamps.
+ * <br><br>
+ * <p>All public methods of this class are thread-safe.
+ */
+public class DirectoryPoller {
+
+    private static final long RACY_LISTING$MS = 2000;
+
+    private final @NotNull Path rootPath;
+    private final @NotNull Consumer<@NotNull FileEvent> sink;
+    private final @NotNull Map<@NotNull Path, @NotNull Map<@NotNull Path, @NotNull Metadata>> snapshots = new HashMap<>();
+    private final @NotNull Map<@NotNull Path, @NotNull Listing> listings = new ConcurrentHashMap<>();
+
+    /**
+     * Creates new poller, without any polled subtrees.
+     * @param rootPath the root directory, that paths of events are relative to
+     * @param sink the consumer of detected events
+     */
+    public DirectoryPoller(@NotNull Path rootPath, @NotNull Consumer<@NotNull FileEvent> sink) {
+        this.rootPath = rootPath;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds subtree to polled set, unless it is already contained in other polled subtree.
+     * Polled subtrees contained in {@code directory} are merged into it.
+     * @param directory the root of subtree to poll
+     * @param announce if {@code true}, files currently contained in {@code directory} are reported
+     *                 as created on next poll, otherwise current state is taken as initial snapshot
+     * @throws IOException if an I/O error occurs while taking snapshot of {@code directory}
+     */
+    public void addSubtree(@NotNull Path directory, boolean announce) throws IOException {
+        synchronized (snapshots) {
+            if (isPolled(directory)) return;
+        }
+        Map<Path, Metadata> snapshot = announce ? new HashMap<>() : scan(directory);
+        synchronized (snapshots) {
+            if (isPolled(directory)) return;
+            Iterator<Map.Entry<Path, Map<Path, Metadata>>> iterator = snapshots.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, Map<Path, Metadata>> entry = iterator.next();
+                if (entry.getKey().startsWith(directory)) {
+                    if (!announce) snapshot.putAll(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            snapshots.put(directory, snapshot);
+        }
+    }
+
+    /**
+     * @param directory the directory to check
+     * @return {@code true} if {@code directory} is contained in one of polled subtrees
+     */
+    public boolean isPolled(@NotNull Path directory) {
+        synchronized (snapshots) {
+            for (Path subtree : snapshots.keySet()) {
+                if (directory.startsWith(subtree)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of polled subtrees
+     */
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    /**
+     * Takes new snapshot of every polled subtree, reporting differences with previous one.
+     * Subtrees that no longer exist are removed from polled set.
+     * @return the number of reported events
+     */
+    public int poll() {
+        Map<Path, Map<Path, Metadata>> previousSnapshots;
+        synchronized (snapshots) {
+            previousSnapshots = new HashMap<>(snapshots);
+        }
+        int events = 0;
+        for (Map.Entry<Path, Map<Path, Metadata>> entry : previousSnapshots.entrySet()) {
+            Path subtree = entry.getKey();
+            Map<Path, Metadata> previous = entry.getValue();
+            Map<Path, Metadata> current;
+            boolean exists = Files.isDirectory(subtree, NOFOLLOW_LINKS);
+            try {
+                current = exists ? scan(subtree) : new HashMap<>();
+            } catch (IOException e) {
+                continue;
+            }
+            for (Path file : previous.keySet()) {
+                if (!current.containsKey(file)) {
+                    sink.accept(new FileEvent(file, Node_Delete));
+                    events++;
+                }
+            }
+            for (Map.Entry<Path, Metadata> file : current.entrySet()) {
+                Metadata metadata = previous.get(file.getKey());
+                if (metadata == null) {
+                    sink.accept(new FileEvent(file.getKey(), Node_Create));
+                    events++;
+                } else if (!metadata.equals(file.getValue())) {
+                    sink.accept(new FileEvent(file.getKey(), Node_Update));
+                    events++;
+                }
+            }
+            synchronized (snapshots) {
+                if (snapshots.get(subtree) != previous) continue;
+                if (exists) snapshots.put(subtree, current);
+                else snapshots.remove(subtree);
+            }
+            if (!exists) listings.keySet().removeIf(directory -> directory.startsWith(subtree));
+        }
+        return events;
+    }
+
+    /**
+     * Takes snapshot of subtree, listing only directories that were modified since they were listed.
+     */
+    private @NotNull Map<Path, Metadata> scan(@NotNull Path subtree) throws IOException {
+        Map<Path, Metadata> snapshot = new HashMap<>();
+        Set<Path> visited = new HashSet<>();
+        Deque<Path> directories = new ArrayDeque<>();
+        directories.push(subtree);
+        while (!directories.isEmpty()) {
+            Path directory = directories.pop();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(directory, BasicFileAttributes.class, NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                if (directory == subtree) throw e;
+                continue;
+            }
+            if (!attributes.isDirectory()) continue;
+            visited.add(directory);
+            long modificationTimestamp = attributes.lastModifiedTime().toMillis();
+            Listing listing = listings.get(directory);
+            if (listing == null || !listing.isValid(modificationTimestamp)) {
+                listing = list(directory, modificationTimestamp);
+                if (listing == null) continue;
+                listings.put(directory, listing);
+            }
+            for (Path file : listing.files) {
+                try {
+                    BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class,
+                                                                              NOFOLLOW_LINKS);
+                    if (!fileAttributes.isDirectory()) {
+                        snapshot.put(rootPath.relativize(file),
+                                     new Metadata(fileAttributes.size(),
+                                                  fileAttributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (IOException ignored) { }
+            }
+            for (Path child : listing.directories) directories.push(child);
+        }
+        listings.keySet().removeIf(directory -> directory.startsWith(subtree) && !visited.contains(directory));
+        return snapshot;
+    }
+
+    private static @Nullable Listing list(@NotNull Path directory, long modificationTimestamp) {
+        long listedAt = System.currentTimeMillis();
+        List<Path> files = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                if (Files.isDirectory(entry, NOFOLLOW_LINKS)) directories.add(entry);
+                else files.add(entry);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            return null;
+        }
+        return new Listing(modificationTimestamp, listedAt, files, directories);
+    }
+
+    private static final class Listing {
+
+        private final long modificationTimestamp;
+        private final long listedAt;
+        private final @NotNull List<@NotNull Path> files;
+        private final @NotNull List<@NotNull Path> directories;
+
+        private Listing(long modificationTimestamp,
+                        long listedAt,
+                        @NotNull List<@NotNull Path> files,
+                        @NotNull List<@NotNull Path> directories) {
+            this.modificationTimestamp = modificationTimestamp;
+            this.listedAt = listedAt;
+            this.files = files;
+            this.directories = directories;
+        }
+
+        /**
+         * @return {@code true} if directory was not modified since it was listed
+         */
+        private boolean isValid(long modificationTimestamp) {
+            return this.modificationTimestamp == modificationTimestamp &&
+                   listedAt - modificationTimestamp >= RACY_LISTING$MS;
+        }
+    }
+
+    private static final class Metadata {
+
+        private final long size;
+        private final long modificationTimestamp;
+
+        private Metadata(long size, long modificationTimestamp) {
+            this.size = size;
+            this.modificationTimestamp = modificationTimestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Metadata)) return false;
+            Metadata metadata = (Metadata) o;
+            return size == metadata.size && modificationTimestamp == metadata.modificationTimestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modificationTimestamp);
+        }
+    }
+}
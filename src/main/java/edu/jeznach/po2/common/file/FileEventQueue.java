@@ -0,0 +1,413 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
+
+/**
+ * Queue of {@link FileEvent FileEvents}, that merges events related to same file.
+ * <p>Events are merged as follows:
+ * <p>- update of file, that is already queued to be created or updated, is discarded,
+ * <p>- deletion of file, that is queued to be created or updated, cancels that event and is queued instead,
+ * <p>- deletion of file, that is already queued to be deleted, is discarded,
+ * <p>- creation of file, that is queued to be deleted, is queued after deletion, so both are delivered,
+ * <p>- move of file replaces queued deletion of file it was moved from, unless that deletion cancelled
+ *      creation of file, that was not delivered yet - then move is queued as creation,
+ * <p>- every event of file, that is queued to be moved, is queued after move (with creation
+ *      queued as update), so file is moved before its later changes are delivered.
+ * <br><br>
+ * <p>Queue is linked list of events, with last queued event of every file indexed by its path, so
+ * every event is queued, merged or cancelled in constant time. Events of same file are additionally
+ * linked together, so cancelling event exposes previous one.
+ * <br><br>
+ * <p>If debounce window is specified, event is delivered only after file it relates to was
+ * not modified for that time. Every merged event restarts window of queued one, moving it to the end
+ * of queue, so file that is being written is not delivered multiple times. Once window elapses,
+ * created or updated file also has to be <i>quiescent</i> - its size and modification timestamp
+ * have to be same as when last event was queued, and it cannot be locked by other process
+ * (on platforms with mandatory locks, i.e. while it is open for writing). Otherwise window is
+ * restarted. Moved file is not checked, as its later changes are queued after move, so restarting
+ * window of move would deliver them first. Created or updated file is always last queued event
+ * of its path, so restarting its window does not reorder events of any file.
+ * <p>All public methods of this class are thread-safe, and any number of threads can consume events.
+ */
+public class FileEventQueue {
+
+    private final @Nullable Path rootPath;
+    private final long debounce$ns;
+    private final @NotNull ReentrantLock lock = new ReentrantLock();
+    private final @NotNull Condition notEmpty = lock.newCondition();
+    private final @NotNull Map<@NotNull Path, @NotNull Node> lastEvents = new HashMap<>();
+    private @Nullable Node head;
+    private @Nullable Node tail;
+    private int size;
+
+    /**
+     * Creates new queue, that delivers events immediately.
+     */
+    public FileEventQueue() {
+        this(null, 0);
+    }
+
+    /**
+     * Creates new queue, that delivers events after debounce window.
+     * @param rootPath the root directory, that paths of events are relative to, if {@code null}
+     *                 quiescence of files is not checked
+     * @param debounce$ms the time that file has to remain unmodified before its event is delivered,
+     *                    in milliseconds
+     */
+    public FileEventQueue(@Nullable Path rootPath, long debounce$ms) {
+        this.rootPath = rootPath;
+        this.debounce$ns = TimeUnit.MILLISECONDS.toNanos(Math.max(debounce$ms, 0));
+    }
+
+    /**
+     * Queues event, merging it with event of same file, that is already queued.
+     * @param event the event to queue
+     */
+    public void offer(@NotNull FileEvent event) {
+        lock.lock();
+        try {
+            if (event.eventType == Node_Move && !claimSource(event)) {
+                event = new FileEvent(event.filePath, Node_Create);
+            }
+            Node last = lastEvents.get(event.filePath);
+            if (last == null) {
+                append(event, null);
+                return;
+            }
+            switch (event.eventType) {
+                case Node_Update:
+                    if (last.event.eventType == Node_Create || last.event.eventType == Node_Update) {
+                        touch(last);
+                        return;
+                    }
+                    append(event, last);
+                    break;
+                case Node_Delete: {
+                    if (last.event.eventType == Node_Delete) return;
+                    Node previous = last.event.eventType == Node_Move ? last : unlink(last);
+                    if (previous != null && previous.event.eventType == Node_Delete) return;
+                    append(event, previous).sourceKnown = last.event.eventType != Node_Create || previous != null;
+                    break;
+                }
+                default: {
+                    Node previous = last.event.eventType == Node_Delete || last.event.eventType == Node_Move
+                                    ? last
+                                    : unlink(last);
+                    if (event.eventType == Node_Create && previous != null && previous.event.eventType == Node_Move)
+                        event = new FileEvent(event.filePath, Node_Update);
+                    append(event, previous);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes queued deletion of file that {@code move} was moved from, as it is replaced by move.
+     * @return {@code true} if deletion was removed, {@code false} if it was already delivered,
+     *         or file it relates to might be unknown to consumers (i.e. its creation was cancelled)
+     */
+    private boolean claimSource(@NotNull FileEvent move) {
+        //noinspection ConstantConditions
+        Node deleted = lastEvents.get(move.sourcePath);
+        if (deleted == null || deleted.event.eventType != Node_Delete || !deleted.sourceKnown) return false;
+        unlink(deleted);
+        return true;
+    }
+
+    /**
+     * Removes first event from queue, waiting if necessary until event becomes available.
+     * @return first event from queue
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public @NotNull FileEvent take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            FileEvent event;
+            while ((event = removeFirst()) == null) await();
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes at most {@code maxEvents} events from queue, adding them to {@code collection}, waiting
+     * if necessary until at least one event becomes available.
+     * @param collection the collection to transfer events into
+     * @param maxEvents the maximal number of events to transfer
+     * @return the number of transferred events
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public int takeBatch(@NotNull Collection<? super FileEvent> collection, int maxEvents) throws InterruptedException {
+        if (maxEvents <= 0) return 0;
+        lock.lockInterruptibly();
+        try {
+            FileEvent event;
+            while ((event = removeFirst()) == null) await();
+            collection.add(event);
+            return 1 + drain(collection, maxEvents - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes first event from queue, waiting up to specified time if necessary until event
+     * becomes available.
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit the unit of {@code timeout}
+     * @return first event from queue, {@code null} if timeout elapsed before event became available
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public @Nullable FileEvent poll(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            FileEvent event;
+            while ((event = removeFirst()) == null) {
+                if (nanos <= 0) return null;
+                long start = System.nanoTime();
+                long delay = head != null ? Math.min(nanos, head.readyAt - start) : nanos;
+                notEmpty.awaitNanos(delay);
+                nanos -= System.nanoTime() - start;
+            }
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes first event from queue, if any is available.
+     * @return first event from queue, {@code null} if queue is empty
+     */
+    public @Nullable FileEvent poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes at most {@code maxEvents} events from queue, adding them to {@code collection}.
+     * This method does not wait for events to become available.
+     * @param collection the collection to transfer events into
+     * @param maxEvents the maximal number of events to transfer
+     * @return the number of transferred events
+     */
+    public int drainTo(@NotNull Collection<? super FileEvent> collection, int maxEvents) {
+        lock.lock();
+        try {
+            return drain(collection, maxEvents);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queued events, including ones that are not yet available
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if there are no queued events
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private @NotNull Node append(@NotNull FileEvent event, @Nullable Node samePathPrevious) {
+        Node node = new Node(event, samePathPrevious);
+        link(node);
+        size++;
+        lastEvents.put(event.filePath, node);
+        observe(node);
+        notEmpty.signal();
+        return node;
+    }
+
+    private void link(@NotNull Node node) {
+        node.previous = tail;
+        if (tail != null) tail.next = node;
+        else head = node;
+        tail = node;
+    }
+
+    /**
+     * Restarts debounce window of queued event, moving it to the end of queue, so queue
+     * remains ordered by time events become available.
+     */
+    private void touch(@NotNull Node node) {
+        if (debounce$ns == 0) return;
+        if (node != tail) {
+            if (node.previous != null) node.previous.next = node.next;
+            else head = node.next;
+            //noinspection ConstantConditions
+            node.next.previous = node.previous;
+            node.next = null;
+            link(node);
+        }
+        observe(node);
+    }
+
+    /**
+     * Starts debounce window of event, recording current size and modification timestamp of its file.
+     */
+    private void observe(@NotNull Node node) {
+        node.readyAt = System.nanoTime() + debounce$ns;
+        if (!isChecked(node)) return;
+        BasicFileAttributes attributes = attributes(node.event.filePath);
+        node.size = attributes != null ? attributes.size() : -1;
+        node.modificationTimestamp = attributes != null ? attributes.lastModifiedTime().toMillis() : -1;
+    }
+
+    /**
+     * @return {@code true} if quiescence of file of {@code node} is checked, i.e. it is created or updated
+     */
+    private boolean isChecked(@NotNull Node node) {
+        return rootPath != null && debounce$ns != 0 &&
+               (node.event.eventType == Node_Create || node.event.eventType == Node_Update);
+    }
+
+    /**
+     * Checks if file of created or updated event is no longer being written.
+     */
+    private boolean isQuiescent(@NotNull Node node) {
+        if (!isChecked(node)) return true;
+        BasicFileAttributes attributes = attributes(node.event.filePath);
+        if (attributes == null) return true;
+        if (attributes.size() != node.size ||
+            attributes.lastModifiedTime().toMillis() != node.modificationTimestamp) return false;
+        try (FileChannel channel = FileChannel.open(rootPath.resolve(node.event.filePath),
+                                                    StandardOpenOption.WRITE)) {
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) return false;
+            fileLock.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        } catch (IOException e) {
+            return !Files.exists(rootPath.resolve(node.event.filePath)) ||
+                   !Files.isWritable(rootPath.resolve(node.event.filePath));
+        }
+    }
+
+    private @Nullable BasicFileAttributes attributes(@NotNull Path file) {
+        //noinspection ConstantConditions
+        try {
+            return Files.readAttributes(rootPath.resolve(file), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits until first event may become available, or other event is queued.
+     */
+    private void await() throws InterruptedException {
+        if (head == null) notEmpty.await();
+        else notEmpty.awaitNanos(head.readyAt - System.nanoTime());
+    }
+
+    private int drain(@NotNull Collection<? super FileEvent> collection, int maxEvents) {
+        int count = 0;
+        FileEvent event;
+        while (count < maxEvents && (event = removeFirst()) != null) {
+            collection.add(event);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes node from queue, indexing previous event of same file instead, if it is still queued.
+     * @return previous queued event of same file
+     */
+    private @Nullable Node unlink(@NotNull Node node) {
+        if (node.previous != null) node.previous.next = node.next;
+        else head = node.next;
+        if (node.next != null) node.next.previous = node.previous;
+        else tail = node.previous;
+        node.previous = null;
+        node.next = null;
+        node.queued = false;
+        size--;
+        Node samePathPrevious = node.samePathPrevious != null && node.samePathPrevious.queued
+                                ? node.samePathPrevious
+                                : null;
+        node.samePathPrevious = null;
+        if (lastEvents.get(node.event.filePath) == node) {
+            if (samePathPrevious != null) lastEvents.put(node.event.filePath, samePathPrevious);
+            else lastEvents.remove(node.event.filePath);
+        }
+        return samePathPrevious;
+    }
+
+    /**
+     * Removes first event, if its debounce window elapsed and its file is quiescent.
+     * Events of files that are not quiescent are moved to the end of queue.
+     * @return first available event, {@code null} if there is no available event
+     */
+    private @Nullable FileEvent removeFirst() {
+        long now = System.nanoTime();
+        while (head != null && head.readyAt - now <= 0) {
+            Node first = head;
+            if (!isQuiescent(first)) {
+                touch(first);
+                continue;
+            }
+            unlink(first);
+            if (head != null) notEmpty.signal();
+            return first.event;
+        }
+        return null;
+    }
+
+    private static final class Node {
+
+        private final @NotNull FileEvent event;
+        private @Nullable Node samePathPrevious;
+        private @Nullable Node previous;
+        private @Nullable Node next;
+        private boolean queued = true;
+        private boolean sourceKnown = true;
+        private long readyAt;
+        private long size = -1;
+        private long modificationTimestamp = -1;
+
+        private Node(@NotNull FileEvent event, @Nullable Node samePathPrevious) {
+            this.event = event;
+            this.samePathPrevious = samePathPrevious;
+        }
+    }
+}
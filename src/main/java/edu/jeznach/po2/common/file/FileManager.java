@@ -2,16 +2,44 @@ package edu.jeznach.po2.common.file;
 
 import edu.jeznach.po2.common.configuration.Configuration;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class FileManager {
 
+    /**
+     * Size of direct buffer, that files are read through.
+     */
+    private static final int BUFFER_SIZE = 1 << 18;
+    /**
+     * Size of file, starting from which file is memory-mapped instead of read through buffer.
+     */
+    private static final long MAP_THRESHOLD = 1L << 24;
+    /**
+     * Size of region of file, that is memory-mapped at once.
+     */
+    private static final long MAP_REGION = 1L << 26;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<Map<String, MessageDigest>> digests = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static volatile @Nullable ChecksumCache checksumCache;
 
     /**
      * Calculates checksum of {@code file}.
@@ -20,35 +48,144 @@ public class FileManager {
      * without doing anything with its contents except calculating checksum. When {@code file}
      * is going to be send/received, {@link DigestInputStream} or {@link DigestOutputStream}
      * should be used, as it can calculate checksum while processing file.
+     * <p>Checksum is taken from {@link #getChecksumCache() checksum cache}, if {@code file} was
+     * not modified since it was last calculated.
      * @param file the file that checksum should be calculated of
      * @return {@link String} containing checksum in hex format
      * @throws Exception when exception is thrown while calculating checksum
      */
     public static @NotNull String getChecksum(File file) throws Exception {
-        byte[] b = createChecksum(file);
-        StringBuilder result = new StringBuilder();
+        return getChecksumCache().getChecksum(file);
+    }
+
+    /**
+     * Calculates checksum of {@code file}, using specified algorithm.
+     * @param file the file that checksum should be calculated of
+     * @param algorithm the name of {@link MessageDigest} algorithm
+     * @return {@link String} containing checksum in hex format
+     * @throws Exception when exception is thrown while calculating checksum
+     * @see #getChecksum(File)
+     */
+    public static @NotNull String getChecksum(File file, @NotNull String algorithm) throws Exception {
+        return toHex(createChecksum(file, algorithm));
+    }
 
-        for (byte value : b) {
-            result.append(Integer.toString((value & 0xff) + 0x100, 16)
-                                 .substring(1));
+    /**
+     * Returns cache used by {@link #getChecksum(File)}. Unless other cache was
+     * {@link #setChecksumCache(ChecksumCache) set}, it is created on first call, with capacity
+     * and file taken from {@link Configuration}. If cache file is configured, cache is saved
+     * when application terminates.
+     * @return the cache of checksums calculated with {@link Configuration#CHECKSUM_ALGORITHM}
+     * @see Configuration#CHECKSUM_CACHE_SIZE
+     * @see Configuration#CHECKSUM_CACHE_PATH
+     */
+    public static @NotNull ChecksumCache getChecksumCache() {
+        ChecksumCache cache = checksumCache;
+        if (cache == null) {
+            synchronized (FileManager.class) {
+                cache = checksumCache;
+                if (cache == null) {
+                    cache = createChecksumCache();
+                    checksumCache = cache;
+                }
+            }
         }
-        return result.toString();
+        return cache;
     }
 
-    private static byte[] createChecksum(File file) throws Exception {
-        InputStream fis =  new FileInputStream(file);
+    /**
+     * Replaces cache used by {@link #getChecksum(File)}. Cache should use
+     * {@link Configuration#CHECKSUM_ALGORITHM configured algorithm}.
+     * @param cache the cache of checksums
+     */
+    public static void setChecksumCache(@NotNull ChecksumCache cache) {
+        checksumCache = cache;
+    }
 
-        byte[] buffer = new byte[1024];
-        MessageDigest complete = MessageDigest.getInstance(Configuration.CHECKSUM_ALGORITHM);
-        int numRead;
-        do {
-            numRead = fis.read(buffer);
-            if (numRead > 0) {
-                complete.update(buffer, 0, numRead);
+    private static @NotNull ChecksumCache createChecksumCache() {
+        String path = Configuration.CHECKSUM_CACHE_PATH;
+        try {
+            ChecksumCache cache = new ChecksumCache(Configuration.CHECKSUM_CACHE_SIZE,
+                                                    Configuration.CHECKSUM_ALGORITHM,
+                                                    path != null ? new File(path) : null);
+            if (path != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        cache.save();
+                    } catch (IOException ignored) {  }
+                }, "ChecksumCache: save"));
+            }
+            return cache;
+        } catch (IOException e) {
+            try {
+                return new ChecksumCache(Configuration.CHECKSUM_CACHE_SIZE, Configuration.CHECKSUM_ALGORITHM, null);
+            } catch (IOException ignored) {
+                throw new UncheckedIOException(e);
             }
-        } while (numRead != -1);
+        }
+    }
 
-        fis.close();
+    /**
+     * Returns digest of specified algorithm, that is owned by current thread. Digest is
+     * {@link MessageDigest#reset() reset} before it is returned, and should not be passed
+     * to other threads.
+     * @param algorithm the name of {@link MessageDigest} algorithm
+     * @return reset digest instance, reused by consecutive calls on same thread
+     * @throws NoSuchAlgorithmException if there is no provider of {@code algorithm}
+     */
+    public static @NotNull MessageDigest getDigest(@NotNull String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> threadDigests = digests.get();
+        MessageDigest digest = threadDigests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            threadDigests.put(algorithm, digest);
+        } else digest.reset();
+        return digest;
+    }
+
+    /**
+     * Converts checksum bytes to hex format.
+     * @param checksum the bytes of checksum
+     * @return {@link String} containing checksum in hex format
+     */
+    public static @NotNull String toHex(byte[] checksum) {
+        char[] result = new char[checksum.length * 2];
+        for (int i = 0; i < checksum.length; i++) {
+            result[i * 2] = HEX_DIGITS[(checksum[i] >> 4) & 0x0f];
+            result[i * 2 + 1] = HEX_DIGITS[checksum[i] & 0x0f];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Reads whole file into digest. Small files are read through direct buffer owned by current
+     * thread, while large ones are memory-mapped in regions, so their contents are not copied
+     * into Java heap.
+     */
+    private static byte[] createChecksum(File file, String algorithm) throws Exception {
+        MessageDigest complete = getDigest(algorithm);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAP_REGION) {
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                                          Math.min(MAP_REGION, size - position));
+                    complete.update(region);
+                }
+            } else {
+                read(channel, complete);
+            }
+        }
         return complete.digest();
     }
+
+    private static void read(FileChannel channel, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+    }
 }
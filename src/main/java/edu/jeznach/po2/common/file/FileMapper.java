@@ -1,5 +1,6 @@
 package edu.jeznach.po2.common.file;
 
+import edu.jeznach.po2.common.configuration.Configuration;
 import edu.jeznach.po2.common.util.Pair;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -8,20 +9,18 @@ import org.yaml.snakeyaml.error.YAMLException;
 
 import java.io.*;
 import java.nio.file.NotDirectoryException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 /**
  * Used to manage indexing and mapping of file structure.
  * <p>Allows to <i>attach</i>, <i>detach</i> and <i>update</i> files.
  * <i>Attach</i> represents that file was created, <i>detach</i> represents
  * that file was deleted and <i>update</i> represents that file contents was
- * changed. Renaming or moving file should be handled as <i>detaching</i> file with old name
+ * changed. Renaming or moving file is handled as <i>detaching</i> file with old name
  * and <i>attaching</i> once again with new name, as only modification and no
- * creation date is mapped
+ * creation date is mapped (see {@link #moveFile(File, File, String, String)})
  * <br><br>
  * <p>Files are mapped as $filesStorageDirectory$(/$owner$)/$file$, where:
  * <p>- $filesStorageDirectory$ is directory used for storage,
@@ -32,7 +31,7 @@ import java.util.stream.Collectors;
  *            as structure {@link Yaml#dump(Object, Writer) dumped} to and
  *            {@link Yaml#load(Reader) loaded} from file
  */
-public abstract class FileMapper<M> {
+public abstract class FileMapper<M> implements Closeable {
 
     /**
      * Contains factory methods for creating/loading file mapping.
@@ -50,14 +49,30 @@ public abstract class FileMapper<M> {
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
     @NotNull protected Optional<File> mappingFile;
 
+    @Nullable private final MappingJournal journal;
+    @Nullable private final MappingWriter writer;
+
     /**
      * Creates new file mapper.
+     * <p>Modifications of mapping are appended to {@link MappingJournal} (if
+     * {@link Configuration#MAPPING_JOURNAL enabled}) and written to {@code file} as snapshot by
+     * {@link MappingWriter}, so {@link #close()} should be called when mapper is no longer used.
      * @param mapping the mapping object
      * @param file the file that is used to store mapping
      */
     public FileMapper(@NotNull M mapping, @Nullable File file) {
         this.mapping = mapping;
         this.mappingFile = Optional.ofNullable(file);
+        if (file != null) {
+            this.journal = Configuration.MAPPING_JOURNAL ? new MappingJournal(file, this::error) : null;
+            this.writer = new MappingWriter(file,
+                                            this::snapshot,
+                                            journal != null ? journal::discardRotated : null,
+                                            this::error);
+        } else {
+            this.journal = null;
+            this.writer = null;
+        }
     }
 
     /**
@@ -89,6 +104,22 @@ public abstract class FileMapper<M> {
      */
     public abstract boolean updateFile(@NotNull File file, @NotNull String checksum, @NotNull String node);
 
+    /**
+     * Moves (or renames) file in mapping, without changing its contents.
+     * <p>By default file is detached with old path and attached once again with new one
+     * @param source the {@link File} that was moved, should no longer exist in mapped directory
+     *               prior to this call
+     * @param file the {@link File} that {@code source} was moved to. File should be already existing
+     *             in mapped directory prior to this call
+     * @param checksum the checksum of moved file
+     * @param node the name of node that file belongs to
+     * @return {@code true} if file was moved, {@code false} if {@code source} is not attached
+     *         or {@code file} is already attached
+     */
+    public boolean moveFile(@NotNull File source, @NotNull File file, @NotNull String checksum, @NotNull String node) {
+        return detachFile(source, node) && attachFile(file, checksum, node);
+    }
+
     /**
      * Shares file to {@code receiver}
      * @param file the {@link File} to be shared. File should be already existing in directory
@@ -111,6 +142,85 @@ public abstract class FileMapper<M> {
      */
     @Nullable public abstract Boolean unshareFile(@NotNull File file, @NotNull String node, @NotNull String receiver);
 
+    /**
+     * Applies operation read from {@link MappingJournal} to mapping. Operation is neither
+     * journaled nor written to file.
+     * @param record the record of operation
+     * @return {@code true} if mapping was modified
+     */
+    protected abstract boolean apply(@NotNull MappingJournal.Record record);
+
+    /**
+     * @return the codec used to persist mapping, should be same as
+     *         {@link FileMappingProvider#getCodec()} of this implementation provider
+     */
+    @NotNull protected abstract MappingCodec<M> codec();
+
+    /**
+     * Handles exception thrown while persisting mapping.
+     * @param e the exception that was thrown
+     */
+    protected abstract void error(@NotNull Exception e);
+
+    /**
+     * Appends record of operation to journal. Should be called while holding lock that
+     * orders operations on modified part of mapping, followed by {@link #markDirty()} once
+     * that lock is released.
+     * @param record the record of operation that modified mapping
+     */
+    protected void journal(@NotNull MappingJournal.Record record) {
+        if (journal != null) journal.append(record);
+    }
+
+    /**
+     * Reports that mapping should be written to its file. If {@link MappingWriter} works in
+     * synchronous mode, mapping is written during this call, so it should not be called while
+     * holding lock that excludes {@link #snapshot()} on other thread.
+     */
+    protected void markDirty() {
+        if (writer != null) writer.markDirty();
+    }
+
+    /**
+     * Serializes mapping, while holding lock on this object.
+     * <p>Implementations that guard modifications with other locks should override this
+     * method, calling {@link #serialize()} while modifications are excluded.
+     * @return the mapping serialized with {@link #codec()}
+     * @throws IOException if an I/O error occurs while serializing mapping or rotating journal
+     */
+    protected synchronized byte[] snapshot() throws IOException {
+        return serialize();
+    }
+
+    /**
+     * Serializes mapping, rotating journal so it no longer contains operations included in
+     * returned snapshot. Mapping must not be modified during this call.
+     * @return the mapping serialized with {@link #codec()}
+     * @throws IOException if an I/O error occurs while serializing mapping or rotating journal
+     */
+    protected byte[] serialize() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        codec().encode(mapping, stream);
+        if (journal != null) journal.rotate();
+        return stream.toByteArray();
+    }
+
+    /**
+     * Writes pending modifications of mapping to its file.
+     */
+    public void flush() {
+        if (writer != null) writer.flush();
+    }
+
+    /**
+     * Writes pending modifications of mapping to its file and releases writer thread and journal.
+     */
+    @Override
+    public void close() {
+        if (writer != null) writer.close();
+        if (journal != null) journal.close();
+    }
+
     /**
      * Represents companion object of {@link FileMapper} stored in {@link FileMapper#provider},
      * used for creating/loading file mapping via factory methods.
@@ -131,7 +241,8 @@ public abstract class FileMapper<M> {
          * <p>If file permissions, especially writing is permitted, then this method
          * will always {@link Yaml#dump(Object, Writer) dump} its result to specified
          * path, so it is important to provide file that can be overridden and/or losing
-         * of its current contents is not important anymore.
+         * of its current contents is not important anymore. {@link MappingJournal} of
+         * that file is deleted, as it no longer applies to created mapping.
          * @param file the file that is to be used to save mapping,
          *                 if {@code null} then mapping will not be saved to file (runtime only)
          * @param parameters the parameters that are being passed to file mapping object constructor
@@ -144,7 +255,34 @@ public abstract class FileMapper<M> {
          *                               a directory (optional)
          * @throws IOException if an I/O exception occurs while creating mapping file
          */
-        @NotNull public abstract Pair<M, Boolean> createStructure(@Nullable File file, @NotNull P parameters)
+        @SuppressWarnings("DuplicateThrows")
+        @NotNull public Pair<M, Boolean> createStructure(@Nullable File file, @NotNull P parameters)
+                throws RuntimeException, FileNotFoundException, NotDirectoryException, IOException {
+            return createStructure(file, parameters, null);
+        }
+
+        /**
+         * Creates new mapping of file structure and saves its results in file, same as
+         * {@link #createStructure(File, Object) createStructure(File, P)}.
+         * <p>If {@code previous} mapping is provided (i.e. {@link #loadStructure(File) loaded} from
+         * same file), checksums of files which size and modification timestamp did not change are
+         * taken from it, rather than calculated, so only modified files are read.
+         * @param file the file that is to be used to save mapping,
+         *                 if {@code null} then mapping will not be saved to file (runtime only)
+         * @param parameters the parameters that are being passed to file mapping object constructor
+         * @param previous the previously created mapping of same structure, can be {@code null}
+         * @return {@link Pair} of object containing created mapping and boolean value ({@code true}
+         *         if {@code file} didn't exist prior to call, {@code false} if it did, {@code null}
+         *         if {@code file} was not provided
+         * @throws RuntimeException if exception was thrown while initialising file mapping (optional)
+         * @throws FileNotFoundException if provided {@code file} was a directory rather than file
+         * @throws NotDirectoryException if node that should represent file placeholder is not
+         *                               a directory (optional)
+         * @throws IOException if an I/O exception occurs while creating mapping file
+         */
+        @NotNull public abstract Pair<M, Boolean> createStructure(@Nullable File file,
+                                                                  @NotNull P parameters,
+                                                                  @Nullable M previous)
                 throws RuntimeException, FileNotFoundException, NotDirectoryException, IOException;
 
         /**
@@ -154,15 +292,81 @@ public abstract class FileMapper<M> {
          * and perform some actions based on difference of those two calls, as this would
          * suggest that modifications to file structure were performed in between execution
          * of application
+         * <p>Loaded snapshot is brought up to date by replaying {@link MappingJournal} of {@code file}.
          * @param file the file that is to be used to load mapping
          * @return object containing loaded mapping
          * @throws FileNotFoundException if provided {@code file} was not found,
          *                               or was a directory rather than file
          * @throws YAMLException if parsing {@code file} throws exception
-         * @throws IOException if an I/O exception occurs while closing reading stream
+         * @throws IOException if an I/O exception occurs while closing reading stream, or reading journal
          */
         @Nullable public abstract M loadStructure(@NotNull File file)
                 throws FileNotFoundException, YAMLException, IOException;
+
+        /**
+         * @param format the format of persisted mapping
+         * @return the codec that persists mapping in {@code format}
+         */
+        @NotNull public abstract MappingCodec<M> getCodec(@NotNull MappingCodec.Format format);
+
+        /**
+         * @return the codec that persists mapping in {@link Configuration#MAPPING_FORMAT configured format}
+         */
+        @NotNull public MappingCodec<M> getCodec() {
+            return getCodec(MappingCodec.Format.valueOf(Configuration.MAPPING_FORMAT));
+        }
+
+        /**
+         * Converts mapping stored in {@code source} (in any format, together with its journal) to
+         * {@code format}, saving it in {@code target}. Journal of {@code target} is deleted, as
+         * converted mapping already contains its records, so {@code source} can also be used
+         * as {@code target}.
+         * @param source the file that mapping is loaded from
+         * @param target the file that converted mapping is saved to
+         * @param format the format to convert mapping to
+         * @throws FileNotFoundException if provided {@code source} was not found
+         * @throws YAMLException if parsing {@code source} throws exception
+         * @throws IOException if an I/O exception occurs while converting, or {@code source} contains no mapping
+         */
+        public void convert(@NotNull File source, @NotNull File target, @NotNull MappingCodec.Format format)
+                throws FileNotFoundException, YAMLException, IOException {
+            M mapping = loadStructure(source);
+            if (mapping == null) throw new IOException("File " + source + " contains no mapping");
+            try (OutputStream stream = new FileOutputStream(target)) {
+                getCodec(format).encode(mapping, stream);
+            }
+            MappingJournal.delete(target);
+        }
+
+        /**
+         * Reads mapping from {@code file}, detecting format it is stored in.
+         * @param file the file to read mapping from
+         * @return the read mapping
+         * @throws FileNotFoundException if provided {@code file} was not found
+         * @throws YAMLException if parsing YAML {@code file} throws exception
+         * @throws IOException if an I/O exception occurs while reading
+         */
+        @SuppressWarnings("DuplicateThrows")
+        @Nullable protected M read(@NotNull File file) throws FileNotFoundException, YAMLException, IOException {
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                MappingCodec.Format format = BinaryMappingCodec.isBinary(stream)
+                                             ? MappingCodec.Format.binary
+                                             : MappingCodec.Format.yaml;
+                return getCodec(format).decode(stream);
+            }
+        }
+
+        /**
+         * Writes mapping to {@code file} in configured format.
+         * @param mapping the mapping to write
+         * @param file the file to write mapping to
+         * @throws IOException if an I/O exception occurs while writing
+         */
+        protected void write(@NotNull M mapping, @NotNull File file) throws IOException {
+            try (OutputStream stream = new FileOutputStream(file)) {
+                getCodec().encode(mapping, stream);
+            }
+        }
     }
 
     /**
@@ -186,32 +390,23 @@ public abstract class FileMapper<M> {
      * @return list of all files contained in {@code directory}, and its subdirectories
      */
     protected static List<FileMapping> listFiles(File directory, File rootDirectory) {
-        List<FileMapping> ret;
-        File[] nodes = directory.listFiles();
-        if (nodes != null && nodes.length > 0) {
-            ret = Arrays.stream(nodes)
-                        .filter(f -> !f.isDirectory())
-                        .map(f -> {
-                            try {
-                                return new FileMapping(
-                                        getRelativePath(f, rootDirectory),
-                                    f.length(),
-                                    FileManager.getChecksum(f),
-                                    f.lastModified()
-                                );
-                            } catch (Exception e) {
-                                return new FileMapping(e.getMessage(), -1L, "", -1L);
-                            }
-                        })
-                        .collect(Collectors.toList());
-            List<File> directoryNodes = Arrays.stream(nodes)
-                                              .filter(File::isDirectory)
-                                              .collect(Collectors.toList());
-            for (File directoryNode : directoryNodes) {
-                ret.addAll(listFiles(directoryNode, rootDirectory));
-            }
-            return ret;
-        } else return new ArrayList<>();
+        return listFiles(directory, rootDirectory, null);
+    }
+
+    /**
+     * Recursively creates list of files, in parallel, reusing checksums of files that did not
+     * change since {@code known} mapping was created.
+     * @param directory the directory to create list of files of, usually same as {@code rootDirectory}
+     * @param rootDirectory the root directory, it is used cut off this part of path from list of files
+     * @param known the previously loaded mappings of files contained in {@code rootDirectory}, by their
+     *              relative path, {@code null} if checksums of all files should be calculated
+     * @return list of all files contained in {@code directory}, and its subdirectories
+     * @see FileScanner
+     */
+    protected static List<FileMapping> listFiles(File directory,
+                                                 File rootDirectory,
+                                                 @Nullable Map<String, ? extends FileMapping> known) {
+        return FileScanner.scan(directory, rootDirectory, known);
     }
 
     /**
@@ -1,20 +1,19 @@
 package edu.jeznach.po2.common.file;
 
-import com.diogonunes.jcdp.color.api.Ansi;
+import edu.jeznach.po2.common.communication.PartialTransfer;
+import edu.jeznach.po2.common.configuration.Configuration;
 import edu.jeznach.po2.common.log.Log;
-import edu.jeznach.po2.common.util.ExtendedLinkedList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
-
-import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
-import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
-import static java.nio.file.StandardWatchEventKinds.*;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * A simple observer that watches directory for changes of its files. All current and
@@ -25,15 +24,25 @@ import static java.nio.file.StandardWatchEventKinds.*;
  * <p><i>Observation</i> of specified directory is done in infinite loop, so it is advised
  * to provide dedicated thread. Queued events are shifted in thread-safe fashion, but code
  * block that acquires event should immediately take action based on its type.
+ * <p>Events are delivered once file was not modified for {@link Configuration#EVENT_DEBOUNCE$MS debounce window}
+ * and is no longer being written, so file that is written in several steps is reported once.
+ * Consumers can {@link #popEvents(Collection, int) pop events in batches}, i.e. to group small files
+ * into single transfer.
+ * <p>Files of {@link PartialTransfer partial transfers} are not reported, until they are moved in place.
+ * <p>File that is deleted and created at other path within debounce window is reported as
+ * {@link FileEvent.Type#Node_Move moved}, if it is same file (by file key) or has same contents as
+ * {@code knownFiles} state of deleted one, so it does not have to be transferred again.
+ * <br><br>
+ * <p>Changes are detected by {@link ChangeSource} of {@link Configuration#CHANGE_SOURCE configured type}:
+ * <p>- {@link WatchServiceChangeSource} uses file system notifications,
+ * <p>- {@link PollingChangeSource} periodically scans metadata of files, so it also works on network
+ *      and FUSE file systems, that do not deliver notifications.
+ * @see FileEventQueue
  */
 public class FileObserver extends Thread {
 
-    private final @NotNull Path rootPath;
-    private final @NotNull WatchService watchService;
-    private final @NotNull Map<@NotNull WatchKey, @NotNull Path> registeredKeys;
-    @SuppressWarnings("UnusedAssignment") private boolean trace = false;
-    private final @NotNull ExtendedLinkedList<FileEvent> queuedEvents;
-    private final @NotNull Log log;
+    private final @NotNull FileEventQueue queuedEvents;
+    private final @NotNull ChangeSource source;
 
     /**
      * Creates new FileObserver for {@code rootDirectory} and all of its current and future
@@ -48,13 +57,67 @@ public class FileObserver extends Thread {
      */
     public FileObserver(@NotNull Path rootDirectory,
                         @NotNull Log log) throws IOException {
-        this.rootPath = rootDirectory;
-        this.log = log;
-        this.watchService = FileSystems.getDefault().newWatchService();
-        this.registeredKeys = new HashMap<>();
-        registerAll(rootDirectory);
-        this.trace = true;
-        this.queuedEvents = new ExtendedLinkedList<>();
+        this(rootDirectory, log, null);
+    }
+
+    /**
+     * Creates new FileObserver for {@code rootDirectory} and all of its current and future
+     * subdirectories, that recovers events lost due to overflow.
+     * @param rootDirectory the root of directory tree to observe
+     * @param log the {@link Log} object used for logging important events
+     * @param knownFiles the supplier of last known state of files, by their path relative to
+     *                   {@code rootDirectory} (i.e. current mapping of files), if {@code null} then
+     *                   lost events are not recovered
+     * @throws IOException if an I/O error occurs <i>(very thoughtful of JDK developers
+     *                     to not specify what error)</i>
+     */
+    public FileObserver(@NotNull Path rootDirectory,
+                        @NotNull Log log,
+                        @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles)
+            throws IOException {
+        this(rootDirectory, log, knownFiles, ChangeSource.Type.valueOf(Configuration.CHANGE_SOURCE));
+    }
+
+    /**
+     * Creates new FileObserver for {@code rootDirectory} and all of its current and future
+     * subdirectories, using specified mechanism to detect changes.
+     * @param rootDirectory the root of directory tree to observe
+     * @param log the {@link Log} object used for logging important events
+     * @param knownFiles the supplier of last known state of files, by their path relative to
+     *                   {@code rootDirectory} (i.e. current mapping of files), if {@code null} then
+     *                   lost events are not recovered
+     * @param type the type of {@link ChangeSource} used to detect changes
+     * @throws IOException if an I/O error occurs <i>(very thoughtful of JDK developers
+     *                     to not specify what error)</i>
+     */
+    public FileObserver(@NotNull Path rootDirectory,
+                        @NotNull Log log,
+                        @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles,
+                        @NotNull ChangeSource.Type type)
+            throws IOException {
+        this.queuedEvents = new FileEventQueue(rootDirectory, Configuration.EVENT_DEBOUNCE$MS);
+        MoveDetector detector = new MoveDetector(rootDirectory, queuedEvents::offer, knownFiles,
+                                                 Configuration.EVENT_DEBOUNCE$MS);
+        Consumer<@NotNull FileEvent> sink = event -> {
+            if (!PartialTransfer.isPartial(event.filePath)) detector.accept(event);
+        };
+        switch (type) {
+            case poll:
+                this.source = new PollingChangeSource(rootDirectory, sink, log);
+                break;
+            case watch:
+            default:
+                this.source = new WatchServiceChangeSource(rootDirectory, sink, log, knownFiles);
+        }
+    }
+
+    /**
+     * Waits until initial state of observed directory is captured (i.e. all directories that existed
+     * when this observer was created are registered), so later changes are reported.
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    public void awaitRegistration() throws InterruptedException {
+        source.awaitReady();
     }
 
     /**
@@ -70,146 +133,74 @@ public class FileObserver extends Thread {
      *                              cleared when this exception is thrown
      */
     public @NotNull FileEvent popEvent() throws InterruptedException {
-        synchronized (queuedEvents) {
-            if (queuedEvents.isEmpty())
-                queuedEvents.wait();
-            return queuedEvents.pop();
-//            throw new InterruptedException("Moved out of queue scope");
-        }
+        return queuedEvents.take();
     }
 
     /**
-     * Main producer loop. In each iteration pulls all file system events and appends them
-     * to {@link #queuedEvents}, removing/replacing existing ones, if handling those should
-     * no longer be pursued. This method should never be called directly, rather {@link Thread#start()}
-     * be called instead.
+     * Pops element from {@link FileEvent} queue, waiting up to specified time if no event
+     * is currently available.
+     * <br><br>
+     * <p>Thread that makes this call is <b>required</b> to take action that handles returned
+     * event, as event cannot be returned to queue.
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit the unit of {@code timeout}
+     * @return first event from queue, {@code null} if timeout elapsed before event became available
+     * @throws InterruptedException if any thread interrupted the current thread before
+     *                              or while the current thread was waiting
      */
-    @Override
-    public void run() {
-        while (true) {
-            WatchKey key;
-            try {
-                key = watchService.take();
-            } catch (InterruptedException e) {
-                return;
-            }
-
-            Path eventDir = registeredKeys.get(key);
-            if (eventDir == null) {
-                log.debug(new Log.Message(
-                        System.currentTimeMillis(),
-                        "🔕",
-                        "Directory unregistered!",
-                        "Could not find directory associated with retrieved WatchKey"
-                ), Ansi.Attribute.NONE, Ansi.FColor.RED);
-                continue;
-            }
-
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
-
-                if (kind == OVERFLOW) {
-                    log.debug(new Log.Message(
-                            System.currentTimeMillis(),
-                            "📚",
-                            "Event overflow!",
-                            "FileEvents may have been lost or discarded due to slow processing"
-                    ), Ansi.Attribute.NONE, Ansi.FColor.RED);
-                    continue;
-                }
-
-                WatchEvent<Path> entryEvent = cast(event);
-                Path name = entryEvent.context();
-                Path child = eventDir.resolve(name);
-                Path file = rootPath.relativize(child);
-                if (ENTRY_CREATE.equals(kind)) {
-                    if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                        try {
-                            registerAll(child);
-                        } catch (IOException e) {
-                            log.ioException(e);
-                        }
-                    } else {
-                        FileEvent fileEvent = new FileEvent(file, Node_Create);
-                        synchronized (queuedEvents) {
-                            queuedEvents.add(fileEvent);
-                            queuedEvents.notify();
-                        }
-                    }
-                } else if (ENTRY_MODIFY.equals(kind)) {
-                    FileEvent fileEvent = new FileEvent(file, Node_Update);
-                    synchronized (queuedEvents) {
-                        boolean shouldAdd = true;
-                        for (FileEvent queuedEvent : queuedEvents) {
-                            if (queuedEvent.filePath.equals(file) &&
-                                (queuedEvent.eventType.equals(Node_Create) ||
-                                 queuedEvent.eventType.equals(Node_Update))) {
-                                shouldAdd = false;
-                                break;
-                            }
-                        }
-                        if (shouldAdd) {
-                            queuedEvents.add(fileEvent);
-                            queuedEvents.notify();
-                        }
-                    }
-                } else if (ENTRY_DELETE.equals(kind)) {
-                    FileEvent fileEvent = new FileEvent(file, Node_Delete);
-                    synchronized (queuedEvents) {
-                        queuedEvents.removeIf(
-                                queuedEvent -> queuedEvent.filePath.equals(file) &&
-                                               (queuedEvent.eventType.equals(Node_Create) ||
-                                               queuedEvent.eventType.equals(Node_Update))
-                        );
-                        queuedEvents.add(fileEvent);
-                        queuedEvents.notify();
-                    }
-                }
-
-                boolean valid = key.reset();
-                if (!valid) registeredKeys.remove(key);
-            }
-        }
+    public @Nullable FileEvent popEvent(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return queuedEvents.poll(timeout, unit);
     }
 
-    @SuppressWarnings("unchecked")
-    private static <T> WatchEvent<T> cast(WatchEvent<?> event) {
-        return (WatchEvent<T>) event;
+    /**
+     * Pops at most {@code maxEvents} elements from {@link FileEvent} queue. This method may block
+     * if no event is currently available, but returns all events that are available once first
+     * one is.
+     * <br><br>
+     * <p>Thread that makes this call is <b>required</b> to take action that handles returned
+     * events, as events cannot be returned to queue.
+     * @param collection the collection to transfer events into
+     * @param maxEvents the maximal number of events to transfer
+     * @return the number of transferred events
+     * @throws InterruptedException if any thread interrupted the current thread before
+     *                              or while the current thread was waiting
+     */
+    public int popEvents(@NotNull Collection<? super FileEvent> collection, int maxEvents) throws InterruptedException {
+        return queuedEvents.takeBatch(collection, maxEvents);
     }
 
     /**
-     * @return {@code true} - new directory, {@code false} update directory to new,
-     *         {@code null} - update directory to same
+     * Pops at most {@code maxEvents} elements from {@link FileEvent} queue, without waiting
+     * for events to become available.
+     * <br><br>
+     * <p>Thread that makes this call is <b>required</b> to take action that handles returned
+     * events, as events cannot be returned to queue.
+     * @param collection the collection to transfer events into
+     * @param maxEvents the maximal number of events to transfer
+     * @return the number of transferred events
      */
-    @SuppressWarnings("UnusedReturnValue")
-    private @Nullable Boolean registerDirectory(final @NotNull Path directory) throws IOException {
-        Boolean ret;
-        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
-        Path existing = registeredKeys.get(key);
-        if (trace) {
-            if (existing == null) {
-                ret = true;
-            } else {
-                if (!directory.equals(existing)) ret = false;
-                else ret = null;
-            }
-        } else ret = true;
-        registeredKeys.put(key, directory);
-        return ret;
+    public int drainEvents(@NotNull Collection<? super FileEvent> collection, int maxEvents) {
+        return queuedEvents.drainTo(collection, maxEvents);
     }
 
-    private void registerAll(final @NotNull Path rootPath) throws IOException {
-        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                registerDirectory(dir);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+    /**
+     * Main producer loop. Detects changes with {@link ChangeSource} and appends them
+     * to {@link #queuedEvents}, removing/replacing existing ones, if handling those should
+     * no longer be pursued. This method should never be called directly, rather {@link Thread#start()}
+     * be called instead. Loop ends once this thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            source.observe();
+        } catch (InterruptedException ignored) {
+        } finally {
+            source.close();
+        }
     }
 
     /**
-     * Represents event related to file modification (CUD)
+     * Represents event related to file modification (CUD), or file being moved
      */
     public static final class FileEvent {
 
@@ -222,6 +213,11 @@ public class FileObserver extends Thread {
          * @see Type
          */
         public final @NotNull Type eventType;
+        /**
+         * Relative (to watched root directory) path that file was moved from, if this event
+         * is {@link Type#Node_Move move}, {@code null} otherwise.
+         */
+        public final @Nullable Path sourcePath;
 
         /**
          * Creates new {@code FileEvent} identifier
@@ -232,8 +228,27 @@ public class FileObserver extends Thread {
                          @NotNull Type eventType) {
             this.filePath = filePath;
             this.eventType = eventType;
+            this.sourcePath = null;
         }
 
+        /**
+         * Creates new {@code FileEvent} identifier of file being moved
+         * @param filePath the relative (to watched root directory) path that file was moved to
+         * @param sourcePath the relative (to watched root directory) path that file was moved from
+         */
+        public FileEvent(@NotNull Path filePath,
+                         @NotNull Path sourcePath) {
+            this.filePath = filePath;
+            this.eventType = Type.Node_Move;
+            this.sourcePath = sourcePath;
+        }
+
+        /**
+         * @return {@code true} if this event is {@link Type#Node_Move move} of file within same directory
+         */
+        public boolean isRename() {
+            return sourcePath != null && Objects.equals(sourcePath.getParent(), filePath.getParent());
+        }
 
         /**
          * Represents type of event. Event type may represent single event (file deleted,
@@ -247,12 +262,14 @@ public class FileObserver extends Thread {
             /** Existing File was updated (and possibly multiple times) */
             Node_Update,
             /** Existing File was deleted (and possibly created/updated before) */
-            Node_Delete
+            Node_Delete,
+            /** Existing File was moved (or renamed) without changing its contents */
+            Node_Move
         }
 
         @Override
         public String toString() {
-            return eventType + ": " + filePath.toString();
+            return eventType + ": " + (sourcePath != null ? sourcePath + " => " : "") + filePath.toString();
         }
     }
 }
@@ -0,0 +1,179 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.communication.PartialTransfer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Creates lists of files contained in directory trees, calculating their checksums in parallel.
+ * <p>Directories and files are scanned with fork-join tasks, so several trees and large directories
+ * are scanned on all available processors. If mapping of file is already known (i.e. loaded
+ * from previous execution of application) and its size and modification timestamp did not change,
+ * checksum stored in known mapping is reused instead of reading file again.
+ * <p>Temporary files of transfers in progress ({@link PartialTransfer#isPartial(java.nio.file.Path)})
+ * are skipped, so they are never mapped as files of user.
+ * @see FileMapper#listFiles(File, File)
+ */
+public class FileScanner {
+
+    /**
+     * Number of files, that is processed in single task. Directories containing more files
+     * are split into several tasks.
+     */
+    private static final int FILES_PER_TASK = 16;
+
+    private static final @NotNull ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private FileScanner() {  }
+
+    /**
+     * Recursively creates list of files contained in {@code directory}.
+     * @param directory the directory to create list of files of
+     * @param rootDirectory the root directory, it is used cut off this part of path from list of files
+     * @param known the mappings of files from previous scan, by their relative path,
+     *              {@code null} if all checksums should be calculated
+     * @return list of all files contained in {@code directory}, and its subdirectories
+     */
+    public static @NotNull List<FileMapping> scan(@NotNull File directory,
+                                                  @NotNull File rootDirectory,
+                                                  @Nullable Map<String, ? extends FileMapping> known) {
+        return pool.invoke(new DirectoryTask(directory, rootDirectory, known));
+    }
+
+    /**
+     * Recursively creates lists of files contained in {@code directories}, scanning all of them
+     * in parallel. Each directory is used as root directory of its own files.
+     * @param directories the directories to create lists of files of
+     * @param known the function returning mappings of files from previous scan of directory, by
+     *              their relative path, or {@code null} if all checksums should be calculated
+     * @return lists of all files contained in each of {@code directories}, and their subdirectories
+     */
+    public static @NotNull Map<File, List<FileMapping>> scanAll(
+            @NotNull Collection<File> directories,
+            @NotNull Function<File, @Nullable Map<String, ? extends FileMapping>> known) {
+        return pool.invoke(new RecursiveTask<Map<File, List<FileMapping>>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Map<File, List<FileMapping>> compute() {
+                Map<File, DirectoryTask> tasks = new LinkedHashMap<>();
+                for (File directory : directories) {
+                    tasks.put(directory, new DirectoryTask(directory, directory, known.apply(directory)));
+                }
+                ForkJoinTask.invokeAll(tasks.values());
+                Map<File, List<FileMapping>> ret = new LinkedHashMap<>();
+                tasks.forEach((directory, task) -> ret.put(directory, task.join()));
+                return ret;
+            }
+        });
+    }
+
+    /**
+     * Creates index of mappings by their path.
+     * @param mappings the mappings to index, can be {@code null}
+     * @return map of mappings by their {@link FileMapping#getPathname() pathname}
+     */
+    public static @NotNull Map<String, FileMapping> index(@Nullable Collection<? extends FileMapping> mappings) {
+        Map<String, FileMapping> ret = new HashMap<>();
+        if (mappings != null) {
+            for (FileMapping mapping : mappings) {
+                ret.put(mapping.getPathname(), mapping);
+            }
+        }
+        return ret;
+    }
+
+    private static @NotNull FileMapping map(@NotNull File file,
+                                            @NotNull File rootDirectory,
+                                            @Nullable Map<String, ? extends FileMapping> known) {
+        try {
+            String pathname = FileMapper.getRelativePath(file, rootDirectory);
+            long size = file.length();
+            long modificationTimestamp = file.lastModified();
+            FileMapping knownMapping = known != null ? known.get(pathname) : null;
+            String checksum;
+            if (knownMapping != null &&
+                knownMapping.getSize_bytes() == size &&
+                knownMapping.getModification_timestamp() == modificationTimestamp &&
+                !knownMapping.getChecksum().isEmpty()) {
+                checksum = knownMapping.getChecksum();
+            } else {
+                checksum = FileManager.getChecksum(file);
+            }
+            return new FileMapping(pathname, size, checksum, modificationTimestamp);
+        } catch (Exception e) {
+            return new FileMapping(String.valueOf(e.getMessage()), -1L, "", -1L);
+        }
+    }
+
+    private static final class DirectoryTask extends RecursiveTask<List<FileMapping>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull File directory;
+        private final @NotNull File rootDirectory;
+        private final @Nullable Map<String, ? extends FileMapping> known;
+
+        private DirectoryTask(@NotNull File directory,
+                              @NotNull File rootDirectory,
+                              @Nullable Map<String, ? extends FileMapping> known) {
+            this.directory = directory;
+            this.rootDirectory = rootDirectory;
+            this.known = known;
+        }
+
+        @Override
+        protected List<FileMapping> compute() {
+            File[] nodes = directory.listFiles();
+            if (nodes == null || nodes.length == 0) return new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            List<ForkJoinTask<List<FileMapping>>> tasks = new ArrayList<>();
+            for (File node : nodes) {
+                if (node.isDirectory()) tasks.add(new DirectoryTask(node, rootDirectory, known));
+                else if (!PartialTransfer.isPartial(node.toPath())) files.add(node);
+            }
+            for (int i = 0; i < files.size(); i += FILES_PER_TASK) {
+                tasks.add(new FilesTask(files.subList(i, Math.min(i + FILES_PER_TASK, files.size())),
+                                        rootDirectory, known));
+            }
+            List<FileMapping> ret = new ArrayList<>();
+            for (ForkJoinTask<List<FileMapping>> task : ForkJoinTask.invokeAll(tasks)) {
+                ret.addAll(task.join());
+            }
+            return ret;
+        }
+    }
+
+    private static final class FilesTask extends RecursiveTask<List<FileMapping>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull List<File> files;
+        private final @NotNull File rootDirectory;
+        private final @Nullable Map<String, ? extends FileMapping> known;
+
+        private FilesTask(@NotNull List<File> files,
+                          @NotNull File rootDirectory,
+                          @Nullable Map<String, ? extends FileMapping> known) {
+            this.files = files;
+            this.rootDirectory = rootDirectory;
+            this.known = known;
+        }
+
+        @Override
+        protected List<FileMapping> compute() {
+            List<FileMapping> ret = new ArrayList<>(files.size());
+            for (File file : files) {
+                ret.add(map(file, rootDirectory, known));
+            }
+            return ret;
+        }
+    }
+}
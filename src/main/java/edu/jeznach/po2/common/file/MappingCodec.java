@@ -0,0 +1,43 @@
+package edu.jeznach.po2.common.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Used to convert mapping to and from its persisted form.
+ * @param <M> the type holding indexed mapping
+ * @see FileMapper.FileMappingProvider#getCodec(Format)
+ */
+public interface MappingCodec<M> {
+
+    /**
+     * Writes {@code mapping} to {@code stream}. Stream is not closed by this call.
+     * @param mapping the mapping to write
+     * @param stream the stream to write mapping to
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void encode(@NotNull M mapping, @NotNull OutputStream stream) throws IOException;
+
+    /**
+     * Reads mapping from {@code stream}. Stream is not closed by this call.
+     * @param stream the stream to read mapping from
+     * @return the read mapping, {@code null} if stream contains no mapping
+     * @throws IOException if an I/O error occurs while reading, or stream contents
+     *                     are not properly formatted
+     * @throws YAMLException if parsing YAML mapping throws exception
+     */
+    @Nullable M decode(@NotNull InputStream stream) throws IOException, YAMLException;
+
+    /**
+     * Represents format in which mapping is persisted.
+     */
+    enum Format {
+        /** Human readable YAML document, serialized with SnakeYAML */ yaml,
+        /** Compact binary document */ binary
+    }
+}
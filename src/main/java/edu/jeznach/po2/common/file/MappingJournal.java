@@ -0,0 +1,319 @@
+package edu.jeznach.po2.common.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of operations performed on mapping.
+ * <p>Journal complements mapping file, which is used as snapshot - every operation
+ * performed on mapping is appended as single line to journal file, so it costs small sequential
+ * write instead of rewriting whole mapping. State of mapping is restored by loading
+ * snapshot and {@link #replay(File, Consumer) replaying} journal on top of it.
+ * <br><br>
+ * <p>Journal is compacted together with writing snapshot:
+ * <p>- while mapping is not modified, journal is {@link #rotate() rotated} to <i>old</i> journal file,
+ * <p>- snapshot is written to mapping file,
+ * <p>- <i>old</i> journal file is {@link #discardRotated() discarded}.
+ * <p>If application is terminated before <i>old</i> journal is discarded, it is replayed
+ * on top of snapshot that already contains its operations. Operations are idempotent when
+ * replayed in order, so this results in same mapping.
+ * <br><br>
+ * <p>All public methods of this class are thread-safe.
+ */
+public class MappingJournal implements Closeable {
+
+    private final @NotNull File journalFile;
+    private final @NotNull File rotatedFile;
+    private final @NotNull Consumer<Exception> errorHandler;
+    private @Nullable Writer writer;
+
+    /**
+     * Creates journal for mapping stored in {@code mappingFile}. Journal file is
+     * opened on first append.
+     * @param mappingFile the file that is used to store mapping snapshot
+     * @param errorHandler the handler of exceptions thrown while writing journal
+     */
+    public MappingJournal(@NotNull File mappingFile, @NotNull Consumer<Exception> errorHandler) {
+        this.journalFile = journalFile(mappingFile);
+        this.rotatedFile = rotatedFile(mappingFile);
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Appends record to journal.
+     * @param record the record of operation performed on mapping
+     */
+    public synchronized void append(@NotNull Record record) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true),
+                                                                   StandardCharsets.UTF_8));
+            }
+            writer.write(record.toString());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    /**
+     * Moves current journal to <i>old</i> journal file, appending it to existing one, if
+     * previous compaction did not discard it. Should be called while mapping is not modified,
+     * right after taking its snapshot.
+     * @throws IOException if an I/O error occurs while moving journal
+     */
+    public synchronized void rotate() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (!journalFile.exists()) return;
+        if (rotatedFile.exists()) {
+            try (OutputStream stream = new FileOutputStream(rotatedFile, true)) {
+                Files.copy(journalFile.toPath(), stream);
+            }
+            Files.delete(journalFile.toPath());
+        } else {
+            Files.move(journalFile.toPath(), rotatedFile.toPath());
+        }
+    }
+
+    /**
+     * Deletes <i>old</i> journal file. Should be called after snapshot taken together
+     * with {@link #rotate()} was written.
+     */
+    public synchronized void discardRotated() {
+        try {
+            Files.deleteIfExists(rotatedFile.toPath());
+        } catch (IOException e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    /**
+     * Closes journal file.
+     */
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                errorHandler.accept(e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Reads journal of mapping stored in {@code mappingFile}, passing its records in order.
+     * Lines that cannot be parsed (i.e. last record, that was being written while application
+     * was terminated) are skipped.
+     * @param mappingFile the file that is used to store mapping snapshot
+     * @param consumer the consumer that applies records to mapping
+     * @return number of replayed records
+     * @throws IOException if an I/O error occurs while reading journal
+     */
+    public static int replay(@NotNull File mappingFile, @NotNull Consumer<Record> consumer) throws IOException {
+        int count = 0;
+        for (File file : new File[] { rotatedFile(mappingFile), journalFile(mappingFile) }) {
+            if (!file.exists()) continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                                   StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Record record = Record.parse(line);
+                    if (record != null) {
+                        consumer.accept(record);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deletes journal of mapping stored in {@code mappingFile}. Should be called when
+     * snapshot is created from scratch.
+     * @param mappingFile the file that is used to store mapping snapshot
+     * @throws IOException if an I/O error occurs while deleting journal
+     */
+    public static void delete(@NotNull File mappingFile) throws IOException {
+        Files.deleteIfExists(rotatedFile(mappingFile).toPath());
+        Files.deleteIfExists(journalFile(mappingFile).toPath());
+    }
+
+    private static @NotNull File journalFile(@NotNull File mappingFile) {
+        return new File(mappingFile.getAbsolutePath() + ".journal");
+    }
+
+    private static @NotNull File rotatedFile(@NotNull File mappingFile) {
+        return new File(mappingFile.getAbsolutePath() + ".journal.old");
+    }
+
+    /**
+     * Represents single operation performed on mapping.
+     * <blockquote><code>
+     *     $OPERATION$ $NODE$ $PATHNAME$ $SIZE$ $CHECKSUM$ $TIMESTAMP$ $RECEIVER$
+     * </code></blockquote>
+     * <p>Fields are separated with tabs, unused fields are empty.
+     */
+    public static final class Record {
+
+        /**
+         * Type of operation.
+         */
+        public final @NotNull Operation operation;
+        /**
+         * Name of node that file belongs to.
+         */
+        public final @NotNull String node;
+        /**
+         * Path to file, relative to its node.
+         */
+        public final @NotNull String pathname;
+        /**
+         * Size of file, in bytes ({@code 0} if not applicable).
+         */
+        public final long size;
+        /**
+         * Checksum of file contents (empty if not applicable).
+         */
+        public final @NotNull String checksum;
+        /**
+         * Timestamp of last modification of file ({@code 0} if not applicable).
+         */
+        public final long modificationTimestamp;
+        /**
+         * Node that file is shared to (empty if not applicable).
+         */
+        public final @NotNull String receiver;
+
+        private Record(@NotNull Operation operation,
+                       @NotNull String node,
+                       @NotNull String pathname,
+                       long size,
+                       @NotNull String checksum,
+                       long modificationTimestamp,
+                       @NotNull String receiver) {
+            this.operation = operation;
+            this.node = node;
+            this.pathname = pathname;
+            this.size = size;
+            this.checksum = checksum;
+            this.modificationTimestamp = modificationTimestamp;
+            this.receiver = receiver;
+        }
+
+        /**
+         * @return record of file being attached
+         */
+        public static @NotNull Record attach(@NotNull String node, @NotNull String pathname,
+                                             long size, @NotNull String checksum, long modificationTimestamp) {
+            return new Record(Operation.attach, node, pathname, size, checksum, modificationTimestamp, "");
+        }
+
+        /**
+         * @return record of file being detached
+         */
+        public static @NotNull Record detach(@NotNull String node, @NotNull String pathname) {
+            return new Record(Operation.detach, node, pathname, 0, "", 0, "");
+        }
+
+        /**
+         * @return record of file being updated with new values
+         */
+        public static @NotNull Record update(@NotNull String node, @NotNull String pathname,
+                                             long size, @NotNull String checksum, long modificationTimestamp) {
+            return new Record(Operation.update, node, pathname, size, checksum, modificationTimestamp, "");
+        }
+
+        /**
+         * @return record of file being shared to {@code receiver}
+         */
+        public static @NotNull Record share(@NotNull String node, @NotNull String pathname, @NotNull String receiver) {
+            return new Record(Operation.share, node, pathname, 0, "", 0, receiver);
+        }
+
+        /**
+         * @return record of file no longer being shared to {@code receiver}
+         */
+        public static @NotNull Record unshare(@NotNull String node, @NotNull String pathname, @NotNull String receiver) {
+            return new Record(Operation.unshare, node, pathname, 0, "", 0, receiver);
+        }
+
+        /**
+         * Represents type of operation performed on mapping.
+         */
+        public enum Operation {
+            /** File was attached */ attach,
+            /** File was detached */ detach,
+            /** File was updated */ update,
+            /** File was shared */ share,
+            /** File sharing was cancelled */ unshare
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return String.join("\t",
+                               operation.toString(),
+                               escape(node),
+                               escape(pathname),
+                               Long.toString(size),
+                               escape(checksum),
+                               Long.toString(modificationTimestamp),
+                               escape(receiver));
+        }
+
+        static @Nullable Record parse(@NotNull String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 7) return null;
+            try {
+                return new Record(Operation.valueOf(fields[0]),
+                                  unescape(fields[1]),
+                                  unescape(fields[2]),
+                                  Long.parseLong(fields[3]),
+                                  unescape(fields[4]),
+                                  Long.parseLong(fields[5]),
+                                  unescape(fields[6]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private static @NotNull String escape(@NotNull String value) {
+            return value.replace("\\", "\\\\")
+                        .replace("\t", "\\t")
+                        .replace("\n", "\\n")
+                        .replace("\r", "\\r");
+        }
+
+        private static @NotNull String unescape(@NotNull String value) {
+            if (value.indexOf('\\') < 0) return value;
+            StringBuilder builder = new StringBuilder(value.length());
+            boolean escaped = false;
+            for (char c : value.toCharArray()) {
+                if (!escaped) {
+                    if (c == '\\') escaped = true;
+                    else builder.append(c);
+                } else {
+                    escaped = false;
+                    switch (c) {
+                        case 't': builder.append('\t'); break;
+                        case 'n': builder.append('\n'); break;
+                        case 'r': builder.append('\r'); break;
+                        default: builder.append(c);
+                    }
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Writes mapping to its file in <i>write-behind</i> fashion.
+ * <p>Every modification of mapping should be reported with {@link #markDirty()}, which
+ * does not perform any I/O by itself. Dedicated thread writes mapping to file once flush
+ * interval elapses or once number of unwritten modifications reaches flush threshold, so bursts
+ * of modifications are collapsed into single write. If flush interval is not positive, mapping
+ * is written synchronously on every modification.
+ * <br><br>
+ * <p>Mapping is always written to temporary file, which then replaces mapping file, so
+ * mapping file contains either previous or current mapping, even if application is terminated
+ * during write.
+ * <p>All public methods of this class are thread-safe. It is important to call {@link #close()}
+ * to write pending modifications when mapping is no longer used.
+ */
+public class MappingWriter implements Closeable {
+
+    private final @NotNull File file;
+    private final @NotNull Callable<byte[]> snapshot;
+    private final @Nullable Runnable written;
+    private final @NotNull Consumer<Exception> errorHandler;
+    private final int flushThreshold;
+    private final @NotNull AtomicInteger dirtyCount = new AtomicInteger();
+    private final @NotNull AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Creates new writer, with flush interval and threshold taken from {@link Configuration}.
+     * @param file the file that is used to store mapping
+     * @param snapshot the function returning serialized mapping. It is called on writer thread,
+     *                 so it should serialize mapping in consistent state (i.e. while holding
+     *                 lock that guards modifications of mapping)
+     * @param written the action performed after snapshot was written, i.e. discarding
+     *                {@link MappingJournal} records that it contains
+     * @param errorHandler the handler of exceptions thrown while writing mapping
+     * @see Configuration#MAPPING_FLUSH_INTERVAL$MS
+     * @see Configuration#MAPPING_FLUSH_THRESHOLD
+     */
+    public MappingWriter(@NotNull File file,
+                         @NotNull Callable<byte[]> snapshot,
+                         @Nullable Runnable written,
+                         @NotNull Consumer<Exception> errorHandler) {
+        this(file, snapshot, written, errorHandler,
+             Configuration.MAPPING_FLUSH_INTERVAL$MS, Configuration.MAPPING_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Creates new writer.
+     * @param file the file that is used to store mapping
+     * @param snapshot the function returning serialized mapping. It is called on writer thread,
+     *                 so it should serialize mapping in consistent state (i.e. while holding
+     *                 lock that guards modifications of mapping)
+     * @param written the action performed after snapshot was written, i.e. discarding
+     *                {@link MappingJournal} records that it contains
+     * @param errorHandler the handler of exceptions thrown while writing mapping
+     * @param flushInterval$ms the time after which modified mapping is written, in milliseconds.
+     *                         If not positive, mapping is written on every modification
+     * @param flushThreshold the number of modifications that cause mapping to be written
+     *                       before flush interval elapses
+     */
+    public MappingWriter(@NotNull File file,
+                         @NotNull Callable<byte[]> snapshot,
+                         @Nullable Runnable written,
+                         @NotNull Consumer<Exception> errorHandler,
+                         long flushInterval$ms,
+                         int flushThreshold) {
+        this.file = file;
+        this.snapshot = snapshot;
+        this.written = written;
+        this.errorHandler = errorHandler;
+        this.flushThreshold = Math.max(flushThreshold, 1);
+        if (flushInterval$ms > 0) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "MappingWriter: " + file.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.scheduleWithFixedDelay(this::flush, flushInterval$ms, flushInterval$ms,
+                                                 TimeUnit.MILLISECONDS);
+        } else this.executor = null;
+    }
+
+    /**
+     * Reports modification of mapping. This call does not block on I/O, unless writer
+     * works in synchronous mode.
+     */
+    public void markDirty() {
+        int dirty = dirtyCount.incrementAndGet();
+        if (executor == null) {
+            flush();
+        } else if (dirty >= flushThreshold && flushRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flush);
+            } catch (Exception e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes mapping to file, if it was modified since last write.
+     */
+    public synchronized void flush() {
+        flushRequested.set(false);
+        int dirty = dirtyCount.getAndSet(0);
+        if (dirty <= 0) return;
+        try {
+            write(snapshot.call());
+            if (written != null) written.run();
+        } catch (Exception e) {
+            dirtyCount.addAndGet(dirty);
+            errorHandler.accept(e);
+        }
+    }
+
+    /**
+     * Writes pending modifications and stops writer thread.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        File temporary = new File(file.getAbsolutePath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary)) {
+            stream.write(bytes);
+            stream.getFD().sync();
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+/**
+ * Pairs deletion of file with creation of same file at other path, that happened shortly after it,
+ * reporting such creation as {@link FileEvent.Type#Node_Move move}, so moved file does not have
+ * to be transferred again.
+ * <p>Created file is considered same as deleted one, if:
+ * <p>- it has same {@link BasicFileAttributes#fileKey() file key} (i.e. device and inode), size and
+ *      modification timestamp, as deleted file had when its last event was reported, or
+ * <p>- it has same size and checksum, as known state of deleted file.
+ * <p>Creation and deletion are paired in either order, as file system may report events of different
+ * directories out of order.
+ * <br><br>
+ * <p>Deletion is reported immediately, so consumer (usually {@link FileEventQueue}) should hold
+ * it for at least {@code window}, to replace it with move.
+ */
+class MoveDetector implements Consumer<@NotNull FileEvent> {
+
+    private static final int IDENTITY_CAPACITY = 1 << 16;
+
+    private final @NotNull Path rootPath;
+    private final @NotNull Consumer<@NotNull FileEvent> sink;
+    private final @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles;
+    private final long window$ns;
+    private final @NotNull LinkedHashMap<@NotNull Path, @NotNull Identity> identities;
+    private final @NotNull Recent deleted = new Recent();
+    private final @NotNull Recent created = new Recent();
+    private @Nullable Map<@NotNull Path, ? extends FileMapping> known;
+    private long knownAt;
+
+    /**
+     * Creates new detector.
+     * @param rootPath the root directory, that paths of events are relative to
+     * @param sink the consumer of events
+     * @param knownFiles the supplier of last known state of files, by their path relative to
+     *                   {@code rootPath}, if {@code null} then files are only paired by file key
+     * @param window$ms the time between deletion and creation of file, for them to be paired, in milliseconds
+     */
+    MoveDetector(@NotNull Path rootPath,
+                 @NotNull Consumer<@NotNull FileEvent> sink,
+                 @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles,
+                 long window$ms) {
+        this.rootPath = rootPath;
+        this.sink = sink;
+        this.knownFiles = knownFiles;
+        this.window$ns = TimeUnit.MILLISECONDS.toNanos(Math.max(window$ms, 0));
+        this.identities = new LinkedHashMap<Path, Identity>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Identity> eldest) {
+                return size() > IDENTITY_CAPACITY;
+            }
+        };
+    }
+
+    @Override
+    public void accept(@NotNull FileEvent event) {
+        if (window$ns == 0) {
+            sink.accept(event);
+            return;
+        }
+        switch (event.eventType) {
+            case Node_Delete: {
+                Path target = deleted(event.filePath);
+                sink.accept(event);
+                if (target != null) sink.accept(new FileEvent(target, event.filePath));
+                break;
+            }
+            case Node_Create: {
+                BasicFileAttributes attributes = attributes(event.filePath);
+                Path source = attributes != null ? created(event.filePath, attributes) : null;
+                sink.accept(source != null ? new FileEvent(event.filePath, source) : event);
+                break;
+            }
+            case Node_Update: {
+                BasicFileAttributes attributes = attributes(event.filePath);
+                Path source = attributes != null ? updated(event.filePath, attributes) : null;
+                sink.accept(source != null ? new FileEvent(event.filePath, source) : event);
+                break;
+            }
+            default:
+                sink.accept(event);
+        }
+    }
+
+    /**
+     * Pairs deleted file with one created shortly before (i.e. if events of both directories were
+     * not reported in order), otherwise remembers its identity, so it can be paired with creation later.
+     * @return path of created file, that {@code file} was moved to, {@code null} if it was not moved
+     */
+    private @Nullable Path deleted(@NotNull Path file) {
+        Identity identity;
+        List<Path> candidates;
+        synchronized (this) {
+            long now = System.nanoTime();
+            expire(now);
+            created.remove(file);
+            identity = identities.remove(file);
+            FileMapping mapping = known(now).get(file);
+            if (identity == null && mapping == null) return null;
+            if (identity == null) identity = new Identity(mapping);
+            else if (mapping != null && mapping.getSize_bytes() == identity.size)
+                identity = new Identity(identity, mapping.getChecksum());
+            Path target = created.byKey(identity);
+            if (target != null) {
+                created.remove(target);
+                return target;
+            }
+            identity.seenAt = now;
+            deleted.put(file, identity);
+            if (identity.checksum == null) return null;
+            candidates = created.bySize(identity.size);
+            if (candidates.isEmpty()) return null;
+        }
+        for (Path target : candidates) {
+            String checksum = checksum(target);
+            synchronized (this) {
+                if (checksum != null && checksum.equals(identity.checksum) &&
+                    created.contains(target) && deleted.contains(file)) {
+                    created.remove(target);
+                    deleted.remove(file);
+                    return target;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pairs created file with one deleted shortly before, otherwise remembers its identity,
+     * so it can be paired with deletion later.
+     * @return path of deleted file, that {@code file} was moved from, {@code null} if it was not moved
+     */
+    private @Nullable Path created(@NotNull Path file, @NotNull BasicFileAttributes attributes) {
+        List<Path> candidates;
+        synchronized (this) {
+            long now = System.nanoTime();
+            expire(now);
+            deleted.remove(file);
+            Identity identity = new Identity(attributes, null);
+            identities.put(file, identity);
+            Path source = deleted.byKey(identity);
+            if (source != null) {
+                deleted.remove(source);
+                return source;
+            }
+            identity.seenAt = now;
+            created.put(file, identity);
+            candidates = deleted.bySize(identity.size);
+            if (candidates.isEmpty()) return null;
+        }
+        String checksum = checksum(file);
+        if (checksum == null) return null;
+        synchronized (this) {
+            for (Path source : candidates) {
+                Identity identity = deleted.get(source);
+                if (identity != null && checksum.equals(identity.checksum) && created.contains(file)) {
+                    deleted.remove(source);
+                    created.remove(file);
+                    return source;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pairs recently created file with deleted one once again, as its contents might not be
+     * written yet when it was created (i.e. while file is being copied).
+     * @return path of deleted file, that {@code file} was moved from, {@code null} if it was not moved
+     */
+    private @Nullable Path updated(@NotNull Path file, @NotNull BasicFileAttributes attributes) {
+        synchronized (this) {
+            if (!created.contains(file)) {
+                identities.put(file, new Identity(attributes, null));
+                return null;
+            }
+        }
+        return created(file, attributes);
+    }
+
+    private void expire(long now) {
+        deleted.expire(now - window$ns);
+        created.expire(now - window$ns);
+    }
+
+    /**
+     * @return known state of files, that is supplied again once it is older than window
+     */
+    private @NotNull Map<@NotNull Path, ? extends FileMapping> known(long now) {
+        if (knownFiles == null) return Collections.emptyMap();
+        if (known == null || now - knownAt >= window$ns) {
+            known = knownFiles.get();
+            knownAt = now;
+        }
+        return known;
+    }
+
+    private @Nullable BasicFileAttributes attributes(@NotNull Path file) {
+        try {
+            return Files.readAttributes(rootPath.resolve(file), BasicFileAttributes.class, NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private @Nullable String checksum(@NotNull Path file) {
+        try {
+            return FileManager.getChecksum(rootPath.resolve(file).toFile());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identities of files recently deleted or created, indexed by file key and size.
+     */
+    private static final class Recent {
+
+        private final @NotNull LinkedHashMap<@NotNull Path, @NotNull Identity> files = new LinkedHashMap<>();
+        private final @NotNull Map<@NotNull Object, @NotNull Path> keys = new HashMap<>();
+        private final @NotNull Map<@NotNull Long, @NotNull Set<@NotNull Path>> sizes = new HashMap<>();
+
+        private void put(@NotNull Path file, @NotNull Identity identity) {
+            remove(file);
+            files.put(file, identity);
+            if (identity.fileKey != null) keys.put(identity.fileKey, file);
+            sizes.computeIfAbsent(identity.size, size -> new LinkedHashSet<>()).add(file);
+        }
+
+        private @Nullable Identity get(@NotNull Path file) {
+            return files.get(file);
+        }
+
+        private boolean contains(@NotNull Path file) {
+            return files.containsKey(file);
+        }
+
+        /**
+         * @return path of file with same file key, size and modification timestamp as {@code identity}
+         */
+        private @Nullable Path byKey(@NotNull Identity identity) {
+            Path file = identity.fileKey != null ? keys.get(identity.fileKey) : null;
+            return file != null && identity.sameAs(files.get(file)) ? file : null;
+        }
+
+        /**
+         * @return paths of files with specified size
+         */
+        private @NotNull List<@NotNull Path> bySize(long size) {
+            Set<Path> sameSize = sizes.get(size);
+            return sameSize != null ? new ArrayList<>(sameSize) : Collections.emptyList();
+        }
+
+        private void remove(@NotNull Path file) {
+            Identity identity = files.remove(file);
+            if (identity != null) unindex(file, identity);
+        }
+
+        /**
+         * Removes identities of files, that were seen before {@code threshold}.
+         */
+        private void expire(long threshold) {
+            Iterator<Map.Entry<Path, Identity>> iterator = files.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, Identity> entry = iterator.next();
+                if (entry.getValue().seenAt - threshold > 0) break;
+                iterator.remove();
+                unindex(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private void unindex(@NotNull Path file, @NotNull Identity identity) {
+            if (identity.fileKey != null) keys.remove(identity.fileKey, file);
+            Set<Path> sameSize = sizes.get(identity.size);
+            if (sameSize != null && sameSize.remove(file) && sameSize.isEmpty()) sizes.remove(identity.size);
+        }
+    }
+
+    private static final class Identity {
+
+        private final @Nullable Object fileKey;
+        private final long size;
+        private final long modificationTimestamp;
+        private final @Nullable String checksum;
+        private long seenAt;
+
+        private Identity(@NotNull BasicFileAttributes attributes, @Nullable String checksum) {
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.modificationTimestamp = attributes.lastModifiedTime().toMillis();
+            this.checksum = checksum;
+        }
+
+        private Identity(@NotNull FileMapping mapping) {
+            this.fileKey = null;
+            this.size = mapping.getSize_bytes();
+            this.modificationTimestamp = mapping.getModification_timestamp();
+            this.checksum = mapping.getChecksum();
+        }
+
+        private Identity(@NotNull Identity identity, @NotNull String checksum) {
+            this.fileKey = identity.fileKey;
+            this.size = identity.size;
+            this.modificationTimestamp = identity.modificationTimestamp;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return {@code true} if {@code other} is identity of same file, with same contents
+         */
+        private boolean sameAs(@Nullable Identity other) {
+            return other != null && fileKey != null && fileKey.equals(other.fileKey) &&
+                   size == other.size && modificationTimestamp == other.modificationTimestamp;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import edu.jeznach.po2.common.log.Log;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Detects changes of files by periodically {@link DirectoryPoller polling} whole observed directory tree.
+ * Unlike {@link WatchServiceChangeSource}, it does not depend on file system notifications, so it also
+ * works on network and FUSE file systems.
+ * <br><br>
+ * <p>Poll interval adapts to activity of observed tree:
+ * <p>- once changes are detected, next poll is done after {@link Configuration#POLL_INTERVAL$MS},
+ * <p>- every poll that detects no changes doubles interval, up to {@value #MAX_INTERVAL_FACTOR} times that,
+ * <p>- interval is never shorter than {@value #SCAN_TIME_FACTOR} times duration of last poll, so
+ *      polling large trees does not take more than fraction of CPU time.
+ */
+public class PollingChangeSource implements ChangeSource {
+
+    private static final int MAX_INTERVAL_FACTOR = 16;
+    private static final int SCAN_TIME_FACTOR = 4;
+
+    private final @NotNull Path rootPath;
+    private final @NotNull DirectoryPoller poller;
+    private final long minInterval$ms;
+    private final long maxInterval$ms;
+    private final @NotNull ForkJoinTask<?> initialScan;
+    private final @NotNull Log log;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates new source for {@code rootDirectory} and all of its current and future
+     * subdirectories, starting initial scan of its files.
+     * @param rootDirectory the root of directory tree to observe
+     * @param sink the consumer of detected events
+     * @param log the {@link Log} object used for logging important events
+     */
+    public PollingChangeSource(@NotNull Path rootDirectory,
+                               @NotNull Consumer<@NotNull FileEvent> sink,
+                               @NotNull Log log) {
+        this.rootPath = rootDirectory;
+        this.log = log;
+        this.poller = new DirectoryPoller(rootDirectory, sink);
+        this.minInterval$ms = Math.max(Configuration.POLL_INTERVAL$MS, 1);
+        this.maxInterval$ms = minInterval$ms * MAX_INTERVAL_FACTOR;
+        this.initialScan = ForkJoinPool.commonPool().submit(() -> {
+            poller.addSubtree(rootDirectory, false);
+            return null;
+        });
+    }
+
+    @Override
+    public void awaitReady() throws InterruptedException {
+        try {
+            initialScan.get();
+        } catch (ExecutionException e) {
+            log.ioException(new IOException(e.getCause()));
+        }
+    }
+
+    /**
+     * Main producer loop. In each iteration waits for poll interval, then polls observed tree
+     * and adapts interval.
+     */
+    @Override
+    public void observe() throws InterruptedException {
+        awaitReady();
+        long interval$ms = minInterval$ms;
+        while (!closed) {
+            Thread.sleep(interval$ms);
+            long start = System.nanoTime();
+            int events = poller.poll();
+            if (poller.size() == 0 && Files.isDirectory(rootPath)) {
+                try {
+                    poller.addSubtree(rootPath, true);
+                } catch (IOException e) {
+                    log.ioException(e);
+                }
+            }
+            long scan$ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            interval$ms = events > 0 ? minInterval$ms : Math.min(interval$ms * 2, maxInterval$ms);
+            interval$ms = Math.max(interval$ms, scan$ms * SCAN_TIME_FACTOR);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
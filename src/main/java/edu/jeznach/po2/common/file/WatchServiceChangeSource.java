@@ -0,0 +1,346 @@
+package edu.jeznach.po2.common.file;
+
+import com.diogonunes.jcdp.color.api.Ansi;
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import edu.jeznach.po2.common.log.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Detects changes of files using file system notifications delivered by {@link WatchService}.
+ * All current and future directories are recursively registered in watch service.
+ * <br><br>
+ * <p>Directories are registered in parallel, in background, so observing large directory trees
+ * starts immediately. Number of registered directories is limited by {@link Configuration#WATCH_LIMIT},
+ * and subtrees that exceed that limit are {@link DirectoryPoller polled} instead.
+ * <p>If events were lost due to overflow of file system event queue, affected directories are
+ * rescanned and compared with known files, and events of differences are reported instead,
+ * so changes are processed later rather than lost.
+ */
+public class WatchServiceChangeSource implements ChangeSource {
+
+    private static final @NotNull ForkJoinPool registrationPool =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final @NotNull Path rootPath;
+    private final @NotNull Consumer<@NotNull FileEvent> sink;
+    private final @NotNull WatchService watchService;
+    private final @NotNull Map<@NotNull WatchKey, @NotNull Path> registeredKeys;
+    private final @NotNull AtomicInteger watchCount = new AtomicInteger();
+    private final int watchLimit;
+    private final @NotNull DirectoryPoller poller;
+    private final long pollInterval$ms;
+    private final @NotNull ForkJoinTask<?> registration;
+    private final @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles;
+    private final @NotNull Set<@NotNull Path> overflowedDirectories = new HashSet<>();
+    private final @NotNull Log log;
+
+    /**
+     * Creates new source for {@code rootDirectory} and all of its current and future
+     * subdirectories, starting registration of its directories.
+     * @param rootDirectory the root of directory tree to observe
+     * @param sink the consumer of detected events
+     * @param log the {@link Log} object used for logging important events
+     * @param knownFiles the supplier of last known state of files, by their path relative to
+     *                   {@code rootDirectory} (i.e. current mapping of files), if {@code null} then
+     *                   events lost due to overflow are not recovered
+     * @throws IOException if an I/O error occurs while creating watch service
+     */
+    public WatchServiceChangeSource(@NotNull Path rootDirectory,
+                                    @NotNull Consumer<@NotNull FileEvent> sink,
+                                    @NotNull Log log,
+                                    @Nullable Supplier<@NotNull Map<@NotNull Path, ? extends FileMapping>> knownFiles)
+            throws IOException {
+        this.rootPath = rootDirectory;
+        this.sink = sink;
+        this.log = log;
+        this.knownFiles = knownFiles;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.registeredKeys = new ConcurrentHashMap<>();
+        this.watchLimit = Configuration.WATCH_LIMIT;
+        this.pollInterval$ms = Configuration.POLL_INTERVAL$MS;
+        this.poller = new DirectoryPoller(rootDirectory, sink);
+        this.registration = registerAll(rootDirectory, false);
+    }
+
+    /**
+     * Waits until all directories that existed when this source was created are registered,
+     * or added to polled subtrees.
+     * @throws InterruptedException if current thread was interrupted while waiting
+     */
+    @Override
+    public void awaitReady() throws InterruptedException {
+        try {
+            registration.get();
+        } catch (ExecutionException e) {
+            log.ioException(new IOException(e.getCause()));
+        }
+    }
+
+    /**
+     * Main producer loop. In each iteration pulls all file system events and reports them,
+     * polling subtrees that are not registered once poll interval elapses.
+     */
+    @Override
+    public void observe() throws InterruptedException {
+        long nextPoll = System.currentTimeMillis() + pollInterval$ms;
+        while (true) {
+            WatchKey key;
+            try {
+                if (!overflowedDirectories.isEmpty()) {
+                    key = watchService.poll();
+                    if (key == null) {
+                        recover();
+                        continue;
+                    }
+                } else if (poller.size() > 0) {
+                    key = watchService.poll(Math.max(nextPoll - System.currentTimeMillis(), 0),
+                                            TimeUnit.MILLISECONDS);
+                    if (System.currentTimeMillis() >= nextPoll) {
+                        poller.poll();
+                        nextPoll = System.currentTimeMillis() + pollInterval$ms;
+                    }
+                    if (key == null) continue;
+                } else {
+                    key = watchService.take();
+                    nextPoll = System.currentTimeMillis() + pollInterval$ms;
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path eventDir = registeredKeys.get(key);
+            if (eventDir == null && key.watchable() instanceof Path) eventDir = (Path) key.watchable();
+            if (eventDir == null) {
+                log.debug(new Log.Message(
+                        System.currentTimeMillis(),
+                        "🔕",
+                        "Directory unregistered!",
+                        "Could not find directory associated with retrieved WatchKey"
+                ), Ansi.Attribute.NONE, Ansi.FColor.RED);
+                continue;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+
+                if (kind == OVERFLOW) {
+                    if (knownFiles != null) {
+                        overflowedDirectories.add(eventDir);
+                    } else {
+                        log.debug(new Log.Message(
+                                System.currentTimeMillis(),
+                                "📚",
+                                "Event overflow!",
+                                "FileEvents may have been lost or discarded due to slow processing"
+                        ), Ansi.Attribute.NONE, Ansi.FColor.RED);
+                    }
+                    continue;
+                }
+
+                WatchEvent<Path> entryEvent = cast(event);
+                Path name = entryEvent.context();
+                Path child = eventDir.resolve(name);
+                Path file = rootPath.relativize(child);
+                if (ENTRY_CREATE.equals(kind)) {
+                    if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                        registerAll(child, true);
+                    } else {
+                        sink.accept(new FileEvent(file, Node_Create));
+                    }
+                } else if (ENTRY_MODIFY.equals(kind)) {
+                    sink.accept(new FileEvent(file, Node_Update));
+                } else if (ENTRY_DELETE.equals(kind)) {
+                    sink.accept(new FileEvent(file, Node_Delete));
+                }
+            }
+
+            boolean valid = key.reset();
+            if (!valid && registeredKeys.remove(key) != null) watchCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.ioException(e);
+        }
+    }
+
+    /**
+     * Rescans directories, which events were lost due to overflow, once all pending events
+     * were processed. Files that differ from known state are queued as events:
+     * <p>- files that are not known are queued as created,
+     * <p>- known files, which size or modification timestamp changed, and which checksum is different
+     *      than known one, are queued as updated,
+     * <p>- known files, that no longer exist, are queued as deleted.
+     */
+    private void recover() {
+        List<Path> directories = new ArrayList<>(overflowedDirectories);
+        overflowedDirectories.clear();
+        directories.sort(Comparator.comparingInt(Path::getNameCount));
+        List<Path> subtrees = new ArrayList<>();
+        for (Path directory : directories) {
+            if (subtrees.stream().noneMatch(directory::startsWith)) subtrees.add(directory);
+        }
+        //noinspection ConstantConditions
+        Map<Path, ? extends FileMapping> known = knownFiles.get();
+        int recovered = 0;
+        List<FileEvent> recoveredEvents = new ArrayList<>();
+        for (Path subtree : subtrees) {
+            Set<Path> existing = new HashSet<>();
+            try {
+                registerAll(subtree, false).join();
+                if (Files.isDirectory(subtree, NOFOLLOW_LINKS)) {
+                    Files.walkFileTree(subtree, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            Path relativePath = rootPath.relativize(file);
+                            existing.add(relativePath);
+                            FileEvent.Type type = compare(file, attrs, known.get(relativePath));
+                            if (type != null) recoveredEvents.add(new FileEvent(relativePath, type));
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                log.ioException(e);
+                continue;
+            }
+            Path relativeSubtree = rootPath.relativize(subtree);
+            for (Path relativePath : known.keySet()) {
+                if (relativePath.startsWith(relativeSubtree) && !existing.contains(relativePath)) {
+                    sink.accept(new FileEvent(relativePath, Node_Delete));
+                    recovered++;
+                }
+            }
+        }
+        recoveredEvents.forEach(sink);
+        recovered += recoveredEvents.size();
+        log.debug(new Log.Message(
+                System.currentTimeMillis(),
+                "📚",
+                "Event overflow!",
+                "Rescanned " + subtrees.size() + " directories, recovered " + recovered + " FileEvents"
+        ), Ansi.Attribute.NONE, Ansi.FColor.YELLOW);
+    }
+
+    /**
+     * @return type of event that represents difference between {@code file} and its known state,
+     *         {@code null} if file did not change
+     */
+    private static @Nullable FileEvent.Type compare(@NotNull Path file,
+                                                    @NotNull BasicFileAttributes attributes,
+                                                    @Nullable FileMapping known) {
+        if (known == null) return Node_Create;
+        if (known.getSize_bytes() == attributes.size() &&
+            known.getModification_timestamp() == attributes.lastModifiedTime().toMillis()) return null;
+        try {
+            return FileManager.getChecksum(file.toFile()).equals(known.getChecksum()) ? null : Node_Update;
+        } catch (Exception e) {
+            return Node_Update;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> WatchEvent<T> cast(WatchEvent<?> event) {
+        return (WatchEvent<T>) event;
+    }
+
+    /**
+     * Registers directory in watch service.
+     * @return {@code true} if directory was not registered before
+     */
+    private boolean registerDirectory(final @NotNull Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        return registeredKeys.put(key, directory) == null;
+    }
+
+    /**
+     * Registers {@code directory} and all of its subdirectories in background.
+     * @param directory the root of directory tree to register
+     * @param announce if {@code true}, files found in registered directories are queued as created,
+     *                 as they could have been created before directory was registered
+     * @return the task performing registration
+     */
+    private @NotNull ForkJoinTask<?> registerAll(final @NotNull Path directory, boolean announce) {
+        return registrationPool.submit(new RegistrationTask(directory, announce));
+    }
+
+    /**
+     * Registers single directory, forking registration of its subdirectories. Once watch limit
+     * is reached, directory is polled instead, together with its subdirectories.
+     */
+    private final class RegistrationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final @NotNull Path directory;
+        private final boolean announce;
+
+        private RegistrationTask(@NotNull Path directory, boolean announce) {
+            this.directory = directory;
+            this.announce = announce;
+        }
+
+        @Override
+        protected void compute() {
+            if (poller.isPolled(directory)) return;
+            try {
+                if (watchCount.incrementAndGet() > watchLimit) {
+                    watchCount.decrementAndGet();
+                    poller.addSubtree(directory, announce);
+                    return;
+                }
+                boolean registered;
+                try {
+                    registered = registerDirectory(directory);
+                } catch (IOException e) {
+                    watchCount.decrementAndGet();
+                    throw e;
+                }
+                if (!registered) watchCount.decrementAndGet();
+                List<RegistrationTask> subdirectories = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                            subdirectories.add(new RegistrationTask(child, announce));
+                        } else if (announce) {
+                            sink.accept(new FileEvent(rootPath.relativize(child), Node_Create));
+                        }
+                    }
+                }
+                invokeAll(subdirectories);
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                log.ioException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package edu.jeznach.po2.common.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persists mapping as YAML document, with mapping class stored as document tag.
+ * @param <M> the type holding indexed mapping
+ */
+public class YamlMappingCodec<M> implements MappingCodec<M> {
+
+    private final @NotNull Class<M> type;
+
+    /**
+     * Creates codec of mappings of {@code type}.
+     * @param type the class of mapping
+     */
+    public YamlMappingCodec(@NotNull Class<M> type) {
+        this.type = type;
+    }
+
+    @Override
+    public void encode(@NotNull M mapping, @NotNull OutputStream stream) throws IOException {
+        Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        new Yaml().dump(mapping, writer);
+        writer.flush();
+    }
+
+    @Override
+    public @Nullable M decode(@NotNull InputStream stream) throws IOException, YAMLException {
+        Object mapping = new Yaml().load(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        if (mapping != null && !type.isInstance(mapping))
+            throw new YAMLException("Document contains " + mapping.getClass().getName() +
+                                    ", expected: " + type.getName());
+        return type.cast(mapping);
+    }
+}
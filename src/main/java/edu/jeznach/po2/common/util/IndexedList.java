@@ -0,0 +1,111 @@
+package edu.jeznach.po2.common.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Maintains hash index over existing {@link List}, allowing constant time lookup,
+ * insertion and removal of its elements by key.
+ * <br><br>
+ * <p>Indexed list is not copied, every modification done through this object is
+ * reflected in it, so it can still be used as (i.e. serialized) structure. Removal
+ * is done by moving last element of list in place of removed one, so order of elements
+ * is not preserved.
+ * <p>List should not be modified other than through this object, as index would no longer
+ * be consistent with it, unless {@link #reindex()} is called.
+ * @param <K> the type of key, that identifies element
+ * @param <E> the type of elements held in list
+ */
+public class IndexedList<K, E> {
+
+    private final @NotNull List<E> list;
+    private final @NotNull Function<E, K> keyExtractor;
+    private final @NotNull Map<K, Integer> positions = new HashMap<>();
+
+    /**
+     * Creates index of {@code list}.
+     * @param list the list to index
+     * @param keyExtractor the function that resolves key of element
+     */
+    public IndexedList(@NotNull List<E> list, @NotNull Function<E, K> keyExtractor) {
+        this.list = list;
+        this.keyExtractor = keyExtractor;
+        reindex();
+    }
+
+    /**
+     * @return the list that is indexed by this object
+     */
+    public @NotNull List<E> getList() { return this.list; }
+
+    /**
+     * Rebuilds index from current contents of list. If more elements share same key,
+     * only last one of them is indexed.
+     */
+    public void reindex() {
+        positions.clear();
+        for (int i = 0; i < list.size(); i++) {
+            positions.put(keyExtractor.apply(list.get(i)), i);
+        }
+    }
+
+    /**
+     * @param key the key of element
+     * @return the element identified by {@code key}, {@code null} if there is no such element
+     */
+    public @Nullable E get(@NotNull K key) {
+        Integer position = positions.get(key);
+        return position != null ? list.get(position) : null;
+    }
+
+    /**
+     * @param key the key of element
+     * @return {@code true} if list contains element identified by {@code key}
+     */
+    public boolean contains(@NotNull K key) {
+        return positions.containsKey(key);
+    }
+
+    /**
+     * Appends element to list, if there is no element with same key.
+     * @param element the element to append
+     * @return {@code true} if element was added, {@code false} if list already contains element
+     *         with same key
+     */
+    public boolean add(@NotNull E element) {
+        K key = keyExtractor.apply(element);
+        if (positions.containsKey(key)) return false;
+        positions.put(key, list.size());
+        list.add(element);
+        return true;
+    }
+
+    /**
+     * Removes element identified by {@code key}.
+     * @param key the key of element
+     * @return removed element, {@code null} if there is no such element
+     */
+    public @Nullable E remove(@NotNull K key) {
+        Integer position = positions.remove(key);
+        if (position == null) return null;
+        int last = list.size() - 1;
+        E removed = list.get(position);
+        if (position != last) {
+            E moved = list.get(last);
+            list.set(position, moved);
+            positions.put(keyExtractor.apply(moved), position);
+        }
+        list.remove(last);
+        return removed;
+    }
+
+    /**
+     * @return the number of indexed elements
+     */
+    public int size() { return positions.size(); }
+}
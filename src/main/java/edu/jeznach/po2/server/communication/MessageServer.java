@@ -0,0 +1,446 @@
+package edu.jeznach.po2.server.communication;
+
+import edu.jeznach.po2.common.communication.MessageCodec;
+import edu.jeznach.po2.common.communication.Messages.Msg;
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.server.transfer.DriveExecutor;
+import edu.jeznach.po2.server.transfer.TransferScheduler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts connections of clients, and exchanges {@link edu.jeznach.po2.common.communication.Messages messages}
+ * with them, using single selector thread for all connections, so server holds many (mostly idle)
+ * connections without thread (and its stack) for each of them.
+ * <p>Every connection:
+ * <p>- reads frames into own buffer, which is small until frame larger than it arrives,
+ * <p>- decodes them with {@link MessageCodec}, and passes messages (in order of arrival)
+ *      to {@link Handler}, that is called by selector thread - handler must not block, and should
+ *      submit transfers of files to {@link TransferScheduler}, which executes them with
+ *      {@link DriveExecutor executors} of drives,
+ * <p>- writes messages {@link Connection#send(Msg) sent} by any thread, once socket accepts them.
+ * <p>Once transfers queued by user of connection exceed {@link Configuration#USER_QUEUE_LIMIT$MB limit},
+ * server stops reading from connection (so client is slowed down by TCP flow control), until half
+ * of them is executed.
+ * <br><br>
+ * <p>Contents of files are not sent through this connection, but through data channel (in blocking
+ * mode), by task executing transfer.
+ * <p>All public methods of this class are thread-safe.
+ * @see Configuration#SERVER_PORT
+ */
+public class MessageServer implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    private static final long BACKPRESSURE_POLL$MS = 50;
+
+    private final @NotNull Selector selector;
+    private final @NotNull ServerSocketChannel server;
+    private final @NotNull MessageCodec codec;
+    private final @NotNull Handler handler;
+    private final @Nullable TransferScheduler scheduler;
+    private final long queueLimit;
+    private final @NotNull Set<Connection> paused = new HashSet<>();
+    private final @NotNull Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    private final @NotNull AtomicInteger connections = new AtomicInteger();
+    private final @NotNull Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates server, that listens on {@link Configuration#SERVER_PORT configured port}, and stops
+     * reading from connection of user, that queued {@link Configuration#USER_QUEUE_LIMIT$MB configured}
+     * number of bytes of transfers.
+     * @param handler the handler of received messages
+     * @param scheduler the scheduler, that handler submits transfers to, {@code null} if connections
+     *                  should never stop being read
+     * @throws IOException if an I/O error occurs while opening socket
+     */
+    public MessageServer(@NotNull Handler handler, @Nullable TransferScheduler scheduler) throws IOException {
+        this(new InetSocketAddress(Configuration.SERVER_PORT), new MessageCodec(), handler, scheduler,
+             Configuration.USER_QUEUE_LIMIT$MB * 1024L * 1024L);
+    }
+
+    /**
+     * Creates server.
+     * @param address the address to listen on
+     * @param codec the codec of messages
+     * @param handler the handler of received messages
+     * @param scheduler the scheduler, that handler submits transfers to, {@code null} if connections
+     *                  should never stop being read
+     * @param queueLimit the number of bytes of transfers of user, after which its connection stops being read
+     * @throws IOException if an I/O error occurs while opening socket
+     */
+    public MessageServer(@NotNull InetSocketAddress address,
+                         @NotNull MessageCodec codec,
+                         @NotNull Handler handler,
+                         @Nullable TransferScheduler scheduler,
+                         long queueLimit) throws IOException {
+        this.codec = codec;
+        this.handler = handler;
+        this.scheduler = scheduler;
+        this.queueLimit = Math.max(queueLimit, 1);
+        this.selector = Selector.open();
+        try {
+            this.server = ServerSocketChannel.open();
+            server.bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::select, "selector");
+    }
+
+    /**
+     * Starts accepting connections.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * @return the address that server listens on
+     * @throws IOException if an I/O error occurs
+     */
+    public @NotNull InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public int getConnectionCount() { return connections.get(); }
+
+    /**
+     * Stops accepting connections, and closes all open ones.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (thread.isAlive() && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!thread.isAlive()) {
+            closeAll();
+        }
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select(paused.isEmpty() ? 0 : BACKPRESSURE_POLL$MS);
+                Connection connection;
+                while ((connection = pending.poll()) != null) {
+                    connection.update();
+                }
+                resumeDrained();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            // client is not connected, server keeps accepting others
+                        }
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) connection.write();
+                        if (key.isValid() && key.isReadable()) connection.read();
+                    } catch (IOException | RuntimeException e) {
+                        connection.disconnect();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // selector failed, server cannot continue
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.incrementAndGet();
+    }
+
+    /**
+     * Resumes reading from connections, which users transfers were executed since they were paused.
+     */
+    private void resumeDrained() {
+        if (paused.isEmpty()) return;
+        for (Connection connection : new ArrayList<>(paused)) {
+            if (queuedBytes(connection) > queueLimit / 2) continue;
+            paused.remove(connection);
+            if (!connection.key.isValid()) continue;
+            try {
+                // frames that were already read, but not decoded, are handled before reading more
+                if (connection.resume()) connection.interest(SelectionKey.OP_READ, true);
+            } catch (IOException | RuntimeException e) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private long queuedBytes(@NotNull Connection connection) {
+        String user = connection.user;
+        if (scheduler == null || user == null) return 0;
+        TransferScheduler.Statistics statistics = scheduler.getStatistics(user);
+        return statistics != null ? statistics.getQueuedBytes() : 0;
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) ((Connection) key.attachment()).disconnect();
+        }
+        paused.clear();
+        try {
+            server.close();
+        } catch (IOException e) {
+            // server is closed anyway
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // selector is closed anyway
+        }
+    }
+
+    /**
+     * Handles messages received by server.
+     */
+    public interface Handler {
+
+        /**
+         * Handles received message. Called by selector thread, so it must not block.
+         * @param connection the connection, that message was received from
+         * @param message the received message
+         * @throws IOException if message cannot be handled, connection is closed then
+         */
+        void handle(@NotNull Connection connection, @NotNull Msg message) throws IOException;
+
+        /**
+         * Called once connection is closed.
+         * @param connection the closed connection
+         */
+        default void disconnected(@NotNull Connection connection) { }
+    }
+
+    /**
+     * Represents connection of single client.
+     */
+    public final class Connection {
+
+        private final @NotNull SocketChannel channel;
+        private final @NotNull SocketAddress remoteAddress;
+        private final @NotNull ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private SelectionKey key;
+        private @NotNull ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private volatile @Nullable String user;
+        private volatile boolean closing;
+        private boolean disconnected;
+
+        private Connection(@NotNull SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        /**
+         * @return the username of user, that first message received from connection belongs to,
+         *         {@code null} if no message was received yet
+         */
+        public @Nullable String getUser() { return this.user; }
+
+        /**
+         * @return the address of client
+         */
+        public @NotNull SocketAddress getRemoteAddress() { return this.remoteAddress; }
+
+        /**
+         * Queues message to be sent to client.
+         * @param message the message to send
+         * @throws IllegalArgumentException if message cannot be encoded
+         */
+        public void send(@NotNull Msg message) {
+            ByteBuffer frame = encode(message);
+            synchronized (output) {
+                if (closing) return;
+                output.addLast(frame);
+            }
+            pending.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Closes connection, once messages that were already {@link #send(Msg) sent} are written.
+         */
+        public void close() {
+            closing = true;
+            pending.add(this);
+            selector.wakeup();
+        }
+
+        private @NotNull ByteBuffer encode(@NotNull Msg message) {
+            for (int size = 256; ; size *= 2) {
+                ByteBuffer frame = ByteBuffer.allocate(size);
+                try {
+                    codec.encode(message, frame);
+                    frame.flip();
+                    return frame;
+                } catch (BufferOverflowException e) {
+                    if (size > MessageCodec.MAX_FRAME_LENGTH) throw new IllegalArgumentException("Message too long");
+                }
+            }
+        }
+
+        /**
+         * Updates interest of connection in writing, after messages were sent by other thread.
+         */
+        private void update() {
+            if (disconnected || !key.isValid()) return;
+            boolean empty;
+            synchronized (output) {
+                empty = output.isEmpty();
+            }
+            if (empty && closing) disconnect();
+            else interest(SelectionKey.OP_WRITE, !empty);
+        }
+
+        private void write() throws IOException {
+            synchronized (output) {
+                while (!output.isEmpty()) {
+                    channel.write(output.toArray(new ByteBuffer[0]));
+                    if (output.peekFirst().hasRemaining()) break;
+                    while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+                        output.pollFirst();
+                    }
+                }
+                if (!output.isEmpty()) return;
+            }
+            if (closing) disconnect();
+            else interest(SelectionKey.OP_WRITE, false);
+        }
+
+        private void read() throws IOException {
+            if (channel.read(input) < 0) {
+                disconnect();
+                return;
+            }
+            input.flip();
+            if (!decode()) interest(SelectionKey.OP_READ, false);
+        }
+
+        /**
+         * Handles frames, that were read before connection was paused.
+         * @return {@code true} if connection should be read, {@code false} if it is paused again
+         */
+        private boolean resume() throws IOException {
+            input.flip();
+            return decode();
+        }
+
+        /**
+         * Handles every whole frame in input buffer, until user of connection exceeds limit of queued transfers.
+         * @return {@code true} if connection should be read, {@code false} if it is paused
+         */
+        private boolean decode() throws IOException {
+            try {
+                while (!closing) {
+                    int length;
+                    try {
+                        length = MessageCodec.frameLength(input);
+                    } catch (ProtocolException e) {
+                        // stream cannot be split into frames anymore
+                        disconnect();
+                        return false;
+                    }
+                    if (length < 0) break;
+                    Msg message;
+                    try {
+                        message = codec.decode(input);
+                    } catch (ProtocolException e) {
+                        // malformed frame is skipped
+                        continue;
+                    }
+                    if (message == null) break;
+                    if (user == null) user = message.user();
+                    handler.handle(this, message);
+                    if (queuedBytes(this) > queueLimit) {
+                        paused.add(this);
+                        return false;
+                    }
+                }
+                return !disconnected;
+            } finally {
+                if (!disconnected) compact();
+            }
+        }
+
+        /**
+         * Prepares input buffer for reading, growing it if frame does not fit, or shrinking it, once
+         * large frame was handled.
+         */
+        private void compact() {
+            int needed = input.remaining() >= MessageCodec.HEADER_SIZE
+                         ? MessageCodec.HEADER_SIZE + Math.max(input.getInt(input.position()), 0)
+                         : INITIAL_BUFFER_SIZE;
+            int capacity = Math.max(Math.min(needed, MessageCodec.HEADER_SIZE + MessageCodec.MAX_FRAME_LENGTH),
+                                    INITIAL_BUFFER_SIZE);
+            if (capacity > input.capacity() || input.capacity() > INITIAL_BUFFER_SIZE && capacity < input.capacity()) {
+                ByteBuffer resized = ByteBuffer.allocate(Math.max(capacity, input.remaining()));
+                resized.put(input);
+                input = resized;
+            } else {
+                input.compact();
+            }
+        }
+
+        private void interest(int operation, boolean enabled) {
+            if (!key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(enabled ? ops | operation : ops & ~operation);
+        }
+
+        private void disconnect() {
+            if (disconnected) return;
+            disconnected = true;
+            closing = true;
+            paused.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // connection is closed anyway
+            }
+            synchronized (output) {
+                output.clear();
+            }
+            connections.decrementAndGet();
+            handler.disconnected(this);
+        }
+    }
+}
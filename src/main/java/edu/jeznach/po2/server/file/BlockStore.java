@@ -0,0 +1,332 @@
+package edu.jeznach.po2.server.file;
+
+import edu.jeznach.po2.common.communication.PartialTransfer;
+import edu.jeznach.po2.common.configuration.Configuration;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Content-addressed store of file contents on server drive, that keeps contents shared by several
+ * files (i.e. same file uploaded by many users) only once.
+ * <p>Contents are stored as objects named by their checksum, in {@value #DIRECTORY_NAME} directory of drive:
+ * <blockquote><pre><code>
+ * 📁 drive
+ * ├ 📁 .store
+ * │ ├ 📁 2d - first two digits of checksum
+ * │ │ └ 📄 2d44...40ff - contents of file
+ * │ └ ⸬
+ * ├ 📁 user
+ * │ └ 📄 docs/sum.txt - hard link to object 2d44...40ff
+ * └ ⸬
+ * </code></pre></blockquote>
+ * Files of users are hard links to objects, so they are read as any other file. As all links share
+ * same contents (and modification timestamp), files must never be written in place - they are
+ * received into separate file (i.e. by {@link edu.jeznach.po2.common.communication.PartialTransfer}),
+ * that is then {@link #put(File, String) put} in store.
+ * <br><br>
+ * <p>Number of references to every object is counted from mapping of drive by {@link DriveFileMapper},
+ * and objects that are no longer referenced are removed by {@link #collectGarbage()}. Whole files
+ * are stored (rather than blocks of files), as this way no file has to be assembled to be read.
+ * <p>All public methods of this class are thread-safe.
+ * @see Configuration#CONTENT_STORE
+ */
+public class BlockStore {
+
+    /**
+     * Name of directory of drive, that contains objects.
+     */
+    public static final @NotNull String DIRECTORY_NAME = ".store";
+
+    private static final @NotNull Pattern CHECKSUM = Pattern.compile("[0-9a-f]{8,}");
+
+    private final @NotNull Path directory;
+    private final @NotNull Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final @NotNull ReadWriteLock collectionLock = new ReentrantReadWriteLock();
+    private volatile boolean loaded;
+
+    /**
+     * Creates store of drive. Objects already stored in drive are listed once they are first needed.
+     * @param driveLocation the location of drive
+     */
+    public BlockStore(@NotNull File driveLocation) {
+        this.directory = driveLocation.toPath().resolve(DIRECTORY_NAME);
+    }
+
+    /**
+     * @param checksum the checksum of contents
+     * @param size the size of contents, in bytes
+     * @return {@code true} if contents are stored, so file with them can be {@link #link(String, long, File) linked}
+     */
+    public boolean contains(@NotNull String checksum, long size) {
+        load();
+        Entry entry = entries.get(checksum);
+        return entry != null && entry.stored && entry.size == size;
+    }
+
+    /**
+     * Creates {@code file} with stored contents, replacing it if it exists, so file that is
+     * already stored does not have to be transferred.
+     * @param checksum the checksum of contents
+     * @param size the size of contents, in bytes
+     * @param file the file to create
+     * @return {@code true} if file was created, {@code false} if contents are not stored,
+     *         and have to be transferred
+     * @throws IOException if an I/O error occurs while linking file
+     */
+    public boolean link(@NotNull String checksum, long size, @NotNull File file) throws IOException {
+        if (!contains(checksum, size)) return false;
+        collectionLock.readLock().lock();
+        try {
+            Path object = object(checksum);
+            if (!Files.exists(object) || Files.size(object) != size) return false;
+            Files.createDirectories(file.toPath().toAbsolutePath().getParent());
+            replaceWithLink(file.toPath(), object);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Puts contents of received {@code file} in store, and replaces file with link to them. If same
+     * contents are already stored, received copy is discarded.
+     * @param file the received file
+     * @param checksum the checksum of file contents
+     * @return {@code true} if file is link to stored object, {@code false} if it could not be stored
+     *         (i.e. file system does not support hard links), and was left as is
+     * @throws IOException if an I/O error occurs while storing file
+     */
+    public boolean put(@NotNull File file, @NotNull String checksum) throws IOException {
+        if (!CHECKSUM.matcher(checksum).matches()) return false;
+        load();
+        Path path = file.toPath();
+        long size = Files.size(path);
+        collectionLock.readLock().lock();
+        try {
+            Path object = object(checksum);
+            Files.createDirectories(object.getParent());
+            try {
+                Files.createLink(object, path);
+            } catch (FileAlreadyExistsException e) {
+                if (Files.size(object) != size) return false;
+                if (!Files.isSameFile(object, path)) replaceWithLink(path, object);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                return false;
+            }
+            entries.compute(checksum, (c, entry) -> {
+                if (entry == null) entry = new Entry();
+                entry.size = size;
+                entry.stored = true;
+                return entry;
+            });
+            return true;
+        } finally {
+            collectionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts reference to contents from mapping of file.
+     * @param checksum the checksum of contents
+     * @param size the size of contents, in bytes
+     */
+    public void retain(@NotNull String checksum, long size) {
+        entries.compute(checksum, (c, entry) -> {
+            if (entry == null) {
+                entry = new Entry();
+                entry.size = size;
+            }
+            entry.references++;
+            return entry;
+        });
+    }
+
+    /**
+     * Removes reference to contents from mapping of file. Contents are kept in store, until
+     * garbage is {@link #collectGarbage() collected}, so they can be linked again in meantime
+     * (i.e. when file is deleted and uploaded again).
+     * @param checksum the checksum of contents
+     */
+    public void release(@NotNull String checksum) {
+        entries.computeIfPresent(checksum, (c, entry) -> {
+            entry.references--;
+            return entry.references > 0 || entry.stored ? entry : null;
+        });
+    }
+
+    /**
+     * Removes objects, that are no longer referenced by any file.
+     * @return the number of bytes freed
+     * @throws IOException if an I/O error occurs while removing objects
+     */
+    public long collectGarbage() throws IOException {
+        load();
+        long freed = 0;
+        collectionLock.writeLock().lock();
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                if (value.references > 0 || !value.stored) continue;
+                Path object = object(entry.getKey());
+                if (links(object) > 1) continue;
+                if (Files.deleteIfExists(object)) freed += value.size;
+                entries.remove(entry.getKey(), value);
+            }
+        } finally {
+            collectionLock.writeLock().unlock();
+        }
+        return freed;
+    }
+
+    /**
+     * @return the report of space saved by storing contents once
+     */
+    public @NotNull Report report() {
+        load();
+        long objects = 0, physical = 0, references = 0, logical = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.stored) continue;
+            objects++;
+            physical += entry.size;
+            references += Math.max(entry.references, 0);
+            logical += Math.max(entry.references, 0) * entry.size;
+        }
+        return new Report(objects, physical, references, logical);
+    }
+
+    /**
+     * @return the directory that contains objects
+     */
+    public @NotNull Path getDirectory() { return this.directory; }
+
+    private @NotNull Path object(@NotNull String checksum) {
+        return directory.resolve(checksum.substring(0, 2)).resolve(checksum);
+    }
+
+    private static void replaceWithLink(@NotNull Path file, @NotNull Path object) throws IOException {
+        if (Files.exists(file) && Files.isSameFile(file, object)) return;
+        Path link = file.resolveSibling(file.getFileName() + PartialTransfer.LINK_SUFFIX);
+        Files.deleteIfExists(link);
+        Files.createLink(link, object);
+        try {
+            Files.move(link, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(link, file, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(link);
+        }
+    }
+
+    /**
+     * @return number of hard links to {@code object}, {@code 1} if file system does not report it
+     */
+    private static int links(@NotNull Path object) {
+        try {
+            return (Integer) Files.getAttribute(object, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Lists objects already stored in drive.
+     */
+    private void load() {
+        if (loaded) return;
+        synchronized (this) {
+            if (loaded) return;
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> objects = Files.walk(directory, 2)) {
+                    objects.filter(Files::isRegularFile)
+                           .filter(o -> CHECKSUM.matcher(o.getFileName().toString()).matches())
+                           .forEach(o -> {
+                               long size = o.toFile().length();
+                               entries.compute(o.getFileName().toString(), (c, entry) -> {
+                                   if (entry == null) entry = new Entry();
+                                   entry.size = size;
+                                   entry.stored = true;
+                                   return entry;
+                               });
+                           });
+                } catch (IOException | UncheckedIOException e) {
+                    // objects that were not listed are not linked, and will be stored again
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private static final class Entry {
+        private int references;
+        private long size;
+        private boolean stored;
+    }
+
+    /**
+     * Represents space saved by storing contents once.
+     */
+    public static final class Report {
+
+        /**
+         * Report of empty store.
+         */
+        public static final @NotNull Report EMPTY = new Report(0, 0, 0, 0);
+
+        private final long objects;
+        private final long physicalBytes;
+        private final long references;
+        private final long logicalBytes;
+
+        private Report(long objects, long physicalBytes, long references, long logicalBytes) {
+            this.objects = objects;
+            this.physicalBytes = physicalBytes;
+            this.references = references;
+            this.logicalBytes = logicalBytes;
+        }
+
+        /** @return the number of stored objects */
+        public long getObjects() { return this.objects; }
+
+        /** @return the number of bytes occupied by stored objects */
+        public long getPhysicalBytes() { return this.physicalBytes; }
+
+        /** @return the number of mapped files, that contents are stored */
+        public long getReferences() { return this.references; }
+
+        /** @return the number of bytes, that files linked to stored objects would occupy if they were not shared */
+        public long getLogicalBytes() { return this.logicalBytes; }
+
+        /** @return the ratio of logical to physical bytes, {@code 1} if nothing is stored */
+        public double getRatio() { return physicalBytes > 0 ? (double) logicalBytes / physicalBytes : 1; }
+
+        /**
+         * @param other the report of other store (i.e. of other drive)
+         * @return the report of both stores
+         */
+        public @NotNull Report plus(@NotNull Report other) {
+            return new Report(objects + other.objects, physicalBytes + other.physicalBytes,
+                              references + other.references, logicalBytes + other.logicalBytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files in %d objects, %d of %d bytes stored, dedup ratio %.2f",
+                                 references, objects, physicalBytes, logicalBytes, getRatio());
+        }
+    }
+}
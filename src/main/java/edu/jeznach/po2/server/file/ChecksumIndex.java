@@ -0,0 +1,168 @@
+package edu.jeznach.po2.server.file;
+
+import edu.jeznach.po2.common.communication.Messages.CreateFile;
+import edu.jeznach.po2.common.communication.Messages.ModFileMsg;
+import edu.jeznach.po2.common.communication.PartialTransfer;
+import edu.jeznach.po2.common.file.FileManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * Used to look up contents of files in several {@link DriveFileMapper} objects, so file which
+ * contents server already has (i.e. uploaded again after reinstalling client, or common asset
+ * uploaded by many users) is created without receiving it.
+ * <p>File is created, in order of preference:
+ * <p>- as link to object in {@link BlockStore} of drive, that file is created on,
+ * <p>- as hard link to file with same contents, if drive has {@link BlockStore} (as files linked by it
+ *      are never written in place),
+ * <p>- as copy of file with same contents, from any drive.
+ * <p>Files are looked up in mappings of drives, and are verified (by size and cached checksum) before
+ * they are linked or copied, so mapping that is not up to date does not corrupt created file.
+ */
+public class ChecksumIndex {
+
+    private final @NotNull List<DriveFileMapper> mappers;
+
+    /**
+     * Creates new {@code ChecksumIndex} from provided mappers.
+     * @param mappers the list of {@link DriveFileMapper} objects to look up contents in
+     */
+    public ChecksumIndex(@NotNull List<DriveFileMapper> mappers) {
+        this.mappers = mappers;
+    }
+
+    /**
+     * Looks up file with specified contents on all drives, preferring drive {@code preferred}.
+     * @param checksum the checksum of contents
+     * @param size the size of contents, in bytes
+     * @param preferred the drive, that is looked up first, can be {@code null}
+     * @return the file with specified contents, {@code null} if server does not have such contents
+     */
+    public @Nullable File find(@NotNull String checksum, long size, @Nullable DriveFileMapper preferred) {
+        return Stream.concat(Stream.of(preferred), mappers.stream().filter(m -> m != preferred))
+                     .filter(Objects::nonNull)
+                     .flatMap(m -> m.findFiles(checksum).stream())
+                     .filter(f -> matches(f, checksum, size))
+                     .findFirst()
+                     .orElse(null);
+    }
+
+    /**
+     * Creates file announced by {@code message} (i.e. {@link CreateFile}) on {@code drive}, without
+     * receiving its contents, if server already has them, and maps it.
+     * @param drive the drive, that file is created on
+     * @param message the message announcing file
+     * @return {@code true} if file was created, and upload can be acknowledged, {@code false} if
+     *         server does not have contents of file, and they have to be received
+     * @throws ProtocolException if user or path of file in {@code message} points outside of directory of user
+     * @throws IOException if an I/O error occurs while creating file
+     */
+    public boolean createFile(@NotNull DriveFileMapper drive, @NotNull ModFileMsg message) throws IOException {
+        File file = resolve(drive, message.user(), message.file());
+        String checksum = message.checksum();
+        long size = message.size();
+        BlockStore store = drive.getStore();
+        if (store == null || !store.link(checksum, size, file)) {
+            File source = find(checksum, size, drive);
+            if (source == null) return false;
+            if (!source.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+                Files.createDirectories(file.toPath().toAbsolutePath().getParent());
+                copy(source.toPath(), file.toPath(), store != null);
+            }
+            if (store != null) store.put(file, checksum);
+        }
+        FileManager.getChecksumCache().put(file, checksum);
+        if (!drive.updateFile(file, checksum, message.user())) drive.attachFile(file, checksum, message.user());
+        return true;
+    }
+
+    /**
+     * Resolves file of user on drive, rejecting names received from client, that would point outside
+     * of directory of user (absolute paths, {@code ..} segments, or user that is not single directory name,
+     * or is directory of {@link BlockStore}).
+     * @return the file of user
+     * @throws ProtocolException if file is outside of directory of user
+     */
+    private static @NotNull File resolve(@NotNull DriveFileMapper drive, @NotNull String user, @NotNull String pathname)
+            throws ProtocolException {
+        if (user.isEmpty() || isTraversal(user) || user.contains("/") || user.contains("\\") ||
+            user.equals(BlockStore.DIRECTORY_NAME))
+            throw new ProtocolException("Illegal user: " + user);
+        if (pathname.isEmpty() || isTraversal(pathname) || pathname.startsWith("/") || pathname.startsWith("\\"))
+            throw new ProtocolException("Illegal path of file: " + pathname);
+        Path directory = Paths.get(drive.getMapping().getDrive_location(), user).toAbsolutePath().normalize();
+        Path file;
+        try {
+            Path relative = Paths.get(pathname);
+            if (relative.isAbsolute() || relative.getRoot() != null)
+                throw new ProtocolException("Illegal path of file: " + pathname);
+            file = directory.resolve(relative).normalize();
+        } catch (InvalidPathException e) {
+            throw new ProtocolException("Illegal path of file: " + pathname);
+        }
+        if (!file.startsWith(directory) || file.equals(directory))
+            throw new ProtocolException("Illegal path of file: " + pathname);
+        return file.toFile();
+    }
+
+    /**
+     * @return {@code true} if any segment of {@code pathname} is {@code .} or {@code ..}
+     */
+    private static boolean isTraversal(@NotNull String pathname) {
+        for (String segment : pathname.split("[/\\\\]")) {
+            if (segment.equals(".") || segment.equals("..")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies {@code source} to {@code target}, replacing it, so {@code target} is never observed
+     * partially written.
+     * @param link should file be hard-linked, rather than copied
+     */
+    private static void copy(@NotNull Path source, @NotNull Path target, boolean link) throws IOException {
+        Path copy = target.resolveSibling(target.getFileName() + PartialTransfer.COPY_SUFFIX);
+        Files.deleteIfExists(copy);
+        boolean linked = false;
+        if (link) {
+            try {
+                Files.createLink(copy, source);
+                linked = true;
+            } catch (UnsupportedOperationException | IOException e) {
+                // file system does not support hard links, file is copied
+            }
+        }
+        try {
+            if (!linked) Files.copy(source, copy, COPY_ATTRIBUTES);
+            try {
+                Files.move(copy, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(copy, target, REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code file} exists, and has specified size and checksum
+     */
+    private static boolean matches(@NotNull File file, @NotNull String checksum, long size) {
+        if (!file.isFile() || file.length() != size) return false;
+        try {
+            return checksum.equals(FileManager.getChecksumCache().getChecksum(file));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package edu.jeznach.po2.server.file;
 
+import edu.jeznach.po2.common.configuration.Configuration;
 import edu.jeznach.po2.common.file.FileMapper;
+import edu.jeznach.po2.common.file.FileScanner;
+import edu.jeznach.po2.common.file.MappingCodec;
+import edu.jeznach.po2.common.file.MappingJournal;
+import edu.jeznach.po2.common.file.YamlMappingCodec;
 import edu.jeznach.po2.common.log.Log;
+import edu.jeznach.po2.common.util.IndexedList;
 import edu.jeznach.po2.common.util.Pair;
 import edu.jeznach.po2.common.util.Throwables;
 import edu.jeznach.po2.server.gui.NotificationSender;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.error.YAMLException;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 /**
@@ -32,192 +39,334 @@ public class DriveFileMapper extends FileMapper<DriveMapping> {
     public static final DriveFileMappingProvider provider;
     static { provider = new DriveFileMappingProvider(); }
 
+    private static final int LOCK_STRIPES = 64;
+
+    private final @NotNull ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final @NotNull Lock[] userLocks = new Lock[LOCK_STRIPES];
+    private final @NotNull Map<String, DriveMapping.User> userIndex = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, IndexedList<String, FileMapping>> fileIndex = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, IndexedList<String, SharedFileMapping>> sharedIndex = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, Set<String>> checksumIndex = new ConcurrentHashMap<>();
+    private final @Nullable BlockStore store;
+
     /**
      * Creates new file mapper.
+     * <p>Users and files of {@code mapping} are indexed, so mapping should not be modified
+     * other than through this object afterwards.
+     * <br><br>
+     * <p>All public methods of this class are thread-safe. Operations on files of different users
+     * are performed in parallel, as each user is guarded by its own (striped) lock, while snapshot
+     * of mapping is taken only when no operation is in progress.
+     * <p>If {@link Configuration#CONTENT_STORE content store} is enabled, references of files to
+     * their contents are counted in {@link #getStore() store} of drive.
      * @param mapping the mapping object
      * @param file the file that is used to store mapping
      */
     public DriveFileMapper(@NotNull DriveMapping mapping, @Nullable File file) {
         super(mapping, file);
+        for (int i = 0; i < userLocks.length; i++) {
+            userLocks[i] = new ReentrantLock();
+        }
+        this.store = Configuration.CONTENT_STORE ? new BlockStore(new File(mapping.getDrive_location())) : null;
+        for (DriveMapping.User user : mapping.getUsers()) {
+            indexUser(user);
+        }
+    }
+
+    /**
+     * Looks up user in mapping, in constant time.
+     * <p>Returned object is live part of mapping, that can be modified by other threads, so
+     * {@link #copyUser(String)} should be used to inspect its files.
+     * @param username the username of user
+     * @return the user mapped on this drive, {@code null} if user has no mapping
+     */
+    public @Nullable DriveMapping.User getUser(@NotNull String username) {
+        return userIndex.get(username);
     }
 
+    /**
+     * Copies mapping of user, while no operation is performed on its files.
+     * @param username the username of user
+     * @return the copy of user mapped on this drive, {@code null} if user has no mapping
+     */
+    public @Nullable DriveMapping.User copyUser(@NotNull String username) {
+        Lock lock = userLock(username);
+        lock.lock();
+        try {
+            DriveMapping.User user = userIndex.get(username);
+            if (user == null) return null;
+            DriveMapping.User copy = new DriveMapping.User(username);
+            copy.setFiles(user.getFiles() != null ? new ArrayList<>(user.getFiles()) : null);
+            copy.setShared_files(user.getShared_files() != null ? new ArrayList<>(user.getShared_files()) : null);
+            copy.setUsed_space_bytes(user.getUsed_space_bytes());
+            return copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the store of contents of files on this drive, {@code null} if
+     *         {@link Configuration#CONTENT_STORE content store} is disabled
+     */
+    public @Nullable BlockStore getStore() {
+        return store;
+    }
+
+    /**
+     * Looks up files with specified contents, in constant time.
+     * @param checksum the checksum of contents
+     * @return the list of files mapped on this drive, that have contents with {@code checksum}
+     *         (according to mapping)
+     */
+    public @NotNull List<File> findFiles(@NotNull String checksum) {
+        Set<String> files = checksumIndex.get(checksum);
+        if (files == null) return Collections.emptyList();
+        return files.stream()
+                    .map(f -> new File(getMapping().getDrive_location() + File.separator + f))
+                    .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the list of names of users mapped on this drive
+     */
+    public @NotNull List<String> getUsernames() {
+        return new ArrayList<>(userIndex.keySet());
+    }
 
     @Override
     public boolean attachFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
-        List<DriveMapping.User> users = getMapping().getUsers();
-        Optional<DriveMapping.User> optionalUser = users.stream()
-                                                        .filter(u -> u.getUsername().equals(node))
-                                                        .findFirst();
-        DriveMapping.User user;
-        if (!optionalUser.isPresent()) {
-            DriveMapping.User newUser = new DriveMapping.User(node);
-            users.add(newUser);
-            user = newUser;
-        } else user = optionalUser.get();
-        List<FileMapping> files = user.getFiles();
-        String relativeFilePath = getRelativePath(file,
-                                              new File(getMapping().getDrive_location()
-                                                       + File.separator + node));
-        if (files != null) {
-            Optional<FileMapping> fileOptional = files.stream()
-                                                      .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                      .findFirst();
-            if (fileOptional.isPresent()) {
+        return perform(MappingJournal.Record.attach(node, getRelativePath(file, node),
+                                                    file.length(), checksum, file.lastModified()));
+    }
+
+    @Override
+    public boolean detachFile(@NotNull File file, @NotNull String node) {
+        return perform(MappingJournal.Record.detach(node, getRelativePath(file, node)));
+    }
+
+    @Override
+    public boolean updateFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
+        return perform(MappingJournal.Record.update(node, getRelativePath(file, node),
+                                                    file.length(), checksum, file.lastModified()));
+    }
+
+    @Override
+    public @Nullable Boolean shareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
+        return perform(MappingJournal.Record.share(node, getRelativePath(file, node), receiver));
+    }
+
+    @Override
+    public @Nullable Boolean unshareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
+        return perform(MappingJournal.Record.unshare(node, getRelativePath(file, node), receiver));
+    }
+
+    @Override
+    protected boolean apply(@NotNull MappingJournal.Record record) {
+        return execute(record, false);
+    }
+
+    @Override
+    protected byte[] snapshot() throws IOException {
+        snapshotLock.writeLock().lock();
+        try {
+            return serialize();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    private boolean perform(@NotNull MappingJournal.Record record) {
+        boolean changed = execute(record, true);
+        if (changed) markDirty();
+        return changed;
+    }
+
+    /**
+     * Executes operation while holding locks of users it concerns. Locks are always
+     * acquired in order of stripes, so operations concerning two users cannot deadlock.
+     */
+    private boolean execute(@NotNull MappingJournal.Record record, boolean journaled) {
+        int first = stripe(record.node);
+        int second = record.receiver.isEmpty() ? first : stripe(record.receiver);
+        snapshotLock.readLock().lock();
+        userLocks[Math.min(first, second)].lock();
+        if (first != second) userLocks[Math.max(first, second)].lock();
+        try {
+            boolean changed = executeLocked(record);
+            if (changed && journaled) journal(record);
+            return changed;
+        } finally {
+            if (first != second) userLocks[Math.max(first, second)].unlock();
+            userLocks[Math.min(first, second)].unlock();
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private boolean executeLocked(@NotNull MappingJournal.Record record) {
+        switch (record.operation) {
+            case attach:
+                return attach(record.node, record.pathname, record.size,
+                              record.checksum, record.modificationTimestamp);
+            case detach:
+                return detach(record.node, record.pathname);
+            case update:
+                return update(record.node, record.pathname, record.size,
+                              record.checksum, record.modificationTimestamp);
+            case share:
+                return share(record.node, record.pathname, record.receiver);
+            case unshare:
+                return unshare(record.node, record.pathname, record.receiver);
+            default:
                 return false;
-            } else {
-                files.add(new FileMapping(relativeFilePath,
-                                          file.length(),
-                                          checksum,
-                                          file.lastModified()));
-                user.setUsed_space_bytes(user.getUsed_space_bytes() + file.length());
-                mappingFile.ifPresent(this::dumpToFile);
-                return true;
+        }
+    }
+
+    private boolean attach(@NotNull String node, @NotNull String pathname,
+                           long size, @NotNull String checksum, long modificationTimestamp) {
+        DriveMapping.User user = userIndex.get(node);
+        if (user == null) {
+            user = new DriveMapping.User(node);
+            synchronized (getMapping().getUsers()) {
+                getMapping().getUsers().add(user);
             }
-        } else {
-            user.setFiles(new ArrayList<>());
-            //noinspection ConstantConditions
-            user.getFiles().add(new FileMapping(relativeFilePath,
-                                                file.length(),
-                                                checksum,
-                                                file.lastModified()));
-            user.setUsed_space_bytes(user.getUsed_space_bytes() + file.length());
-            mappingFile.ifPresent(this::dumpToFile);
+            indexUser(user);
+        }
+        if (files(user).add(new FileMapping(pathname, size, checksum, modificationTimestamp))) {
+            user.setUsed_space_bytes(user.getUsed_space_bytes() + size);
+            if (store != null) store.retain(checksum, size);
+            indexChecksum(checksum, node, pathname);
             return true;
         }
+        return false;
     }
 
-    @Override
-    public boolean detachFile(@NotNull File file, @NotNull String node) {
-        List<DriveMapping.User> users = getMapping().getUsers();
-        Optional<DriveMapping.User> optionalUser = users.stream()
-                                                        .filter(u -> u.getUsername().equals(node))
-                                                        .findFirst();
-        if (optionalUser.isPresent()) {
-            List<FileMapping> files = optionalUser.get()
-                                                  .getFiles();
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getDrive_location()
-                                                               + File.separator + node));
-            if (files != null) {
-                Optional<FileMapping> fileOptional = files.stream()
-                                                          .filter(f -> f.getPathname()
-                                                                        .equals(relativeFilePath))
-                                                          .findFirst();
-                if (fileOptional.isPresent()) {
-                    files.remove(fileOptional.get());
-                    optionalUser.get()
-                                .setUsed_space_bytes(
-                                        optionalUser.get()
-                                                    .getUsed_space_bytes() - file.length());
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
-                }
+    private boolean detach(@NotNull String node, @NotNull String pathname) {
+        DriveMapping.User user = userIndex.get(node);
+        IndexedList<String, FileMapping> files = fileIndex.get(node);
+        if (user != null && files != null) {
+            FileMapping fileMapping = files.remove(pathname);
+            if (fileMapping != null) {
+                user.setUsed_space_bytes(user.getUsed_space_bytes() - fileMapping.getSize_bytes());
+                if (store != null) store.release(fileMapping.getChecksum());
+                unindexChecksum(fileMapping.getChecksum(), node, pathname);
+                return true;
             }
         }
         return false;
     }
 
-    @Override
-    public boolean updateFile(@NotNull File file, @NotNull String checksum, @NotNull String node) {
-        List<DriveMapping.User> users = getMapping().getUsers();
-        Optional<DriveMapping.User> optionalUser = users.stream()
-                                                        .filter(u -> u.getUsername().equals(node))
-                                                        .findFirst();
-        if (optionalUser.isPresent()) {
-            List<FileMapping> files = optionalUser.get().getFiles();
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getDrive_location()
-                                                               + File.separator + node));
-            if (files != null) {
-                Optional<FileMapping> fileOptional = files.stream()
-                                                          .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                          .findFirst();
-                if (fileOptional.isPresent()) {
-                    FileMapping fileMapping = fileOptional.get();
-                    long oldSize = fileMapping.getSize_bytes();
-                    fileMapping.setChecksum(checksum);
-                    fileMapping.setModification_timestamp(file.lastModified());
-                    fileMapping.setSize_bytes(file.length());
-                    optionalUser.get().setUsed_space_bytes(
-                            optionalUser.get().getUsed_space_bytes() - oldSize + file.length()
-                    );
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
+    private boolean update(@NotNull String node, @NotNull String pathname,
+                           long size, @NotNull String checksum, long modificationTimestamp) {
+        DriveMapping.User user = userIndex.get(node);
+        IndexedList<String, FileMapping> files = fileIndex.get(node);
+        if (user != null && files != null) {
+            FileMapping fileMapping = files.get(pathname);
+            if (fileMapping != null) {
+                long oldSize = fileMapping.getSize_bytes();
+                if (store != null) {
+                    store.release(fileMapping.getChecksum());
+                    store.retain(checksum, size);
                 }
+                unindexChecksum(fileMapping.getChecksum(), node, pathname);
+                indexChecksum(checksum, node, pathname);
+                fileMapping.setChecksum(checksum);
+                fileMapping.setModification_timestamp(modificationTimestamp);
+                fileMapping.setSize_bytes(size);
+                user.setUsed_space_bytes(user.getUsed_space_bytes() - oldSize + size);
+                return true;
             }
         }
         return false;
     }
 
-    @Override
-    public @Nullable Boolean shareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
-        List<DriveMapping.User> users = getMapping().getUsers();
-        Optional<DriveMapping.User> optionalUser = users.stream()
-                                                        .filter(u -> u.getUsername().equals(node))
-                                                        .findFirst();
-        Optional<DriveMapping.User> optionalReceiver = users.stream()
-                                                        .filter(u -> u.getUsername().equals(receiver))
-                                                        .findFirst();
-        if (optionalUser.isPresent() && optionalReceiver.isPresent()) {
-            List<FileMapping> files = optionalUser.get()
-                                                  .getFiles();
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getDrive_location()
-                                                               + File.separator + node));
-            if (files != null) {
-                Optional<FileMapping> fileOptional = files.stream()
-                                                          .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                          .findFirst();
-                List<SharedFileMapping> shared_files = optionalReceiver.get().getShared_files();
-                if (fileOptional.isPresent() && shared_files != null) {
-                    SharedFileMapping sharedFileMapping = new SharedFileMapping(fileOptional.get(), node);
-                    shared_files.add(sharedFileMapping);
-                    mappingFile.ifPresent(this::dumpToFile);
-                    return true;
-                }
-            }
+    private boolean share(@NotNull String node, @NotNull String pathname, @NotNull String receiver) {
+        IndexedList<String, FileMapping> files = fileIndex.get(node);
+        IndexedList<String, SharedFileMapping> sharedFiles = sharedIndex.get(receiver);
+        if (files != null && sharedFiles != null) {
+            FileMapping fileMapping = files.get(pathname);
+            return fileMapping != null && sharedFiles.add(new SharedFileMapping(fileMapping, node));
         }
         return false;
     }
 
-    @Override
-    public @Nullable Boolean unshareFile(@NotNull File file, @NotNull String node, @NotNull String receiver) {
-            List<DriveMapping.User> users = getMapping().getUsers();
-            Optional<DriveMapping.User> optionalUser = users.stream()
-                                                            .filter(u -> u.getUsername().equals(node))
-                                                            .findFirst();
-        Optional<DriveMapping.User> optionalReceiver = users.stream()
-                                                            .filter(u -> u.getUsername().equals(receiver))
-                                                            .findFirst();
-        if (optionalUser.isPresent() && optionalReceiver.isPresent()) {
-            List<FileMapping> files = optionalUser.get()
-                                                  .getFiles();
-            String relativeFilePath = getRelativePath(file,
-                                                      new File(getMapping().getDrive_location()
-                                                               + File.separator + node));
-            if (files != null) {
-                Optional<FileMapping> fileOptional = files.stream()
-                                                          .filter(f -> f.getPathname().equals(relativeFilePath))
-                                                          .findFirst();
-                List<SharedFileMapping> shared_files = optionalReceiver.get().getShared_files();
-                if (fileOptional.isPresent() && shared_files != null) {
-                    Optional<SharedFileMapping> sharedFileMapping =
-                            shared_files.stream()
-                                        .filter(f -> f.getOwner().equals(node))
-                                        .filter(f -> f.getPathname().equals(relativeFilePath))
-                                        .findFirst();
-                    if (sharedFileMapping.isPresent()) {
-                        shared_files.remove(sharedFileMapping.get());
-                        mappingFile.ifPresent(this::dumpToFile);
-                        return true;
-                    }
-                }
-            }
+    private boolean unshare(@NotNull String node, @NotNull String pathname, @NotNull String receiver) {
+        IndexedList<String, FileMapping> files = fileIndex.get(node);
+        IndexedList<String, SharedFileMapping> sharedFiles = sharedIndex.get(receiver);
+        if (files != null && sharedFiles != null) {
+            return files.contains(pathname) && sharedFiles.remove(sharedKey(node, pathname)) != null;
         }
         return false;
     }
 
-    private void error(Exception e) {
+    private void indexUser(@NotNull DriveMapping.User user) {
+        userIndex.put(user.getUsername(), user);
+        if (user.getFiles() != null) {
+            //noinspection ConstantConditions
+            fileIndex.put(user.getUsername(), new IndexedList<>(user.getFiles(),
+                                                                FileMapping::getPathname));
+            //noinspection ConstantConditions
+            for (FileMapping fileMapping : user.getFiles()) {
+                if (store != null) store.retain(fileMapping.getChecksum(), fileMapping.getSize_bytes());
+                indexChecksum(fileMapping.getChecksum(), user.getUsername(), fileMapping.getPathname());
+            }
+        }
+        if (user.getShared_files() != null) {
+            //noinspection ConstantConditions
+            sharedIndex.put(user.getUsername(), new IndexedList<>(user.getShared_files(),
+                                                                  f -> sharedKey(f.getOwner(), f.getPathname())));
+        }
+    }
+
+    private void indexChecksum(@NotNull String checksum, @NotNull String node, @NotNull String pathname) {
+        checksumIndex.compute(checksum, (c, files) -> {
+            if (files == null) files = ConcurrentHashMap.newKeySet();
+            files.add(sharedKey(node, pathname));
+            return files;
+        });
+    }
+
+    private void unindexChecksum(@NotNull String checksum, @NotNull String node, @NotNull String pathname) {
+        checksumIndex.computeIfPresent(checksum, (c, files) -> {
+            files.remove(sharedKey(node, pathname));
+            return files.isEmpty() ? null : files;
+        });
+    }
+
+    private @NotNull IndexedList<String, FileMapping> files(@NotNull DriveMapping.User user) {
+        IndexedList<String, FileMapping> files = fileIndex.get(user.getUsername());
+        if (files == null) {
+            user.setFiles(new ArrayList<>());
+            //noinspection ConstantConditions
+            files = new IndexedList<>(user.getFiles(), FileMapping::getPathname);
+            fileIndex.put(user.getUsername(), files);
+        }
+        return files;
+    }
+
+    private @NotNull String getRelativePath(@NotNull File file, @NotNull String node) {
+        return getRelativePath(file, new File(getMapping().getDrive_location() + File.separator + node));
+    }
+
+    private int stripe(@NotNull String username) {
+        return (username.hashCode() & 0x7FFFFFFF) % userLocks.length;
+    }
+
+    private @NotNull Lock userLock(@NotNull String username) {
+        return userLocks[stripe(username)];
+    }
+
+    private static @NotNull String sharedKey(@NotNull String owner, @NotNull String pathname) {
+        return owner + File.separator + pathname;
+    }
+
+    @Override
+    protected @NotNull MappingCodec<DriveMapping> codec() {
+        return provider.getCodec();
+    }
+
+    @Override
+    protected void error(@NotNull Exception e) {
         NotificationSender sender =
                 new NotificationSender(getMapping().getName(),
                                        new Log(new File(getMapping().getDrive_location() +
@@ -227,16 +376,6 @@ public class DriveFileMapper extends FileMapper<DriveMapping> {
         sender.close();
     }
 
-    private void dumpToFile(File file) {
-        try {
-            Writer writer = new FileWriter(file);
-            writer.write(new Yaml().dump(getMapping()));
-            writer.close();
-        } catch (IOException e) {
-            error(e);
-        }
-    }
-
     /**
      * Represents companion object of {@link DriveFileMapper} stored in {@link DriveFileMapper#provider},
      * used for creating/loading file mapping via factory methods.
@@ -244,27 +383,29 @@ public class DriveFileMapper extends FileMapper<DriveMapping> {
     public static class DriveFileMappingProvider
             extends FileMappingProvider<DriveMapping, DriveMapping.InitParams> {
 
+        private final @NotNull MappingCodec<DriveMapping> yamlCodec = new YamlMappingCodec<>(DriveMapping.class);
+        private final @NotNull MappingCodec<DriveMapping> binaryCodec = new DriveMappingCodec();
+
         private DriveFileMappingProvider() { }
 
         @SuppressWarnings("DuplicateThrows")
         @Override
         public @NotNull Pair<DriveMapping, Boolean> createStructure(@Nullable File file,
-                                                                    @NotNull DriveMapping.InitParams parameters)
+                                                                    @NotNull DriveMapping.InitParams parameters,
+                                                                    @Nullable DriveMapping previous)
                 throws FileNotFoundException, IOException {
-                Yaml yaml = new Yaml();
                 DriveMapping mapping = new DriveMapping(parameters);
                 Boolean fileCreated;
                 File drive = parameters.driveLocation;
                 //noinspection ResultOfMethodCallIgnored
                 drive.mkdirs();
                 File[] driveDirectories = drive.listFiles();
-                mapping.setUsers(listUsers(driveDirectories));
+                mapping.setUsers(listUsers(driveDirectories, previous));
                 if (file != null) {
                     File fileToCreate = new File(drive.getAbsolutePath() + File.separator + file.getPath());
                     fileCreated = fileToCreate.createNewFile();
-                    Writer writer = new OutputStreamWriter(new FileOutputStream(fileToCreate));
-                    yaml.dump(mapping, writer);
-                    writer.close();
+                    MappingJournal.delete(fileToCreate);
+                    write(mapping, fileToCreate);
                 } else fileCreated = null;
                 return Pair.of(mapping, fileCreated);
         }
@@ -273,36 +414,68 @@ public class DriveFileMapper extends FileMapper<DriveMapping> {
         @Override
         public @Nullable DriveMapping loadStructure(@NotNull File file)
                 throws FileNotFoundException, YAMLException, IOException {
-            Yaml yaml = new Yaml();
-            try (Reader reader = new InputStreamReader(new FileInputStream(file))) {
-                return yaml.load(reader);
+            DriveMapping mapping;
+            try {
+                mapping = read(file);
             } catch (YAMLException e) {
                 throw new YAMLException("Exception thrown while parsing file mapping," +
                                         " try to manually repair file, or delete it to " +
                                         "create it from files (will remove all sharing links)", e);
             }
+            if (mapping != null) MappingJournal.replay(file, new DriveFileMapper(mapping, null)::apply);
+            return mapping;
         }
 
-        private static List<DriveMapping.User> listUsers(File[] directories) {
+        @Override
+        public @NotNull MappingCodec<DriveMapping> getCodec(@NotNull MappingCodec.Format format) {
+            switch (format) {
+                case binary:
+                    return binaryCodec;
+                case yaml:
+                default:
+                    return yamlCodec;
+            }
+        }
+
+        /**
+         * Creates mappings of users, scanning their directories in parallel.
+         * @param directories the directories of users
+         * @param previous the previous mapping of drive, used to skip calculating checksums
+         *                 of unmodified files, can be {@code null}
+         * @return list of users mappings
+         */
+        private static List<DriveMapping.User> listUsers(File[] directories, @Nullable DriveMapping previous) {
             if (directories != null) {
-                return Arrays.stream(directories)
-                             .filter(File::isDirectory)
-                             .map(f -> Pair.of(new DriveMapping.User(f.getName()), f))
-                             .peek(p -> p.key.setFiles(listFiles(p.value, p.value).stream()
-                                                                                  .map(FileMapping::new)
-                                                                                  .collect(Collectors.toList())))
-                             .map(p -> p.key)
-                             .peek(user -> {
-                                 if (user.getFiles() != null) {
-                                     user.setUsed_space_bytes(
-                                             user.getFiles()
-                                                 .stream()
-                                                 .map(FileMapping::getSize_bytes)
-                                                 .reduce(0L, Long::sum)
-                                     );
-                                 }
-                             })
-                             .collect(Collectors.toList());
+                Map<String, DriveMapping.User> previousUsers = new HashMap<>();
+                if (previous != null && previous.getUsers() != null) {
+                    previous.getUsers().forEach(u -> previousUsers.put(u.getUsername(), u));
+                }
+                List<File> userDirectories = Arrays.stream(directories)
+                                                   .filter(File::isDirectory)
+                                                   .filter(d -> !d.getName().equals(BlockStore.DIRECTORY_NAME))
+                                                   .collect(Collectors.toList());
+                Map<File, List<edu.jeznach.po2.common.file.FileMapping>> files =
+                        FileScanner.scanAll(userDirectories, d -> {
+                            DriveMapping.User previousUser = previousUsers.get(d.getName());
+                            return previousUser != null ? FileScanner.index(previousUser.getFiles()) : null;
+                        });
+                return userDirectories.stream()
+                                      .map(f -> Pair.of(new DriveMapping.User(f.getName()), f))
+                                      .peek(p -> p.key.setFiles(files.get(p.value).stream()
+                                                                     .map(FileMapping::new)
+                                                                     .collect(Collectors.toList())))
+                                      .map(p -> p.key)
+                                      .peek(user -> {
+                                          if (user.getFiles() != null) {
+                                              user.setUsed_space_bytes(
+                                                      user.getFiles()
+                                                          .stream()
+                                                          .map(FileMapping::getSize_bytes)
+                                                          .reduce(0L, Long::sum)
+                                              );
+                                          }
+                                      })
+                                      .collect(Collectors.toList());
             } else return new ArrayList<>();
         }
     }
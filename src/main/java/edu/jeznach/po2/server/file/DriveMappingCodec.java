@@ -0,0 +1,59 @@
+package edu.jeznach.po2.server.file;
+
+import edu.jeznach.po2.common.file.BinaryMappingCodec;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Persists {@link DriveMapping} as compact binary document.
+ * <blockquote><code>
+ *     $NAME$ $LOG_NAME$ $DRIVE_LOCATION$ [$USERNAME$ $USED_SPACE$ [$FILE$...] [$SHARED_FILE$...]...]
+ * </code></blockquote>
+ * @see BinaryMappingCodec
+ */
+public class DriveMappingCodec extends BinaryMappingCodec<DriveMapping> {
+
+    DriveMappingCodec() {
+        super((byte) 'D');
+    }
+
+    @Override
+    protected void write(@NotNull DriveMapping mapping, @NotNull DataOutputStream stream) throws IOException {
+        writeString(stream, mapping.getName());
+        writeString(stream, mapping.getLog_name());
+        writeString(stream, mapping.getDrive_location());
+        writeList(stream, mapping.getUsers(), (s, user) -> {
+            writeString(s, user.getUsername());
+            writeVarLong(s, user.getUsed_space_bytes());
+            writeList(s, user.getFiles(), BinaryMappingCodec::writeFileMapping);
+            writeList(s, user.getShared_files(), (ss, file) -> {
+                writeFileMapping(ss, file);
+                writeString(ss, file.getOwner());
+            });
+        });
+    }
+
+    @Override
+    protected @NotNull DriveMapping read(@NotNull DataInputStream stream) throws IOException {
+        DriveMapping mapping = new DriveMapping();
+        mapping.setName(readString(stream));
+        mapping.setLog_name(readString(stream));
+        mapping.setDrive_location(readString(stream));
+        //noinspection ConstantConditions
+        mapping.setUsers(readList(stream, s -> {
+            DriveMapping.User user = new DriveMapping.User(readString(s));
+            user.setUsed_space_bytes(readVarLong(s));
+            user.setFiles(readList(s, ss -> readFileMapping(ss, new FileMapping())));
+            user.setShared_files(readList(s, ss -> {
+                SharedFileMapping file = readFileMapping(ss, new SharedFileMapping());
+                file.setOwner(readString(ss));
+                return file;
+            }));
+            return user;
+        }));
+        return mapping;
+    }
+}
@@ -1,15 +1,13 @@
 package edu.jeznach.po2.server.file;
 
-import edu.jeznach.po2.common.file.FileMapper;
 import edu.jeznach.po2.server.file.DriveMapping.User;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 
 /**
@@ -34,17 +32,14 @@ public class UserMappingCollector {
      *         is not yet <i>"registered"</i> on server
      */
     public @Nullable User collectUserMapping(@NotNull String username) {
-        Stream<User> userStream = mappers.stream()
-                                         .map(FileMapper::getMapping)
-                                         .map(DriveMapping::getUsers)
-                                         .map(l -> l.stream()
-                                                    .filter(u -> u.getUsername().equals(username))
-                                                    .findFirst())
-                                         .filter(Optional::isPresent)
-                                         .map(Optional::get);
-        if (userStream.count() <= 0) return null;
-        return userStream.map(u -> new User[] { u })
-                         .collect(UserMappingCollector.merging());
+        List<User> users = mappers.stream()
+                                  .map(m -> m.copyUser(username))
+                                  .filter(Objects::nonNull)
+                                  .collect(Collectors.toList());
+        if (users.isEmpty()) return null;
+        return users.stream()
+                    .map(u -> new User[] { u })
+                    .collect(UserMappingCollector.merging());
     }
 
     /**
@@ -53,10 +48,8 @@ public class UserMappingCollector {
      */
     public @NotNull List<String> collectUserNames() {
         return mappers.stream()
-                      .map(FileMapper::getMapping)
-                      .map(DriveMapping::getUsers)
+                      .map(DriveFileMapper::getUsernames)
                       .flatMap(List::stream)
-                      .map(User::getUsername)
                       .distinct()
                       .collect(Collectors.toList());
     }
@@ -71,6 +64,10 @@ public class UserMappingCollector {
     }
 
     static User[] mergeUsers(User[] to, User[] from) {
+        if (to[0] == null) {
+            to[0] = from[0];
+            return to;
+        }
         if (to[0].getFiles() != null) {
             if (from[0].getFiles() != null) to[0].getFiles().addAll(from[0].getFiles());
         } else {
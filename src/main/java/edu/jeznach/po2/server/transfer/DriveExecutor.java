@@ -0,0 +1,318 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.server.file.DriveFileMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies files to single drive, with bounded number of threads and bounded queue, so slow drive
+ * cannot occupy all threads of server, while other drives are idle.
+ * <p>Drive has {@code threads + queueSize} slots. Task is only accepted if it {@link #tryReserve() reserves}
+ * free slot (and {@link #execute(Reservation, long, Callable) executes} in it), otherwise drive is saturated, and task should remain queued by caller - i.e. in queue of
+ * its user in {@link TransferScheduler}, which serves tasks of other drives in meantime, and once
+ * queue of user grows, stops reading its files from connection. Listeners are notified, when slot
+ * of saturated drive is freed.
+ * <br><br>
+ * <p>Executor collects {@link Statistics statistics} - number of copied files and bytes, rate of
+ * copying, and time that tasks waited in queue and were executed.
+ * <p>All public methods of this class are thread-safe.
+ * @see Configuration#DRIVE_THREADS
+ * @see Configuration#DRIVE_QUEUE_SIZE
+ */
+public class DriveExecutor implements Closeable {
+
+    private final @NotNull DriveFileMapper drive;
+    private final @NotNull ThreadPoolExecutor executor;
+    private final @NotNull Semaphore slots;
+    private final @NotNull List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final @NotNull AtomicInteger saturated = new AtomicInteger();
+    private long completed;
+    private long failed;
+    private long bytes;
+    private long totalWait$ns;
+    private long totalExecution$ns;
+    private long maxExecution$ns;
+
+    /**
+     * Creates executor of drive, with {@link Configuration#DRIVE_THREADS configured} number of threads
+     * and {@link Configuration#DRIVE_QUEUE_SIZE size} of queue.
+     * @param drive the mapper of drive
+     */
+    public DriveExecutor(@NotNull DriveFileMapper drive) {
+        this(drive, Configuration.DRIVE_THREADS, Configuration.DRIVE_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates executor of drive.
+     * @param drive the mapper of drive
+     * @param threads the number of files copied at once
+     * @param queueSize the number of files, that can wait to be copied
+     */
+    public DriveExecutor(@NotNull DriveFileMapper drive, int threads, int queueSize) {
+        this.drive = drive;
+        int parallelism = Math.max(threads, 1);
+        int capacity = Math.max(queueSize, 0);
+        String name = drive.getMapping().getName();
+        AtomicInteger count = new AtomicInteger();
+        // slot is released at end of task, before its thread takes next task, so queue can briefly
+        // hold task of every slot - bounded queue rejects tasks, if slots are not accounted for
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(parallelism + capacity), r -> {
+            Thread thread = new Thread(r, name + "-copy-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.slots = new Semaphore(parallelism + capacity);
+    }
+
+    /**
+     * @return the mapper of drive
+     */
+    public @NotNull DriveFileMapper getDrive() { return this.drive; }
+
+    /**
+     * @return {@code true} if all slots of drive are taken
+     */
+    public boolean isSaturated() {
+        return slots.availablePermits() == 0;
+    }
+
+    /**
+     * Reserves slot of drive, that has to be used by {@link #execute(Reservation, long, Callable)},
+     * or {@link Reservation#close() released}.
+     * @return the reservation of slot, {@code null} if drive is saturated
+     */
+    public @Nullable Reservation tryReserve() {
+        if (slots.tryAcquire()) return new Reservation();
+        saturated.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reserves slot of drive, and executes task, if drive is not saturated.
+     * @param size the size of copied file, in bytes
+     * @param task the task that copies file
+     * @param <T> the type of result of task
+     * @return the future, that is completed with result of task, {@code null} if drive is saturated
+     */
+    public <T> @Nullable CompletableFuture<T> trySubmit(long size, @NotNull Callable<T> task) {
+        Reservation reservation = tryReserve();
+        return reservation != null ? execute(reservation, size, task) : null;
+    }
+
+    /**
+     * Executes task in reserved slot, releasing slot once task is executed.
+     * @param reservation the reservation of slot, that is used by task
+     * @param size the size of copied file, in bytes
+     * @param task the task that copies file
+     * @param <T> the type of result of task
+     * @return the future, that is completed with result of task, or exceptionally with
+     *         {@link CancellationException} if executor is closed before task is executed
+     * @throws IllegalArgumentException if reservation was made by other executor
+     * @throws IllegalStateException if reservation was already used or released
+     */
+    public <T> @NotNull CompletableFuture<T> execute(@NotNull Reservation reservation, long size,
+                                                     @NotNull Callable<T> task) {
+        if (reservation.executor() != this) throw new IllegalArgumentException("Slot is reserved in other drive");
+        if (!reservation.used.compareAndSet(false, true)) throw new IllegalStateException("Slot is already used");
+        Copy<T> copy = new Copy<>(size, task);
+        try {
+            executor.execute(copy);
+        } catch (RejectedExecutionException e) {
+            copy.cancel();
+        }
+        return copy.future;
+    }
+
+    /**
+     * Adds listener, that is notified (by thread of executor), when slot of drive is freed.
+     * @param listener the listener to add
+     */
+    public void addListener(@NotNull Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the statistics of drive
+     */
+    public synchronized @NotNull Statistics getStatistics() {
+        return new Statistics(drive.getMapping().getName(), executor.getActiveCount(), executor.getQueue().size(),
+                              saturated.get(), completed, failed, bytes, totalWait$ns, totalExecution$ns,
+                              maxExecution$ns);
+    }
+
+    /**
+     * Stops threads of executor, interrupting tasks in progress. Tasks, that were not executed yet,
+     * are cancelled.
+     */
+    @Override
+    public void close() {
+        for (Runnable runnable : executor.shutdownNow()) {
+            if (runnable instanceof Copy) ((Copy<?>) runnable).cancel();
+        }
+    }
+
+    private void finished(long size, boolean succeeded, long wait$ns, long execution$ns) {
+        synchronized (this) {
+            if (succeeded) {
+                completed++;
+                bytes += Math.max(size, 0);
+            } else {
+                failed++;
+            }
+            totalWait$ns += wait$ns;
+            totalExecution$ns += execution$ns;
+            maxExecution$ns = Math.max(maxExecution$ns, execution$ns);
+        }
+        release();
+    }
+
+    private void release() {
+        slots.release();
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Represents slot of drive, reserved for single task.
+     */
+    public final class Reservation implements AutoCloseable {
+
+        private final @NotNull AtomicBoolean used = new AtomicBoolean();
+
+        private Reservation() {  }
+
+        private @NotNull DriveExecutor executor() { return DriveExecutor.this; }
+
+        /**
+         * Releases slot, if it was not used by any task.
+         */
+        @Override
+        public void close() {
+            if (used.compareAndSet(false, true)) release();
+        }
+    }
+
+    /**
+     * Task that copies file in reserved slot, releasing it once task is executed or cancelled.
+     */
+    private final class Copy<T> implements Runnable {
+
+        private final long size;
+        private final @NotNull Callable<T> task;
+        private final long queuedAt = System.nanoTime();
+        private final @NotNull CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Copy(long size, @NotNull Callable<T> task) {
+            this.size = size;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                if (!future.isDone()) {
+                    future.complete(task.call());
+                    succeeded = true;
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                finished(size, succeeded, startedAt - queuedAt, System.nanoTime() - startedAt);
+            }
+        }
+
+        private void cancel() {
+            future.completeExceptionally(new CancellationException("Drive executor is closed"));
+            release();
+        }
+    }
+
+    /**
+     * Represents statistics of drive.
+     */
+    public static final class Statistics {
+
+        private final @NotNull String drive;
+        private final int active;
+        private final int queued;
+        private final long saturated;
+        private final long completed;
+        private final long failed;
+        private final long bytes;
+        private final long totalWait$ns;
+        private final long totalExecution$ns;
+        private final long maxExecution$ns;
+
+        private Statistics(@NotNull String drive, int active, int queued, long saturated, long completed,
+                           long failed, long bytes, long totalWait$ns, long totalExecution$ns, long maxExecution$ns) {
+            this.drive = drive;
+            this.active = active;
+            this.queued = queued;
+            this.saturated = saturated;
+            this.completed = completed;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.totalWait$ns = totalWait$ns;
+            this.totalExecution$ns = totalExecution$ns;
+            this.maxExecution$ns = maxExecution$ns;
+        }
+
+        /** @return the name of drive */
+        public @NotNull String getDrive() { return this.drive; }
+
+        /** @return the number of files being copied */
+        public int getActive() { return this.active; }
+
+        /** @return the number of files waiting to be copied */
+        public int getQueued() { return this.queued; }
+
+        /** @return the number of times task was not accepted, as drive was saturated */
+        public long getSaturated() { return this.saturated; }
+
+        /** @return the number of copied files */
+        public long getCompleted() { return this.completed; }
+
+        /** @return the number of files, that failed to be copied */
+        public long getFailed() { return this.failed; }
+
+        /** @return the number of bytes of copied files */
+        public long getBytes() { return this.bytes; }
+
+        /** @return the number of bytes copied per second of copying, in megabytes */
+        public double getThroughput$MBps() {
+            return totalExecution$ns > 0 ? bytes * 1e3 / totalExecution$ns : 0;
+        }
+
+        /** @return the mean time that tasks waited in queue, in milliseconds */
+        public double getMeanWait$ms() {
+            long tasks = completed + failed;
+            return tasks > 0 ? totalWait$ns / 1e6 / tasks : 0;
+        }
+
+        /** @return the mean time of copying file, in milliseconds */
+        public double getMeanLatency$ms() {
+            long tasks = completed + failed;
+            return tasks > 0 ? totalExecution$ns / 1e6 / tasks : 0;
+        }
+
+        /** @return the longest time of copying file, in milliseconds */
+        public double getMaxLatency$ms() { return maxExecution$ns / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d active, %d queued, %d copied (%d bytes, %.1f MB/s), %d failed, " +
+                                 "saturated %d times, wait %.1f ms, latency mean %.1f ms, max %.1f ms",
+                                 drive, active, queued, completed, bytes, getThroughput$MBps(), failed,
+                                 saturated, getMeanWait$ms(), getMeanLatency$ms(), getMaxLatency$ms());
+        }
+    }
+}
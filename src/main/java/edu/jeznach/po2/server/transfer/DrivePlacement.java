@@ -0,0 +1,233 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import edu.jeznach.po2.server.file.DriveFileMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses drive, that new file is copied to, so every drive copies same number of files at once.
+ * <p>Every drive has tracked:
+ * <p>- number of files being copied to it (in-flight copies),
+ * <p>- number of bytes, that remain to be copied to it (queued bytes),
+ * <p>- usable space, reduced by queued bytes.
+ * <p>Among drives, that have enough space for file, one with least in-flight copies is chosen,
+ * and ties are broken by queued bytes, then randomly (join-shortest-queue). For large number
+ * of drives, {@link Policy#two_choices} compares only two randomly chosen drives, which balances
+ * load almost as well, without inspecting every drive.
+ * <br><br>
+ * <p>Drive is reserved for file with {@link Lease}, that should be closed once file is copied.
+ * <p>All public methods of this class are thread-safe.
+ * @see Configuration#DRIVE_COUNT
+ */
+public class DrivePlacement {
+
+    private static final long SPACE_REFRESH$NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final @NotNull List<Drive> drives;
+    private final @NotNull Policy policy;
+
+    /**
+     * Creates placement across {@code mappers}, choosing drive by {@link Policy#shortest_queue}.
+     * @param mappers the mappers of drives
+     */
+    public DrivePlacement(@NotNull List<DriveFileMapper> mappers) {
+        this(mappers, Policy.shortest_queue);
+    }
+
+    /**
+     * Creates placement across {@code mappers}.
+     * @param mappers the mappers of drives
+     * @param policy the policy of choosing drive
+     */
+    public DrivePlacement(@NotNull List<DriveFileMapper> mappers, @NotNull Policy policy) {
+        List<Drive> drives = new ArrayList<>();
+        for (DriveFileMapper mapper : mappers) {
+            drives.add(new Drive(mapper));
+        }
+        this.drives = Collections.unmodifiableList(drives);
+        this.policy = policy;
+    }
+
+    /**
+     * Chooses least loaded drive, that has enough space for file, and reserves it.
+     * @param size the size of file, in bytes
+     * @return the lease of chosen drive, {@code null} if no drive has enough space for file
+     */
+    public @Nullable Lease place(long size) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            Drive chosen = policy == Policy.two_choices && drives.size() > 2 ? twoChoices(size, now)
+                                                                            : shortestQueue(size, now);
+            if (chosen == null) return null;
+            chosen.inFlight++;
+            chosen.queuedBytes += size;
+            return new Lease(chosen, size);
+        }
+    }
+
+    /**
+     * Reserves specified drive for file, i.e. when file is updated, and has to be copied to
+     * drive that it is mapped on.
+     * @param mapper the mapper of drive
+     * @param size the size of file, in bytes
+     * @return the lease of drive
+     * @throws IllegalArgumentException if drive is not managed by this placement
+     */
+    public @NotNull Lease reserve(@NotNull DriveFileMapper mapper, long size) {
+        synchronized (this) {
+            for (Drive drive : drives) {
+                if (drive.mapper != mapper) continue;
+                drive.inFlight++;
+                drive.queuedBytes += size;
+                return new Lease(drive, size);
+            }
+        }
+        throw new IllegalArgumentException("Drive " + mapper.getMapping().getName() + " is not managed by placement");
+    }
+
+    /**
+     * @return the number of files being copied to every drive, in order of drives
+     */
+    public synchronized int @NotNull [] getInFlight() {
+        return drives.stream().mapToInt(d -> d.inFlight).toArray();
+    }
+
+    /**
+     * @return the number of bytes, that remain to be copied to every drive, in order of drives
+     */
+    public synchronized long @NotNull [] getQueuedBytes() {
+        return drives.stream().mapToLong(d -> d.queuedBytes).toArray();
+    }
+
+    private @Nullable Drive shortestQueue(long size, long now) {
+        Drive chosen = null;
+        int ties = 0;
+        for (Drive drive : drives) {
+            if (!drive.fits(size, now)) continue;
+            int order = chosen == null ? -1 : drive.compareLoad(chosen);
+            if (order < 0) {
+                chosen = drive;
+                ties = 1;
+            } else if (order == 0 && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                chosen = drive;
+            }
+        }
+        return chosen;
+    }
+
+    private @Nullable Drive twoChoices(long size, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(drives.size());
+        int second = random.nextInt(drives.size() - 1);
+        if (second >= first) second++;
+        Drive a = drives.get(first), b = drives.get(second);
+        boolean fitsA = a.fits(size, now), fitsB = b.fits(size, now);
+        if (fitsA && fitsB) return a.compareLoad(b) <= 0 ? a : b;
+        if (fitsA || fitsB) return fitsA ? a : b;
+        return shortestQueue(size, now);
+    }
+
+    /**
+     * Policy of choosing drive.
+     */
+    public enum Policy {
+        /**
+         * Every drive is compared.
+         */
+        shortest_queue,
+        /**
+         * Two randomly chosen drives are compared.
+         */
+        two_choices
+    }
+
+    /**
+     * Represents reservation of drive for copied file.
+     */
+    public final class Lease implements Closeable {
+
+        private final @NotNull Drive drive;
+        private long remaining;
+        private boolean closed;
+
+        private Lease(@NotNull Drive drive, long size) {
+            this.drive = drive;
+            this.remaining = size;
+        }
+
+        /**
+         * @return the mapper of reserved drive
+         */
+        public @NotNull DriveFileMapper getDrive() { return drive.mapper; }
+
+        /**
+         * Reports progress of copying file, so queued bytes of drive are up to date.
+         * @param bytes the number of bytes copied since last report
+         */
+        public void progress(long bytes) {
+            synchronized (DrivePlacement.this) {
+                if (closed) return;
+                long copied = Math.min(Math.max(bytes, 0), remaining);
+                remaining -= copied;
+                drive.queuedBytes -= copied;
+            }
+        }
+
+        /**
+         * Releases reservation, once file is copied (or copying failed).
+         */
+        @Override
+        public void close() {
+            synchronized (DrivePlacement.this) {
+                if (closed) return;
+                closed = true;
+                drive.inFlight--;
+                drive.queuedBytes -= remaining;
+                remaining = 0;
+            }
+        }
+    }
+
+    private static final class Drive {
+
+        private final @NotNull DriveFileMapper mapper;
+        private final @NotNull File location;
+        private int inFlight;
+        private long queuedBytes;
+        private long usableSpace;
+        private long usableSpaceAt;
+        private boolean usableSpaceKnown;
+
+        private Drive(@NotNull DriveFileMapper mapper) {
+            this.mapper = mapper;
+            this.location = new File(mapper.getMapping().getDrive_location());
+        }
+
+        /**
+         * @return {@code true} if drive has enough space for file of {@code size}, after queued bytes are copied
+         */
+        private boolean fits(long size, long now) {
+            if (!usableSpaceKnown || now - usableSpaceAt >= SPACE_REFRESH$NS) {
+                usableSpace = location.getUsableSpace();
+                usableSpaceAt = now;
+                usableSpaceKnown = true;
+            }
+            // space of non-existing drive is reported as 0, it is created once file is copied to it
+            return usableSpace == 0 && !location.exists() || usableSpace - queuedBytes >= size;
+        }
+
+        private int compareLoad(@NotNull Drive other) {
+            if (inFlight != other.inFlight) return Integer.compare(inFlight, other.inFlight);
+            return Long.compare(queuedBytes, other.queuedBytes);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.common.configuration.Configuration;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules transfers of files of several users, so user that starts sending files is served
+ * immediately, rather than after all files queued by other users.
+ * <p>Every user has own queue of tasks, and users with queued tasks are served with deficit
+ * round-robin:
+ * <p>- each user has deficit (number of bytes it may transfer), that is increased by
+ *      {@code quantum} (multiplied by {@link #setWeight(String, int) weight} of user) for every
+ *      visit of user in round,
+ * <p>- visited user is served with its tasks, as long as its deficit covers cost of its first task,
+ *      and cost of every task is subtracted from its deficit,
+ * <p>- once deficit does not cover cost of first task, user is moved to end of round.
+ * <p>Cost of task is size of transferred file (or of single chunk of {@link ChunkedTask}), increased
+ * by {@value #TASK_OVERHEAD} bytes of overhead of every file (exchanged messages, mapping, creating file),
+ * so users share bandwidth fairly (in proportion to their weights), regardless of size of their files.
+ * <p>User, that starts sending files, starts with deficit of single quantum, and is served with single
+ * task before users in round, and only then joins round. So its first file (if it is not larger than
+ * quantum) waits only for tasks in progress, and first task of other users, that started sending
+ * files before it.
+ * <br><br>
+ * <p>Tasks are executed by worker threads of scheduler, or by {@link DriveExecutor} of drive, that task
+ * copies file to. Task of drive, that is saturated, is skipped (without losing deficit of its user), so
+ * tasks of other drives are served in meantime, and user is served again once drive frees slot. Tasks
+ * of such user remain queued, so its {@link Statistics#getQueuedBytes() queued bytes} grow, and connection
+ * of user should stop receiving files, until they are copied.
+ * <br><br>
+ * <p>Tasks of single user are executed in {@link Order order}, by default {@link Order#shortest_first}
+ * - task with fewest remaining bytes is executed first, so small files are not stuck behind large ones.
+ * Task submitted as {@link ChunkedTask} transfers single chunk at once (of {@code quantum} bytes),
+ * and is queued again with its remaining bytes, so it is preempted once smaller task is queued. Remaining
+ * bytes are reduced by {@code aging} bytes for every second that task waits since it was submitted,
+ * so large files still progress, when small ones are queued all the time.
+ * <p>Scheduler collects {@link Statistics statistics} of every user - number and size of queued tasks,
+ * time that tasks waited in queue, and number of times tasks were preempted.
+ * <p>All public methods of this class are thread-safe.
+ */
+public class TransferScheduler implements Closeable {
+
+    /**
+     * Number of bytes added to cost of every task.
+     */
+    public static final long TASK_OVERHEAD = 1L << 16;
+
+    private final long quantum;
+    private final @NotNull Order order;
+    private final double aging$Bpns;
+    private final long epoch = System.nanoTime();
+    private long sequence;
+    private final @NotNull ReentrantLock lock = new ReentrantLock();
+    private final @NotNull Condition available = lock.newCondition();
+    private final @NotNull Map<String, UserQueue> queues = new HashMap<>();
+    private final @NotNull ArrayDeque<UserQueue> round = new ArrayDeque<>();
+    /**
+     * Users that started sending files, and were not served yet, they are served before round.
+     */
+    private final @NotNull ArrayDeque<UserQueue> started = new ArrayDeque<>();
+    private final @NotNull List<Thread> workers = new ArrayList<>();
+    private final @NotNull Set<DriveExecutor> drives = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean closed;
+
+    /**
+     * Creates new scheduler, with quantum of {@link Configuration#TRANSFER_CHUNK_SIZE$KB single chunk},
+     * executing tasks in {@link Configuration#TRANSFER_ORDER configured order}.
+     * @param workers the number of threads that execute tasks
+     */
+    public TransferScheduler(int workers) {
+        this(workers, Math.max(Configuration.TRANSFER_CHUNK_SIZE$KB, 1) * 1024L);
+    }
+
+    /**
+     * Creates new scheduler, executing tasks in {@link Configuration#TRANSFER_ORDER configured order}.
+     * @param workers the number of threads that execute tasks
+     * @param quantum the number of bytes that deficit of user is increased by, and size of chunk
+     */
+    public TransferScheduler(int workers, long quantum) {
+        this(workers, quantum, Order.valueOf(Configuration.TRANSFER_ORDER),
+             Math.max(Configuration.TRANSFER_AGING$MBps, 0) * 1024L * 1024L);
+    }
+
+    /**
+     * Creates new scheduler.
+     * @param workers the number of threads that execute tasks
+     * @param quantum the number of bytes that deficit of user is increased by, and size of chunk
+     * @param order the order of tasks of single user
+     * @param aging the number of bytes, that remaining bytes of task are reduced by, for every second it waits
+     */
+    public TransferScheduler(int workers, long quantum, @NotNull Order order, long aging) {
+        this.quantum = Math.max(quantum, 1);
+        this.order = order;
+        this.aging$Bpns = Math.max(aging, 0) / 1e9;
+        for (int i = 0; i < Math.max(workers, 1); i++) {
+            Thread worker = new Thread(this::work, "transfer-" + i);
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues transfer of file of user.
+     * @param user the username of user, that file belongs to
+     * @param size the size of transferred file, in bytes
+     * @param task the task that transfers file
+     * @param <T> the type of result of task
+     * @return the future, that is completed with result of task, once it is executed
+     * @throws IllegalStateException if scheduler is closed
+     */
+    public <T> @NotNull CompletableFuture<T> submit(@NotNull String user, long size, @NotNull Callable<T> task) {
+        return submit(user, size, null, task);
+    }
+
+    /**
+     * Queues transfer of file of user, that is executed by executor of drive, that file is copied to.
+     * @param user the username of user, that file belongs to
+     * @param size the size of transferred file, in bytes
+     * @param drive the executor of drive, {@code null} if task is executed by worker of scheduler
+     * @param task the task that transfers file
+     * @param <T> the type of result of task
+     * @return the future, that is completed with result of task, once it is executed
+     * @throws IllegalStateException if scheduler is closed
+     */
+    public <T> @NotNull CompletableFuture<T> submit(@NotNull String user, long size, @Nullable DriveExecutor drive,
+                                                    @NotNull Callable<T> task) {
+        return submit(user, size, drive, false, new ChunkedTask<T>() {
+            private T result;
+
+            @Override
+            public long transferChunk() throws Exception {
+                result = task.call();
+                return 0;
+            }
+
+            @Override
+            public T result() { return result; }
+        });
+    }
+
+    /**
+     * Queues transfer of file of user, that transfers single chunk at once, and can be preempted
+     * by smaller tasks between chunks.
+     * @param user the username of user, that file belongs to
+     * @param size the size of transferred file, in bytes
+     * @param drive the executor of drive, {@code null} if task is executed by worker of scheduler
+     * @param task the task that transfers file
+     * @param <T> the type of result of task
+     * @return the future, that is completed with result of task, once last chunk is transferred
+     * @throws IllegalStateException if scheduler is closed
+     */
+    public <T> @NotNull CompletableFuture<T> submit(@NotNull String user, long size, @Nullable DriveExecutor drive,
+                                                    @NotNull ChunkedTask<T> task) {
+        return submit(user, size, drive, true, task);
+    }
+
+    private <T> @NotNull CompletableFuture<T> submit(@NotNull String user, long size, @Nullable DriveExecutor drive,
+                                                     boolean chunked, @NotNull ChunkedTask<T> task) {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Scheduler is closed");
+            if (drive != null && drives.add(drive)) drive.addListener(this::driveReleased);
+            UserQueue queue = queues.computeIfAbsent(user, UserQueue::new);
+            Task<T> queued = new Task<>(queue, sequence++, Math.max(size, 0) + TASK_OVERHEAD, drive, chunked, task);
+            queue.queuedBytes += queued.remaining;
+            enqueue(queued);
+            return queued.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds task to queue of its user, and user to round, if it had no tasks (or to users that started
+     * sending files, unless task is remaining chunks of task in progress).
+     * Must be called with {@link #lock} held.
+     */
+    private void enqueue(@NotNull Task<?> task) {
+        UserQueue queue = task.queue;
+        task.priority = order == Order.shortest_first ? task.remaining + aging$Bpns * (task.queuedAt - epoch) : 0;
+        if (queue.tasks.isEmpty()) {
+            queue.deficit = quantum * queue.weight;
+            if (task.started) round.addLast(queue);
+            else started.addLast(queue);
+        }
+        queue.tasks.add(task);
+        available.signal();
+    }
+
+    /**
+     * Wakes workers, that wait for slot of saturated drive.
+     */
+    private void driveReleased() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets weight of user, so it transfers {@code weight} times more bytes in every round than user of weight {@code 1}.
+     * @param user the username of user
+     * @param weight the weight of user, {@code 1} by default
+     */
+    public void setWeight(@NotNull String user, int weight) {
+        lock.lock();
+        try {
+            queues.computeIfAbsent(user, UserQueue::new).weight = Math.max(weight, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param user the username of user
+     * @return the statistics of user, {@code null} if user never queued any task
+     */
+    public @Nullable Statistics getStatistics(@NotNull String user) {
+        lock.lock();
+        try {
+            UserQueue queue = queues.get(user);
+            return queue != null ? queue.statistics(System.nanoTime()) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the statistics of all users, that ever queued any task, by their username
+     */
+    public @NotNull Map<String, Statistics> getStatistics() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            Map<String, Statistics> statistics = new TreeMap<>();
+            queues.forEach((user, queue) -> statistics.put(user, queue.statistics(now)));
+            return statistics;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops worker threads, cancelling tasks that were not executed yet. Tasks in progress are
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        List<Task<?>> cancelled = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (UserQueue queue : round) {
+                cancelled.addAll(queue.tasks);
+                queue.tasks.clear();
+                queue.queuedBytes = 0;
+            }
+            for (UserQueue queue : started) {
+                cancelled.addAll(queue.tasks);
+                queue.tasks.clear();
+                queue.queuedBytes = 0;
+            }
+            round.clear();
+            started.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        cancelled.forEach(t -> t.future.completeExceptionally(new CancellationException("Scheduler is closed")));
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work() {
+        while (true) {
+            Task<?> task;
+            try {
+                task = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) return;
+            if (task.drive != null) {
+                task.drive.execute(task.reservation, task.step, task::transferChunk)
+                          .whenComplete((remaining, e) -> finished(task, remaining, e));
+            } else {
+                long remaining = 0;
+                Throwable error = null;
+                try {
+                    remaining = task.transferChunk();
+                } catch (Throwable e) {
+                    error = e;
+                }
+                finished(task, remaining, error);
+            }
+        }
+    }
+
+    /**
+     * Completes task, once its last chunk is transferred, or queues it again with its remaining bytes.
+     */
+    private <T> void finished(@NotNull Task<T> task, @Nullable Long remaining, @Nullable Throwable error) {
+        boolean last = error != null || task.future.isDone() || remaining == null || remaining <= 0 || !task.chunked;
+        lock.lock();
+        try {
+            UserQueue queue = task.queue;
+            if (!last && !closed) {
+                queue.queuedBytes += remaining - task.remaining;
+                task.remaining = remaining;
+                enqueue(task);
+                if (queue.tasks.peek() != task) queue.preempted++;
+                return;
+            }
+            queue.queuedBytes -= task.remaining;
+            task.remaining = 0;
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) {
+            task.future.completeExceptionally(error);
+        } else if (!last) {
+            task.future.completeExceptionally(new CancellationException("Scheduler is closed"));
+        } else if (!task.future.isDone()) {
+            try {
+                task.future.complete(task.chunks.result());
+            } catch (Throwable e) {
+                task.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for task, and picks it in deficit round-robin order (and first task of user in its
+     * {@link Order order}). Task of drive is only picked, if slot of drive is reserved for it.
+     * @return the task to execute, {@code null} if scheduler is closed
+     */
+    private @Nullable Task<?> next() throws InterruptedException {
+        lock.lock();
+        try {
+            int blocked = 0;
+            while (true) {
+                if (closed) return null;
+                int active = started.size() + round.size();
+                if (active == 0 || blocked >= active) {
+                    // every user waits for saturated drive, slot that is freed signals condition
+                    available.await();
+                    blocked = 0;
+                    continue;
+                }
+                boolean first = !started.isEmpty();
+                UserQueue queue = first ? started.pollFirst() : round.pollFirst();
+                Task<?> task = queue.tasks.peek();
+                long cost = task.chunked ? Math.min(task.remaining, quantum) : task.remaining;
+                if (queue.deficit < cost) {
+                    // visit ends, deficit of next visit is added in advance
+                    // user that is alone would be visited until its deficit covers task anyway
+                    queue.deficit = active == 1 ? cost : queue.deficit + quantum * queue.weight;
+                    round.addLast(queue);
+                    blocked = 0;
+                    continue;
+                }
+                if (task.drive != null && (task.reservation = task.drive.tryReserve()) == null) {
+                    // deficit is kept, so user is served once drive frees slot
+                    round.addLast(queue);
+                    blocked++;
+                    continue;
+                }
+                queue.tasks.poll();
+                queue.deficit -= cost;
+                queue.queuedBytes -= cost;
+                task.remaining -= cost;
+                task.step = cost;
+                if (queue.tasks.isEmpty()) queue.deficit = 0;
+                else if (first) round.addLast(queue);
+                else round.addFirst(queue);
+                if (!task.started) queue.waited(System.nanoTime() - task.queuedAt);
+                task.started = true;
+                return task;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Order, in which tasks of single user are executed.
+     */
+    public enum Order {
+        /**
+         * Tasks are executed in order they were submitted, and chunked task transfers all its chunks,
+         * before next task is executed.
+         */
+        fifo,
+        /**
+         * Task with fewest remaining bytes (reduced by aging) is executed first, and chunked task
+         * is preempted between chunks.
+         */
+        shortest_first
+    }
+
+    /**
+     * Represents transfer of file, that transfers single chunk at once.
+     * @param <T> the type of result of transfer
+     */
+    public interface ChunkedTask<T> {
+
+        /**
+         * Transfers next chunk of file.
+         * @return the number of bytes, that remain to be transferred, {@code 0} once file is transferred
+         * @throws Exception if chunk cannot be transferred, transfer is abandoned then
+         */
+        long transferChunk() throws Exception;
+
+        /**
+         * Called once file is transferred.
+         * @return the result of transfer
+         * @throws Exception if transfer cannot be completed
+         */
+        @Nullable T result() throws Exception;
+    }
+
+    private static final class Task<T> {
+
+        private static final @NotNull Comparator<Task<?>> ORDER =
+                Comparator.<Task<?>>comparingDouble(t -> t.priority).thenComparingLong(t -> t.sequence);
+
+        private final @NotNull UserQueue queue;
+        private final long sequence;
+        private final long queuedAt = System.nanoTime();
+        private final @Nullable DriveExecutor drive;
+        private final boolean chunked;
+        private final @NotNull ChunkedTask<T> chunks;
+        private final @NotNull CompletableFuture<T> future = new CompletableFuture<>();
+        private @Nullable DriveExecutor.Reservation reservation;
+        private long remaining;
+        private long step;
+        private double priority;
+        private boolean started;
+
+        private Task(@NotNull UserQueue queue, long sequence, long cost, @Nullable DriveExecutor drive,
+                     boolean chunked, @NotNull ChunkedTask<T> chunks) {
+            this.queue = queue;
+            this.sequence = sequence;
+            this.remaining = cost;
+            this.drive = drive;
+            this.chunked = chunked;
+            this.chunks = chunks;
+        }
+
+        private long transferChunk() throws Exception {
+            return future.isDone() ? 0 : chunks.transferChunk();
+        }
+    }
+
+    private static final class UserQueue {
+
+        private final @NotNull String user;
+        private final @NotNull PriorityQueue<Task<?>> tasks = new PriorityQueue<>(Task.ORDER);
+        private int weight = 1;
+        private long deficit;
+        private long queuedBytes;
+        private long executed;
+        private long preempted;
+        private long totalWait;
+        private long maxWait;
+
+        private UserQueue(@NotNull String user) {
+            this.user = user;
+        }
+
+        private void waited(long wait) {
+            executed++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+
+        private @NotNull Statistics statistics(long now) {
+            long oldest = tasks.stream().mapToLong(t -> now - t.queuedAt).max().orElse(0);
+            return new Statistics(user, tasks.size(), queuedBytes, executed, preempted, totalWait, maxWait, oldest);
+        }
+    }
+
+    /**
+     * Represents statistics of tasks of single user.
+     */
+    public static final class Statistics {
+
+        private final @NotNull String user;
+        private final int queueDepth;
+        private final long preempted;
+        private final long queuedBytes;
+        private final long executed;
+        private final long totalWait$ns;
+        private final long maxWait$ns;
+        private final long oldestWait$ns;
+
+        private Statistics(@NotNull String user, int queueDepth, long queuedBytes, long executed, long preempted,
+                           long totalWait$ns, long maxWait$ns, long oldestWait$ns) {
+            this.user = user;
+            this.queueDepth = queueDepth;
+            this.preempted = preempted;
+            this.queuedBytes = queuedBytes;
+            this.executed = executed;
+            this.totalWait$ns = totalWait$ns;
+            this.maxWait$ns = maxWait$ns;
+            this.oldestWait$ns = oldestWait$ns;
+        }
+
+        /** @return the username of user */
+        public @NotNull String getUser() { return this.user; }
+
+        /** @return the number of queued tasks */
+        public int getQueueDepth() { return this.queueDepth; }
+
+        /** @return the cost of queued tasks, in bytes */
+        public long getQueuedBytes() { return this.queuedBytes; }
+
+        /** @return the number of tasks taken from queue */
+        public long getExecuted() { return this.executed; }
+
+        /** @return the number of times chunked task was preempted by smaller task */
+        public long getPreempted() { return this.preempted; }
+
+        /** @return the mean time that tasks waited in queue, in milliseconds */
+        public double getMeanWait$ms() {
+            return executed > 0 ? TimeUnit.NANOSECONDS.toMicros(totalWait$ns / executed) / 1000.0 : 0;
+        }
+
+        /** @return the longest time that task waited in queue, in milliseconds */
+        public double getMaxWait$ms() { return TimeUnit.NANOSECONDS.toMicros(maxWait$ns) / 1000.0; }
+
+        /** @return the time that first queued task waits for, in milliseconds */
+        public double getOldestWait$ms() { return TimeUnit.NANOSECONDS.toMicros(oldestWait$ns) / 1000.0; }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d queued (%d bytes), %d executed, %d preempted, wait mean %.1f ms, max %.1f ms",
+                                 user, queueDepth, queuedBytes, executed, preempted, getMeanWait$ms(), getMaxWait$ms());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.DeltaTransfer.Signature;
+import edu.jeznach.po2.common.communication.Messages.UpdateFile;
+import edu.jeznach.po2.common.file.FileManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaTransferTest {
+
+    @TempDir
+    Path root;
+
+    private final Random random = new Random(42);
+
+    @Test
+    void identicalFileIsSentAsReferencesOnly() throws Exception {
+        byte[] aligned = bytes(100 * 1024);
+        byte[] unaligned = bytes(100_000);
+
+        assertEquals(0, sync(aligned, aligned));
+        // only full blocks are matched, short last block is sent as data
+        assertEquals(100_000 % blockSize(unaligned), sync(unaligned, unaligned));
+    }
+
+    @Test
+    void appendedTailIsSentAsLiteralData() throws Exception {
+        byte[] contents = bytes(100_000);
+        byte[] tail = bytes(3_000);
+
+        long literal = sync(contents, concat(contents, tail));
+
+        assertTrue(literal >= tail.length && literal < tail.length + blockSize(contents), "literal: " + literal);
+    }
+
+    @Test
+    void insertionInTheMiddleDoesNotShiftMatchingOfFollowingBlocks() throws Exception {
+        byte[] contents = bytes(100_000);
+        byte[] insertion = bytes(777);
+        byte[] updated = concat(Arrays.copyOf(contents, 50_001), insertion,
+                                Arrays.copyOfRange(contents, 50_001, contents.length));
+
+        long literal = sync(contents, updated);
+
+        assertTrue(literal >= insertion.length && literal < insertion.length + 2 * blockSize(contents),
+                   "literal: " + literal);
+    }
+
+    @Test
+    void fileSmallerThanOneBlockIsRebuilt() throws Exception {
+        byte[] contents = bytes(500);
+        byte[] updated = concat(Arrays.copyOf(contents, 200), bytes(10), Arrays.copyOfRange(contents, 200, 500));
+
+        assertEquals(updated.length, sync(contents, updated));
+        assertEquals(0, sync(updated, Arrays.copyOf(updated, 0)));
+    }
+
+    @Test
+    void fileLargerThanWindowIsMatchedAcrossRefills() throws Exception {
+        // larger than window of buffered bytes, so buffer is compacted and refilled several times
+        byte[] contents = bytes(3 << 20 | 12_345);
+        byte[] updated = contents.clone();
+        for (int position : new int[] { 1000, (1 << 20) - 10, 2 << 20, contents.length - 10 }) {
+            updated[position] ^= 0x55;
+        }
+        updated = concat(Arrays.copyOf(updated, 1_500_000), bytes(5),
+                         Arrays.copyOfRange(updated, 1_500_000, updated.length));
+
+        long literal = sync(contents, updated);
+
+        assertTrue(literal > 0 && literal < 10 * blockSize(contents), "literal: " + literal);
+    }
+
+    @Test
+    void corruptedDeltaIsRejectedWithoutLeavingPatch() throws Exception {
+        byte[] contents = bytes(100_000);
+        byte[] updated = concat(contents, bytes(3_000));
+        File file = write("sum.bin", contents);
+        Signature basis = DeltaTransfer.signature(file);
+        byte[] delta = delta(write("new.bin", updated), basis);
+        UpdateFile update = update(updated);
+
+        byte[] unknownOperation = delta.clone();
+        unknownOperation[0] = 7;
+        byte[] blockOutOfRange = delta.clone();
+        ByteBuffer.wrap(blockOutOfRange, 1, 4).putInt(basis.getBlockCount());
+        byte[] wrongSize = delta.clone();
+        ByteBuffer.wrap(wrongSize, wrongSize.length - 8, 8).putLong(updated.length - 1);
+        for (byte[] corrupted : Arrays.asList(unknownOperation, blockOutOfRange, wrongSize)) {
+            assertThrows(ProtocolException.class, () -> patch(file, basis, corrupted, update));
+
+            assertArrayEquals(contents, Files.readAllBytes(file.toPath()));
+            assertFalse(Files.exists(root.resolve("sum.bin" + DeltaTransfer.PATCH_SUFFIX)));
+        }
+        assertThrows(EOFException.class, () -> patch(file, basis, Arrays.copyOf(delta, delta.length - 1), update));
+        assertFalse(Files.exists(root.resolve("sum.bin" + DeltaTransfer.PATCH_SUFFIX)));
+    }
+
+    @Test
+    void deltaNotMatchingUpdateIsRejectedWithoutLeavingPatch() throws Exception {
+        byte[] contents = bytes(100_000);
+        File file = write("sum.bin", contents);
+        Signature basis = DeltaTransfer.signature(file);
+        byte[] delta = delta(write("new.bin", concat(contents, bytes(10))), basis);
+
+        IOException e = assertThrows(IOException.class,
+                                     () -> patch(file, basis, delta, update(concat(contents, bytes(10)))));
+
+        assertFalse(e instanceof ProtocolException);
+        assertArrayEquals(contents, Files.readAllBytes(file.toPath()));
+        assertFalse(Files.exists(root.resolve("sum.bin" + DeltaTransfer.PATCH_SUFFIX)));
+    }
+
+    @Test
+    void signatureIsReadWithoutConsumingFollowingBytesOfChannel() throws Exception {
+        Signature signature = DeltaTransfer.signature(write("sum.bin", bytes(100_000)));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        signature.write(Channels.newChannel(sent));
+        byte[] following = bytes(19);
+        sent.write(following);
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(sent.toByteArray()));
+
+        Signature read = Signature.read(channel, signature.message("user", "sum.bin"));
+
+        assertEquals(signature.getSize(), read.getSize());
+        assertEquals(signature.getBlockCount(), read.getBlockCount());
+        assertArrayEquals(following, remaining(channel));
+    }
+
+    @Test
+    void deltaIsReadWithoutConsumingFollowingBytesOfChannel() throws Exception {
+        byte[] contents = bytes(100_000);
+        byte[] updated = concat(Arrays.copyOf(contents, 50_000), bytes(70_000),
+                                Arrays.copyOfRange(contents, 50_000, contents.length));
+        File file = write("sum.bin", contents);
+        Signature basis = DeltaTransfer.signature(file);
+        byte[] following = bytes(19);
+        ReadableByteChannel channel = Channels.newChannel(
+                new ByteArrayInputStream(concat(delta(write("new.bin", updated), basis), following)));
+
+        DeltaTransfer.patch(file, basis, channel, update(updated));
+
+        assertArrayEquals(updated, Files.readAllBytes(file.toPath()));
+        assertArrayEquals(following, remaining(channel));
+    }
+
+    /**
+     * Runs signature, delta and patch of receiver's {@code contents} to {@code updated} contents.
+     * @return the number of bytes sent as literal data
+     */
+    private long sync(byte[] contents, byte[] updated) throws Exception {
+        File file = write("sum.bin", contents);
+        Signature basis = DeltaTransfer.signature(file);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long literal = DeltaTransfer.delta(write("new.bin", updated), basis, Channels.newChannel(delta));
+        UpdateFile update = update(updated);
+
+        String checksum = patch(file, basis, delta.toByteArray(), update);
+
+        assertArrayEquals(updated, Files.readAllBytes(file.toPath()));
+        assertEquals(update.checksum(), checksum);
+        assertFalse(Files.exists(root.resolve("sum.bin" + DeltaTransfer.PATCH_SUFFIX)));
+        return literal;
+    }
+
+    private String patch(File file, Signature basis, byte[] delta, UpdateFile update) throws IOException {
+        return DeltaTransfer.patch(file, basis, Channels.newChannel(new ByteArrayInputStream(delta)), update);
+    }
+
+    private static byte[] delta(File file, Signature basis) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DeltaTransfer.delta(file, basis, Channels.newChannel(delta));
+        return delta.toByteArray();
+    }
+
+    private UpdateFile update(byte[] updated) throws Exception {
+        File sent = write("sent.bin", updated);
+        return new UpdateFile("user", "sum.bin", (long) updated.length, FileManager.getChecksum(sent));
+    }
+
+    private File write(String name, byte[] contents) throws IOException {
+        return Files.write(root.resolve(name), contents).toFile();
+    }
+
+    private byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int blockSize(byte[] contents) {
+        return DeltaTransfer.blockSize(contents.length);
+    }
+
+    private static byte[] remaining(ReadableByteChannel channel) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (channel.read(buffer) >= 0) {
+            bytes.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,52 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.file.FileManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void receiveReplacesFileWithoutWritingSharedLink() throws Exception {
+        Path original = root.resolve("original.txt");
+        Files.write(original, "old contents".getBytes());
+        Path link = Files.createLink(root.resolve("link.txt"), original);
+        byte[] contents = "new contents of file".getBytes();
+
+        String checksum = FileTransfer.receive(channel(contents), link.toFile(), contents.length);
+
+        assertArrayEquals(contents, Files.readAllBytes(link));
+        assertArrayEquals("old contents".getBytes(), Files.readAllBytes(original));
+        assertEquals(FileManager.getChecksum(link.toFile()), checksum);
+        assertFalse(Files.exists(root.resolve("link.txt" + FileTransfer.RECEIVE_SUFFIX)));
+    }
+
+    @Test
+    void truncatedReceiveLeavesFileIntact() throws IOException {
+        File file = root.resolve("file.txt").toFile();
+        Files.write(file.toPath(), "old contents".getBytes());
+
+        assertThrows(EOFException.class, () -> FileTransfer.receive(channel("short".getBytes()), file, 100));
+
+        assertArrayEquals("old contents".getBytes(), Files.readAllBytes(file.toPath()));
+        assertFalse(Files.exists(root.resolve("file.txt" + FileTransfer.RECEIVE_SUFFIX)));
+    }
+
+    private static ReadableByteChannel channel(byte[] contents) {
+        return Channels.newChannel(new ByteArrayInputStream(contents));
+    }
+}
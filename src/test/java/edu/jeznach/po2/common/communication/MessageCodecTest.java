@@ -0,0 +1,191 @@
+package edu.jeznach.po2.common.communication;
+
+import edu.jeznach.po2.common.communication.MessageCodec.Format;
+import edu.jeznach.po2.common.communication.Messages.*;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    private static final String SHA1 = "2d44a2f0b3c1e9f8d7a6b5c4d3e2f1a0b9c8d740";
+
+    private static final MessageCodec binary = new MessageCodec(Format.binary);
+    private static final MessageCodec text = new MessageCodec(Format.text);
+
+    /**
+     * Every message type, with paths without spaces, so they have text form too.
+     */
+    private static List<Msg> messages() {
+        return Arrays.asList(new CreateFile("alice", "docs/sum.txt", 1024L, SHA1),
+                             new UpdateFile("alice", "docs/sum.txt", 0L, SHA1),
+                             new DeleteFile("alice", "docs/sum.txt"),
+                             new MoveFile("alice", "docs/sum.txt", "old/sum.txt"),
+                             new ShareFile("alice", "docs/sum.txt", "bob"),
+                             new UnshareFile("alice", "docs/sum.txt", "bob"),
+                             new RequestFile("alice", "docs/sum.txt"),
+                             new RequestMapping("alice"),
+                             new FileChunk("alice", "docs/sum.txt", 1L << 33, 4L << 20, SHA1),
+                             new ResumeFile("alice", "docs/sum.txt", Long.MAX_VALUE),
+                             new FileSignature("alice", "docs/sum.txt", 2048L, 17L),
+                             new FileDelta("alice", "docs/sum.txt"));
+    }
+
+    @TestFactory
+    Stream<DynamicTest> everyMessageRoundTripsInBinaryFormat() {
+        return messages().stream().map(m -> DynamicTest.dynamicTest(m.getClass().getSimpleName(),
+                                                                    () -> assertRoundTrip(binary, m)));
+    }
+
+    @TestFactory
+    Stream<DynamicTest> everyMessageRoundTripsInTextFormat() {
+        return messages().stream().map(m -> DynamicTest.dynamicTest(m.getClass().getSimpleName(),
+                                                                    () -> assertRoundTrip(text, m)));
+    }
+
+    @Test
+    void binaryFramesKeepPathsWithSpaces() throws ProtocolException {
+        MoveFile decoded = (MoveFile) assertRoundTrip(binary, new MoveFile("alice smith", "my docs/sum 1.txt",
+                                                                           "old docs/żółw ✨.txt"));
+
+        assertEquals("alice smith", decoded.user());
+        assertEquals("my docs/sum 1.txt", decoded.file());
+        assertEquals("old docs/żółw ✨.txt", decoded.target());
+    }
+
+    @Test
+    void binaryFramesKeepChecksumsThatAreNotLowercaseHex() throws ProtocolException {
+        for (String checksum : new String[] { SHA1.toUpperCase(), "abc", "not a checksum", "" }) {
+            CreateFile decoded = (CreateFile) assertRoundTrip(binary, new CreateFile("alice", "a.txt", 1L, checksum));
+
+            assertEquals(checksum, decoded.checksum());
+        }
+    }
+
+    @Test
+    void hexChecksumIsWrittenAsRawBytes() {
+        ByteBuffer hex = ByteBuffer.allocate(256), raw = ByteBuffer.allocate(256);
+
+        binary.encode(new CreateFile("alice", "a.txt", 1L, SHA1), hex);
+        binary.encode(new CreateFile("alice", "a.txt", 1L, SHA1.toUpperCase()), raw);
+
+        // 1-byte length and 20 raw bytes, instead of 0 length followed by 2-byte length and 40 characters
+        assertEquals(raw.position() - 2 - SHA1.length() + SHA1.length() / 2, hex.position());
+    }
+
+    @Test
+    void severalFramesAreDecodedFromSingleBuffer() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (Msg message : messages()) {
+            binary.encode(message, buffer);
+        }
+        text.encode(new DeleteFile("bob", "x.txt"), buffer);
+        buffer.flip();
+
+        for (Msg message : messages()) {
+            assertEquals(message.toString(), String.valueOf(binary.decode(buffer)));
+        }
+        assertEquals("DeleteFile bob x.txt", String.valueOf(binary.decode(buffer)));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void truncatedFrameIsLeftInBufferUntilItIsComplete() throws ProtocolException {
+        ByteBuffer frame = encode(binary, new CreateFile("alice", "my docs/sum.txt", 1024L, SHA1));
+
+        for (int length = 0; length < frame.remaining(); length++) {
+            ByteBuffer partial = ByteBuffer.allocate(frame.remaining());
+            partial.put(frame.array(), 0, length).flip();
+
+            assertNull(binary.decode(partial));
+            assertEquals(0, partial.position());
+            assertEquals(-1, MessageCodec.frameLength(partial));
+        }
+        assertNotNull(binary.decode(frame));
+    }
+
+    @Test
+    void frameWithTruncatedFieldsIsRejectedAndSkipped() throws ProtocolException {
+        ByteBuffer frame = encode(binary, new CreateFile("alice", "sum.txt", 1024L, SHA1));
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        // frame declares its length without last 4 bytes of checksum
+        buffer.putInt(frame.getInt(0) - 4).put(frame.array(), 4, frame.remaining() - 8);
+        binary.encode(new DeleteFile("bob", "x.txt"), buffer);
+        buffer.flip();
+
+        assertThrows(ProtocolException.class, () -> binary.decode(buffer));
+        assertEquals("DeleteFile bob x.txt", String.valueOf(binary.decode(buffer)));
+    }
+
+    @Test
+    void frameWithUnexpectedBytesOrTypeIsRejected() {
+        ByteBuffer trailing = ByteBuffer.allocate(64);
+        ByteBuffer frame = encode(binary, new RequestMapping("alice"));
+        trailing.putInt(frame.getInt(0) + 1).put(frame.array(), 4, frame.remaining() - 4).put((byte) 0).flip();
+        ByteBuffer unknown = ByteBuffer.allocate(8).putInt(1).put((byte) 127);
+        unknown.flip();
+
+        assertThrows(ProtocolException.class, () -> binary.decode(trailing));
+        assertThrows(ProtocolException.class, () -> binary.decode(unknown));
+    }
+
+    @Test
+    void oversizeFrameLengthIsRejected() {
+        ByteBuffer oversize = ByteBuffer.allocate(8).putInt(MessageCodec.MAX_FRAME_LENGTH + 1);
+        oversize.flip();
+        ByteBuffer empty = ByteBuffer.allocate(8).putInt(0);
+        empty.flip();
+        ByteBuffer negative = ByteBuffer.allocate(8).putInt(-1);
+        negative.flip();
+
+        assertThrows(ProtocolException.class, () -> MessageCodec.frameLength(oversize));
+        assertThrows(ProtocolException.class, () -> binary.decode(oversize));
+        assertThrows(ProtocolException.class, () -> binary.decode(empty));
+        assertThrows(ProtocolException.class, () -> binary.decode(negative));
+    }
+
+    @Test
+    void messageThatDoesNotFitIsNotWritten() {
+        char[] name = new char[0x10000];
+        Arrays.fill(name, 'a');
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.MAX_FRAME_LENGTH);
+        buffer.put((byte) 1);
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> binary.encode(new DeleteFile("alice", new String(name)), buffer));
+        assertEquals(1, buffer.position());
+        ByteBuffer small = ByteBuffer.allocate(16);
+        assertThrows(BufferOverflowException.class,
+                     () -> binary.encode(new CreateFile("alice", "docs/sum.txt", 1024L, SHA1), small));
+        assertEquals(0, small.position());
+    }
+
+    private static Msg assertRoundTrip(MessageCodec codec, Msg message) throws ProtocolException {
+        ByteBuffer frame = encode(codec, message);
+        assertEquals(frame.remaining() - MessageCodec.HEADER_SIZE, MessageCodec.frameLength(frame));
+
+        Msg decoded = codec.decode(frame);
+
+        assertNotNull(decoded);
+        assertEquals(message.getClass(), decoded.getClass());
+        assertEquals(message.toString(), decoded.toString());
+        assertFalse(frame.hasRemaining());
+        return decoded;
+    }
+
+    private static ByteBuffer encode(MessageCodec codec, Msg message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 17);
+        codec.encode(message, buffer);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,168 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.file.FileObserver.FileEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static edu.jeznach.po2.common.file.FileObserver.FileEvent.Type.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileEventQueueTest {
+
+    private static final long DEBOUNCE$MS = 50;
+
+    @TempDir
+    Path root;
+
+    private final Path a = Paths.get("a.txt");
+    private final Path x = Paths.get("x.txt");
+    private final Path y = Paths.get("y.txt");
+
+    @Test
+    void updatesOfCreatedOrUpdatedFileAreMerged() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(a, Node_Create));
+        queue.offer(new FileEvent(a, Node_Update));
+        queue.offer(new FileEvent(x, Node_Update));
+        queue.offer(new FileEvent(x, Node_Update));
+
+        assertEquals(Arrays.asList("Node_Create: a.txt", "Node_Update: x.txt"), drain(queue));
+    }
+
+    @Test
+    void deletionCancelsQueuedCreationAndIsMerged() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(a, Node_Create));
+        queue.offer(new FileEvent(a, Node_Update));
+        queue.offer(new FileEvent(a, Node_Delete));
+        queue.offer(new FileEvent(a, Node_Delete));
+
+        assertEquals(Arrays.asList("Node_Delete: a.txt"), drain(queue));
+    }
+
+    @Test
+    void creationAfterDeletionIsQueuedAfterIt() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(a, Node_Delete));
+        queue.offer(new FileEvent(a, Node_Create));
+        queue.offer(new FileEvent(a, Node_Delete));
+
+        assertEquals(Arrays.asList("Node_Delete: a.txt"), drain(queue));
+        queue.offer(new FileEvent(a, Node_Delete));
+        queue.offer(new FileEvent(a, Node_Create));
+        queue.offer(new FileEvent(a, Node_Update));
+
+        assertEquals(Arrays.asList("Node_Delete: a.txt", "Node_Create: a.txt"), drain(queue));
+    }
+
+    @Test
+    void moveReplacesDeletionOfItsSource() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(y, Node_Delete));
+        queue.offer(new FileEvent(x, y));
+
+        assertEquals(Arrays.asList("Node_Move: y.txt => x.txt"), drain(queue));
+    }
+
+    @Test
+    void moveOfUndeliveredFileIsQueuedAsCreation() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(y, Node_Create));
+        queue.offer(new FileEvent(y, Node_Delete));
+        queue.offer(new FileEvent(x, y));
+
+        assertEquals(Arrays.asList("Node_Delete: y.txt", "Node_Create: x.txt"), drain(queue));
+    }
+
+    @Test
+    void changesOfMovedFileAreQueuedAfterMove() {
+        FileEventQueue queue = new FileEventQueue();
+        queue.offer(new FileEvent(y, Node_Delete));
+        queue.offer(new FileEvent(x, y));
+        queue.offer(new FileEvent(x, Node_Create));
+        queue.offer(new FileEvent(x, Node_Update));
+        queue.offer(new FileEvent(y, Node_Create));
+
+        assertEquals(Arrays.asList("Node_Move: y.txt => x.txt", "Node_Update: x.txt", "Node_Create: y.txt"),
+                     drain(queue));
+    }
+
+    @Test
+    void mergedEventIsDelayedBehindLaterEvents() throws Exception {
+        FileEventQueue queue = new FileEventQueue(root, DEBOUNCE$MS);
+        queue.offer(new FileEvent(write(a, "a"), Node_Create));
+        queue.offer(new FileEvent(write(x, "x"), Node_Create));
+        queue.offer(new FileEvent(append(a, "a"), Node_Update));
+
+        assertNull(queue.poll());
+        assertEquals("Node_Create: x.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+        assertEquals("Node_Create: a.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void fileModifiedDuringWindowIsDelayedUntilItIsQuiescent() throws Exception {
+        FileEventQueue queue = new FileEventQueue(root, DEBOUNCE$MS);
+        queue.offer(new FileEvent(write(a, "a"), Node_Create));
+        queue.offer(new FileEvent(write(x, "x"), Node_Create));
+        append(a, "more");
+
+        assertEquals("Node_Create: x.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+        assertEquals("Node_Create: a.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void moveIsDeliveredBeforeUpdateOfMovedFile() throws Exception {
+        FileEventQueue queue = new FileEventQueue(root, DEBOUNCE$MS);
+        write(y, "y");
+        queue.offer(new FileEvent(y, Node_Delete));
+        Files.move(root.resolve(y), root.resolve(x));
+        queue.offer(new FileEvent(x, y));
+        queue.offer(new FileEvent(append(x, "more"), Node_Update));
+
+        assertEquals("Node_Move: y.txt => x.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+        assertEquals("Node_Update: x.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void moveIsDeliveredBeforeRecreationOfItsSource() throws Exception {
+        FileEventQueue queue = new FileEventQueue(root, DEBOUNCE$MS);
+        write(y, "y");
+        queue.offer(new FileEvent(y, Node_Delete));
+        Files.move(root.resolve(y), root.resolve(x));
+        queue.offer(new FileEvent(x, y));
+        queue.offer(new FileEvent(write(y, "new y"), Node_Create));
+        append(x, "more");
+
+        assertEquals("Node_Move: y.txt => x.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+        assertEquals("Node_Create: y.txt", String.valueOf(queue.poll(5, TimeUnit.SECONDS)));
+    }
+
+    private Path write(Path file, String contents) throws IOException {
+        Files.write(root.resolve(file), contents.getBytes());
+        return file;
+    }
+
+    private Path append(Path file, String contents) throws IOException {
+        Files.write(root.resolve(file), contents.getBytes(), StandardOpenOption.APPEND);
+        return file;
+    }
+
+    private static List<String> drain(FileEventQueue queue) {
+        List<FileEvent> events = new ArrayList<>();
+        queue.drainTo(events, Integer.MAX_VALUE);
+        assertTrue(queue.isEmpty());
+        List<String> ret = new ArrayList<>();
+        events.forEach(e -> ret.add(e.toString()));
+        return ret;
+    }
+}
@@ -0,0 +1,75 @@
+package edu.jeznach.po2.common.file;
+
+import edu.jeznach.po2.common.communication.DeltaTransfer;
+import edu.jeznach.po2.common.communication.FileTransfer;
+import edu.jeznach.po2.common.communication.PartialTransfer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileScannerTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void scanMapsRegularFilesInSubdirectories() throws IOException {
+        write("a.txt", "a");
+        write("docs/b.txt", "bb");
+
+        List<String> paths = scan();
+
+        assertEquals(2, paths.size());
+        assertTrue(paths.contains("a.txt"));
+        assertTrue(paths.contains("docs" + File.separator + "b.txt"));
+    }
+
+    @Test
+    void scanSkipsFilesOfTransfersInProgress() throws IOException {
+        write("docs/b.txt", "bb");
+        write("docs/b.txt.po2part", "b");
+        write("docs/b.txt.po2state", "state");
+        write("docs/b.txt.po2state.tmp", "state");
+        write("docs/b.txt" + PartialTransfer.LINK_SUFFIX, "bb");
+        write("docs/b.txt" + PartialTransfer.COPY_SUFFIX, "bb");
+        write("docs/b.txt" + FileTransfer.RECEIVE_SUFFIX, "b");
+
+        List<String> paths = scan();
+
+        assertEquals(1, paths.size());
+        assertEquals("docs" + File.separator + "b.txt", paths.get(0));
+    }
+
+    @Test
+    void scanSkipsFilesRebuiltFromDelta() throws IOException {
+        write("docs/b.txt", "bb");
+        write("docs/b.txt" + DeltaTransfer.PATCH_SUFFIX, "b");
+
+        List<String> paths = scan();
+
+        assertEquals(1, paths.size());
+        assertEquals("docs" + File.separator + "b.txt", paths.get(0));
+    }
+
+    private void write(String name, String contents) throws IOException {
+        Path file = root.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, contents.getBytes());
+    }
+
+    private List<String> scan() {
+        return FileScanner.scan(root.toFile(), root.toFile(), null).stream()
+                          .map(FileMapping::getPathname)
+                          .sorted()
+                          .collect(Collectors.toList());
+    }
+}
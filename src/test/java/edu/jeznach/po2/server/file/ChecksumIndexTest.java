@@ -0,0 +1,72 @@
+package edu.jeznach.po2.server.file;
+
+import edu.jeznach.po2.common.communication.Messages.CreateFile;
+import edu.jeznach.po2.common.file.FileManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumIndexTest {
+
+    @TempDir
+    Path root;
+
+    private Path drive;
+    private DriveFileMapper mapper;
+    private ChecksumIndex index;
+
+    @BeforeEach
+    void createDrive() throws IOException {
+        drive = Files.createDirectories(root.resolve("drive"));
+        mapper = new DriveFileMapper(DriveFileMapper.provider.createStructure(
+                null, new DriveMapping.InitParams(drive.toFile(), "log")).key, null);
+        index = new ChecksumIndex(Collections.singletonList(mapper));
+    }
+
+    @Test
+    void createFileCopiesContentsServerAlreadyHas() throws Exception {
+        String checksum = upload("alice", "docs/sum.txt", "contents");
+
+        assertTrue(index.createFile(mapper, new CreateFile("bob", "sum copy.txt", 8L, checksum)));
+
+        Path copy = drive.resolve("bob").resolve("sum copy.txt");
+        assertArrayEquals("contents".getBytes(), Files.readAllBytes(copy));
+    }
+
+    @Test
+    void createFileRejectsPathsOutsideOfUserDirectory() throws Exception {
+        String checksum = upload("alice", "sum.txt", "contents");
+
+        for (String path : new String[] { "../bob/x.txt", "../../x.txt", "docs/../../bob/x.txt",
+                                          "/tmp/x.txt", "..", "." }) {
+            assertThrows(ProtocolException.class,
+                         () -> index.createFile(mapper, new CreateFile("mallory", path, 8L, checksum)), path);
+        }
+        for (String user : new String[] { "..", "../alice", "a/b", ".store", "" }) {
+            assertThrows(ProtocolException.class,
+                         () -> index.createFile(mapper, new CreateFile(user, "x.txt", 8L, checksum)), user);
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            assertTrue(files.noneMatch(f -> f.getFileName().toString().equals("x.txt")));
+        }
+    }
+
+    private String upload(String user, String pathname, String contents) throws Exception {
+        File file = drive.resolve(user).resolve(pathname).toFile();
+        Files.createDirectories(file.toPath().getParent());
+        Files.write(file.toPath(), contents.getBytes());
+        String checksum = FileManager.getChecksum(file);
+        mapper.attachFile(file, checksum, user);
+        return checksum;
+    }
+}
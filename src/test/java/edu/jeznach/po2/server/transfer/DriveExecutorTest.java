@@ -0,0 +1,114 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.server.file.DriveFileMapper;
+import edu.jeznach.po2.server.file.DriveMapping;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DriveExecutorTest {
+
+    @TempDir
+    Path root;
+
+    private DriveFileMapper mapper;
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    @BeforeEach
+    void createDrive() throws IOException {
+        mapper = new DriveFileMapper(DriveFileMapper.provider.createStructure(
+                null, new DriveMapping.InitParams(Files.createDirectories(root.resolve("drive")).toFile(), "log")).key,
+                null);
+    }
+
+    @AfterEach
+    void unblock() {
+        blocked.countDown();
+    }
+
+    @Test
+    void driveAcceptsTasksOfThreadsAndQueueOnly() throws Exception {
+        try (DriveExecutor drive = new DriveExecutor(mapper, 1, 2)) {
+            for (int i = 0; i < 3; i++) {
+                assertNotNull(drive.trySubmit(1, this::block));
+            }
+
+            assertNull(drive.trySubmit(1, this::block));
+            assertTrue(drive.isSaturated());
+            assertEquals(1, drive.getStatistics().getSaturated());
+        }
+    }
+
+    @Test
+    void reservationIsUsedOnce() throws Exception {
+        try (DriveExecutor drive = new DriveExecutor(mapper, 1, 0);
+             DriveExecutor other = new DriveExecutor(mapper, 1, 0)) {
+            DriveExecutor.Reservation reservation = drive.tryReserve();
+            assertNotNull(reservation);
+            assertNull(drive.tryReserve());
+
+            assertThrows(IllegalArgumentException.class, () -> other.execute(reservation, 1, () -> 1));
+            assertEquals(1, (int) drive.execute(reservation, 1, () -> 1).get(5, TimeUnit.SECONDS));
+            assertThrows(IllegalStateException.class, () -> drive.execute(reservation, 1, () -> 1));
+            reservation.close();
+
+            DriveExecutor.Reservation next = waitForSlot(drive);
+            next.close();
+            next.close();
+            assertNotNull(drive.tryReserve());
+            assertNull(drive.tryReserve());
+        }
+    }
+
+    @Test
+    void closeCancelsQueuedTasksAndReleasesSlots() throws Exception {
+        DriveExecutor drive = new DriveExecutor(mapper, 1, 2);
+        CompletableFuture<Integer> running = drive.trySubmit(1, this::block);
+        CompletableFuture<Integer> first = drive.trySubmit(1, () -> 1);
+        CompletableFuture<Integer> second = drive.trySubmit(1, () -> 2);
+        assertTrue(drive.isSaturated());
+
+        drive.close();
+
+        assertThrows(CancellationException.class, () -> first.getNow(null));
+        assertThrows(CancellationException.class, () -> second.getNow(null));
+        assertThrows(ExecutionException.class, () -> running.get(5, TimeUnit.SECONDS));
+        assertFalse(drive.isSaturated());
+    }
+
+    @Test
+    void schedulerTasksCompleteWhenDriveIsClosed() throws Exception {
+        DriveExecutor drive = new DriveExecutor(mapper, 1, 1);
+        try (TransferScheduler scheduler = new TransferScheduler(2, 1 << 16)) {
+            CompletableFuture<Integer> running = scheduler.submit("user", 1, drive, this::block);
+            CompletableFuture<Integer> queued = scheduler.submit("user", 1, drive, () -> 1);
+            while (!drive.isSaturated()) Thread.sleep(1);
+
+            drive.close();
+
+            assertThrows(ExecutionException.class, () -> running.get(5, TimeUnit.SECONDS));
+            assertThrows(CancellationException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private int block() throws InterruptedException {
+        blocked.await();
+        return 0;
+    }
+
+    private static DriveExecutor.Reservation waitForSlot(DriveExecutor drive) throws InterruptedException {
+        while (true) {
+            DriveExecutor.Reservation reservation = drive.tryReserve();
+            if (reservation != null) return reservation;
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.server.file.DriveFileMapper;
+import edu.jeznach.po2.server.file.DriveMapping;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DrivePlacementTest {
+
+    private static final int DRIVES = 5;
+    private static final long SIZE = 1 << 20;
+
+    @TempDir
+    Path root;
+
+    private final List<DriveFileMapper> mappers = new ArrayList<>();
+
+    @BeforeEach
+    void createDrives() throws IOException {
+        for (int i = 0; i < DRIVES; i++) {
+            mappers.add(new DriveFileMapper(DriveFileMapper.provider.createStructure(
+                    null, new DriveMapping.InitParams(Files.createDirectories(root.resolve("drive" + i)).toFile(),
+                                                      "log")).key,
+                    null));
+        }
+    }
+
+    @Test
+    void shortestQueueKeepsInFlightSpreadWithinOneForEqualArrivals() {
+        DrivePlacement placement = new DrivePlacement(mappers);
+
+        for (int i = 0; i < 10 * DRIVES + 3; i++) {
+            assertNotNull(placement.place(SIZE));
+
+            assertTrue(spread(placement.getInFlight()) <= 1, Arrays.toString(placement.getInFlight()));
+        }
+        long[] queued = placement.getQueuedBytes();
+        for (int i = 0; i < DRIVES; i++) {
+            assertEquals(placement.getInFlight()[i] * SIZE, queued[i]);
+        }
+    }
+
+    @Test
+    void shortestQueuePlacesFileOnLeastLoadedDriveWhileCopiesComplete() {
+        DrivePlacement placement = new DrivePlacement(mappers);
+        Random random = new Random(7);
+        List<DrivePlacement.Lease> leases = new ArrayList<>();
+
+        for (int step = 0; step < 10_000; step++) {
+            if (!leases.isEmpty() && random.nextInt(3) == 0) {
+                DrivePlacement.Lease lease = leases.remove(random.nextInt(leases.size()));
+                lease.progress(SIZE / 2);
+                lease.close();
+                continue;
+            }
+            int[] before = placement.getInFlight();
+            DrivePlacement.Lease lease = placement.place(SIZE);
+            assertNotNull(lease);
+            int chosen = mappers.indexOf(lease.getDrive());
+
+            assertEquals(Arrays.stream(before).min().getAsInt(), before[chosen], Arrays.toString(before));
+            leases.add(lease);
+        }
+        assertArrayEquals(inFlightOf(leases), placement.getInFlight());
+        assertEquals(leases.size() * SIZE, Arrays.stream(placement.getQueuedBytes()).sum());
+    }
+
+    @Test
+    void closedLeasesReturnQueuedBytesAndInFlightToZero() {
+        DrivePlacement placement = new DrivePlacement(mappers);
+        List<DrivePlacement.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < 3 * DRIVES; i++) {
+            leases.add(placement.place(SIZE + i));
+        }
+        leases.add(placement.reserve(mappers.get(2), SIZE));
+
+        for (int i = 0; i < leases.size(); i++) {
+            DrivePlacement.Lease lease = leases.get(i);
+            lease.progress(SIZE / 3);
+            lease.progress(-SIZE);
+            if (i % 2 == 0) lease.progress(2 * SIZE);
+            lease.close();
+            lease.close();
+            lease.progress(SIZE);
+        }
+
+        assertArrayEquals(new long[DRIVES], placement.getQueuedBytes());
+        assertArrayEquals(new int[DRIVES], placement.getInFlight());
+    }
+
+    @Test
+    void fileIsNotPlacedOnDriveWithoutSpace() {
+        DrivePlacement placement = new DrivePlacement(mappers);
+
+        assertNull(placement.place(Long.MAX_VALUE / 2));
+        assertArrayEquals(new int[DRIVES], placement.getInFlight());
+        assertArrayEquals(new long[DRIVES], placement.getQueuedBytes());
+    }
+
+    private int[] inFlightOf(List<DrivePlacement.Lease> leases) {
+        int[] inFlight = new int[DRIVES];
+        for (DrivePlacement.Lease lease : leases) {
+            inFlight[mappers.indexOf(lease.getDrive())]++;
+        }
+        return inFlight;
+    }
+
+    private static int spread(int[] inFlight) {
+        return Arrays.stream(inFlight).max().getAsInt() - Arrays.stream(inFlight).min().getAsInt();
+    }
+}
@@ -0,0 +1,259 @@
+package edu.jeznach.po2.server.transfer;
+
+import edu.jeznach.po2.server.file.DriveFileMapper;
+import edu.jeznach.po2.server.file.DriveMapping;
+import edu.jeznach.po2.server.transfer.TransferScheduler.ChunkedTask;
+import edu.jeznach.po2.server.transfer.TransferScheduler.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferSchedulerTest {
+
+    private static final long QUANTUM = 1 << 20;
+
+    @TempDir
+    Path root;
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void firstFileOfUserWaitsForAtMostOneTaskOfOtherUsersBacklog() throws Exception {
+        for (Order order : Order.values()) {
+            executed.clear();
+            try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, order, 0)) {
+                CountDownLatch gate = gate(scheduler);
+                for (int i = 0; i < 10_000; i++) {
+                    scheduler.submit("backlog", 100_000, () -> executed.add("backlog"));
+                }
+                CompletableFuture<Boolean> first = scheduler.submit("new", 100_000, () -> executed.add("new"));
+                gate.countDown();
+
+                first.get(5, TimeUnit.SECONDS);
+
+                assertTrue(executed.indexOf("new") <= 1, order + ": " + executed.indexOf("new"));
+            }
+        }
+    }
+
+    @Test
+    void fileOfUserIsNotQueuedBehindBacklogInProgress() throws Exception {
+        for (Order order : Order.values()) {
+            executed.clear();
+            CompletableFuture<Boolean> first = new CompletableFuture<>();
+            try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, order, 0)) {
+                for (int i = 0; i < 10_000; i++) {
+                    scheduler.submit("backlog", 100_000, () -> {
+                        if (executed.size() == 100) {
+                            scheduler.submit("new", 100_000, () -> executed.add("new"))
+                                     .whenComplete((r, e) -> first.complete(r));
+                        }
+                        return executed.add("backlog");
+                    });
+                }
+
+                first.get(5, TimeUnit.SECONDS);
+
+                assertTrue(executed.indexOf("new") <= 102, order + ": " + executed.indexOf("new"));
+            }
+        }
+    }
+
+    @Test
+    void usersTransferSameNumberOfBytesRegardlessOfSizeOfTheirFiles() throws Exception {
+        try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.fifo, 0)) {
+            CountDownLatch gate = gate(scheduler);
+            CompletableFuture<?> last = null;
+            for (int i = 0; i < 100; i++) {
+                scheduler.submit("large", cost(4 * QUANTUM), () -> executed.add("large"));
+            }
+            for (int i = 0; i < 800; i++) {
+                last = scheduler.submit("small", cost(QUANTUM / 2), () -> executed.add("small"));
+            }
+            gate.countDown();
+            last.get(5, TimeUnit.SECONDS);
+
+            List<String> prefix = executed.subList(0, 500);
+            long large = Collections.frequency(prefix, "large") * 4 * QUANTUM;
+            long small = Collections.frequency(prefix, "small") * QUANTUM / 2;
+            assertEquals(1, (double) large / small, 0.1, large + " / " + small);
+        }
+    }
+
+    @Test
+    void weightedUserTransfersProportionallyMoreBytes() throws Exception {
+        try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.fifo, 0)) {
+            scheduler.setWeight("heavy", 3);
+            CountDownLatch gate = gate(scheduler);
+            CompletableFuture<?> last = null;
+            for (int i = 0; i < 400; i++) {
+                scheduler.submit("heavy", cost(QUANTUM), () -> executed.add("heavy"));
+                last = scheduler.submit("light", cost(QUANTUM), () -> executed.add("light"));
+            }
+            gate.countDown();
+            last.get(5, TimeUnit.SECONDS);
+
+            List<String> prefix = executed.subList(0, 200);
+            assertEquals(150, Collections.frequency(prefix, "heavy"), 3);
+        }
+    }
+
+    @Test
+    void userOfSaturatedDriveIsSkippedWithoutLosingDeficit() throws Exception {
+        DriveFileMapper mapper = new DriveFileMapper(DriveFileMapper.provider.createStructure(
+                null, new DriveMapping.InitParams(Files.createDirectories(root.resolve("drive")).toFile(), "log")).key,
+                null);
+        CountDownLatch saturated = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger startedBeforeCopy = new AtomicInteger(-1);
+        try (DriveExecutor drive = new DriveExecutor(mapper, 1, 0);
+             TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.fifo, 0)) {
+            assertNotNull(drive.trySubmit(1, () -> saturated.await(5, TimeUnit.SECONDS)));
+            CountDownLatch gate = gate(scheduler);
+            // needs 10 visits to cover its cost, so its deficit grows while drive is saturated
+            CompletableFuture<Boolean> copy = scheduler.submit("copying", cost(10 * QUANTUM), drive, () -> {
+                startedBeforeCopy.set(started.get());
+                return true;
+            });
+            CompletableFuture<?> last = null;
+            for (int i = 0; i < 40; i++) {
+                last = scheduler.submit("other", cost(QUANTUM), () -> {
+                    if (started.incrementAndGet() == 20) {
+                        assertEquals(-1, startedBeforeCopy.get());
+                        saturated.countDown();
+                        while (drive.isSaturated()) Thread.sleep(1);
+                    }
+                    Thread.sleep(10);
+                    return true;
+                });
+            }
+            gate.countDown();
+
+            assertTrue(copy.get(5, TimeUnit.SECONDS));
+            last.get(5, TimeUnit.SECONDS);
+            // user that lost deficit would wait for 10 more tasks of other user
+            assertTrue(startedBeforeCopy.get() >= 20 && startedBeforeCopy.get() <= 23,
+                       "started after " + startedBeforeCopy.get() + " tasks");
+            assertTrue(drive.getStatistics().getSaturated() > 0);
+        }
+    }
+
+    @Test
+    void smallTaskPreemptsChunkedTaskAtChunkBoundary() throws Exception {
+        try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.shortest_first, 0)) {
+            CompletableFuture<Boolean> large = scheduler.submit("user", 100 * QUANTUM, null, chunks(100, chunk -> {
+                if (chunk == 3) scheduler.submit("user", 1000, () -> executed.add("small"));
+            }));
+
+            assertTrue(large.get(5, TimeUnit.SECONDS));
+
+            assertEquals(Arrays.asList("large", "large", "large", "small", "large"), executed.subList(0, 5));
+            assertEquals(101, executed.size());
+            assertTrue(scheduler.getStatistics("user").getPreempted() >= 1);
+        }
+    }
+
+    @Test
+    void agedChunkedTaskRunsWhileSmallTasksKeepArriving() throws Exception {
+        AtomicBoolean arriving = new AtomicBoolean(true);
+        try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.shortest_first, 0)) {
+            CountDownLatch gate = gate(scheduler);
+            CompletableFuture<Boolean> large = scheduler.submit("user", 100 * QUANTUM, null, chunks(100, chunk -> {}));
+            submitSmall(scheduler, arriving);
+            gate.countDown();
+
+            // without aging, large task waits for as long as small tasks arrive
+            Thread.sleep(200);
+            assertFalse(executed.contains("large"));
+            arriving.set(false);
+            assertTrue(large.get(5, TimeUnit.SECONDS));
+        } finally {
+            arriving.set(false);
+        }
+
+        executed.clear();
+        arriving.set(true);
+        try (TransferScheduler scheduler = new TransferScheduler(1, QUANTUM, Order.shortest_first, 1L << 30)) {
+            CountDownLatch gate = gate(scheduler);
+            CompletableFuture<Boolean> large = scheduler.submit("user", 100 * QUANTUM, null, chunks(100, chunk -> {}));
+            submitSmall(scheduler, arriving);
+            gate.countDown();
+
+            assertTrue(large.get(5, TimeUnit.SECONDS));
+            assertTrue(arriving.get());
+            assertTrue(executed.contains("small"));
+        } finally {
+            arriving.set(false);
+        }
+    }
+
+    /**
+     * Creates task of {@code count} chunks of quantum, that adds {@code "large"} to executed tasks
+     * after every chunk.
+     * @param chunk called with number of chunk (starting from {@code 1}), before it is transferred
+     */
+    private ChunkedTask<Boolean> chunks(int count, IntConsumer chunk) {
+        AtomicLong remaining = new AtomicLong(count * QUANTUM);
+        AtomicInteger transferred = new AtomicInteger();
+        return new ChunkedTask<Boolean>() {
+            @Override
+            public long transferChunk() {
+                chunk.accept(transferred.incrementAndGet());
+                executed.add("large");
+                return remaining.addAndGet(-QUANTUM);
+            }
+
+            @Override
+            public Boolean result() { return true; }
+        };
+    }
+
+    /**
+     * Submits small task, that submits next small task, as long as {@code arriving} is set,
+     * so there is always small task queued.
+     */
+    private void submitSmall(TransferScheduler scheduler, AtomicBoolean arriving) {
+        scheduler.submit("user", 1000, () -> {
+            if (arriving.get()) submitSmall(scheduler, arriving);
+            Thread.sleep(1);
+            return executed.add("small");
+        });
+    }
+
+    /**
+     * Blocks single worker of scheduler, so tasks submitted afterwards are picked in order of scheduler.
+     * @return the latch that releases worker
+     */
+    private static CountDownLatch gate(TransferScheduler scheduler) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        scheduler.submit("gate", 0, () -> {
+            started.countDown();
+            return gate.await(5, TimeUnit.SECONDS);
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    /**
+     * @return the size of file, that costs {@code cost} bytes
+     */
+    private static long cost(long cost) {
+        return cost - TransferScheduler.TASK_OVERHEAD;
+    }
+}